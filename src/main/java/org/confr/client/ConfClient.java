@@ -1,5 +1,6 @@
 package org.confr.client;
 
+import org.confr.messages.ConfrMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,9 +54,10 @@ public class ConfClient {
 
     private final ConfrSession session;
 
-    private ConfClient(SocketAddress address, Set<String> watchedConfig) {
-        this.session = new ConfrSession(watchedConfig);
-        this.nettyClient = new NettyClient(address, this.session.getResponseHandler());
+    private ConfClient(SocketAddress address, Set<String> watchedConfig, boolean nativeTransport,
+            short protocolVersion, long syncIntervalMs) {
+        this.session = new ConfrSession(watchedConfig, protocolVersion, syncIntervalMs);
+        this.nettyClient = new NettyClient(address, this.session.getResponseHandler(), nativeTransport);
         this.session.withTransport(this.nettyClient);
     }
 
@@ -87,10 +89,20 @@ public class ConfClient {
         return session.getConfigCache(key);
     }
 
+    /**
+     * @return the raw value of the key, for binary values. Must not be modified.
+     */
+    public byte[] getConfigBytes(String key) {
+        return session.getConfigBytes(key);
+    }
+
     public static class Builder {
         private String confServerAddress;
         private int confServerPort;
         private Set<String> watchedConfig = new HashSet<>();
+        private boolean nativeTransport = true;
+        private short protocolVersion = ConfrMessage.Latest_Protocol;
+        private long syncIntervalMs = 5000;
 
         Builder withServerAddress(String confServerAddress) {
             this.confServerAddress = confServerAddress;
@@ -111,8 +123,33 @@ public class ConfClient {
             return this;
         }
 
+        /**
+         * Use the native epoll transport when it is available, NIO otherwise.
+         */
+        Builder withNativeTransport(boolean nativeTransport) {
+            this.nativeTransport = nativeTransport;
+            return this;
+        }
+
+        /**
+         * Latest protocol version to use, 1 for servers not supporting the handshake.
+         */
+        Builder withProtocolVersion(short protocolVersion) {
+            this.protocolVersion = protocolVersion;
+            return this;
+        }
+
+        /**
+         * Interval of the digest sync repairing lost changes, 0 to disable. Protocol v2 only.
+         */
+        Builder withSyncIntervalMs(long syncIntervalMs) {
+            this.syncIntervalMs = syncIntervalMs;
+            return this;
+        }
+
         ConfClient build() {
-            return new ConfClient(new InetSocketAddress(confServerAddress, confServerPort), watchedConfig);
+            return new ConfClient(new InetSocketAddress(confServerAddress, confServerPort), watchedConfig,
+                    nativeTransport, protocolVersion, syncIntervalMs);
         }
     }
 }
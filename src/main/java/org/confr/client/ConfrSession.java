@@ -1,17 +1,28 @@
 package org.confr.client;
 
 import io.netty.channel.Channel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import org.confr.codec.ConnectionProtocol;
 import org.confr.messages.ConfChangeResponse;
+import org.confr.messages.ConfigDigest;
 import org.confr.messages.ConfrMessage;
+import org.confr.messages.Handshake;
+import org.confr.messages.KeyIdTable;
 import org.confr.messages.Pong;
+import org.confr.messages.ProtocolContext;
+import org.confr.messages.SyncRequest;
+import org.confr.messages.SyncResponse;
 import org.confr.messages.WatchKeysRequest;
 import org.confr.messages.WatchKeysResponse;
 import org.slf4j.Logger;
@@ -20,31 +31,56 @@ import org.slf4j.LoggerFactory;
 /**
  * Confr client session to manage a client session id and watched config,
  * and also the config cache.
+ *
+ * A watched key like "app/payments/**" watches every key under the prefix, see WatchKeysRequest,
+ * the keys under it are cached as they are pushed by the server.
  */
 class ConfrSession implements ResponseHandler {
     private static final Logger logger = LoggerFactory.getLogger(ConfrSession.class);
 
     private final String sessionId = UUID.randomUUID().toString().replace("-", "");
     private final AtomicLong requestIdGenerator = new AtomicLong(0);
-    private final ConcurrentHashMap<String, String> configCache = new ConcurrentHashMap<>();
+    // raw values, decoded only when read as strings
+    private final ConcurrentHashMap<String, byte[]> configCache = new ConcurrentHashMap<>();
+    // versions of the cached values, known in protocol v2 only
+    private final ConcurrentHashMap<String, Integer> configVersions = new ConcurrentHashMap<>();
     private final Set<String> watchedConfig;
     private final ConcurrentHashMap<Long, CompletableFuture<Object>> inflightRequests = new ConcurrentHashMap<>();
+    // latest protocol asked for in the handshake, no handshake for protocol v1
+    private final short protocolVersion;
+    // interval of the digest sync with the server, 0 for never
+    private final long syncIntervalMs;
+
+    // epoch of the change log of the connected server, 0 if unknown
+    private volatile long serverLogEpoch = 0;
+    // position in the change log of a server, as of which every watched value is known, epoch 0 if none
+    private volatile long logEpoch = 0;
+    private volatile long logSequence = 0;
 
     private NettyClient transport;
 
-    ConfrSession(Set<String> watchedConfig) {
+    ConfrSession(Set<String> watchedConfig, short protocolVersion, long syncIntervalMs) {
         this.watchedConfig = watchedConfig;
+        this.protocolVersion = protocolVersion;
+        this.syncIntervalMs = syncIntervalMs;
     }
 
     public ConfrSession withTransport(NettyClient transport) {
         this.transport = transport;
         this.transport.addReconnectListener(new ServerReconnectedListener() {
             @Override public void onConnected() {
-                try {
-                    rewatch();
-                } catch (InterruptedException e) {
-                    logger.error("Fail to rewatch config", e);
-                }
+                Channel channel = transport.getChannel();
+                handshake().whenComplete((v, e) -> {
+                    if (e != null) {
+                        logger.error("Fail to handshake with server", e);
+                        return;
+                    }
+                    try {
+                        rewatch().thenRun(() -> scheduleSync(channel));
+                    } catch (InterruptedException ie) {
+                        logger.error("Fail to rewatch config", ie);
+                    }
+                });
             }
         });
         return this;
@@ -59,7 +95,7 @@ class ConfrSession implements ResponseHandler {
     }
 
     public CompletableFuture<Void> watchConfig(String key) {
-        String config = configCache.get(key);
+        byte[] config = configCache.get(key);
         if (config != null) {
             CompletableFuture<Void> f = new CompletableFuture<Void>();
             f.complete(null);
@@ -70,19 +106,130 @@ class ConfrSession implements ResponseHandler {
     }
 
     public String getConfigCache(String key) {
+        byte[] value = configCache.get(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the raw value, which must not be modified.
+     */
+    public byte[] getConfigBytes(String key) {
         return configCache.get(key);
     }
 
 
     CompletableFuture<Void> watch(Set<String> keys) {
-        WatchKeysRequest request = WatchKeysRequest.builder().setClientId(getSessionId())
-                .setCorrelationId(nextRequestId()).addWatchKeys(keys).build();
+        return watch(keys, false);
+    }
+
+    /**
+     * @param all keys are all the watched keys, whose values are known as of the change log position.
+     */
+    private CompletableFuture<Void> watch(Set<String> keys, boolean all) {
+        WatchKeysRequest.WatchKeysRequestBuilder builder = WatchKeysRequest.builder();
+        // the server sends only the values changed since the known versions
+        for (String key : keys) {
+            builder.addWatchKey(key, configVersions.getOrDefault(key, WatchKeysRequest.Unknown_Version));
+        }
+        if (all && logEpoch != 0 && logEpoch == serverLogEpoch) {
+            // and the keys without version changed since the position, if it can replay them
+            builder.setSince(logEpoch, logSequence);
+        }
+        WatchKeysRequest request = builder.setClientId(getSessionId())
+                .setVersionId(ConnectionProtocol.get(transport.getChannel()).getVersion())
+                .setCorrelationId(nextRequestId()).build();
 
         return doRequest(request).thenRun(() -> {});
     }
 
+    /**
+     * Negotiate the protocol of the connection, the session sends nothing else before it is done.
+     */
+    private CompletableFuture<Void> handshake() {
+        if (protocolVersion <= ConfrMessage.Protocol_V1) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return doRequest(new Handshake(nextRequestId(), getSessionId(), protocolVersion)).thenRun(() -> {});
+    }
+
     private CompletableFuture<Void> rewatch() throws InterruptedException {
-        return watch(watchedConfig);
+        return watch(watchedConfig, true);
+    }
+
+    /**
+     * Sync with the server periodically as long as the channel is active, so a lost change is repaired.
+     * Needs the versions of protocol v2.
+     */
+    private void scheduleSync(Channel channel) {
+        if (syncIntervalMs <= 0 || !ConnectionProtocol.get(channel).isV2()) {
+            return;
+        }
+        channel.eventLoop().schedule(() -> {
+            if (!channel.isActive()) {
+                return;
+            }
+            sync().whenComplete((v, e) -> {
+                if (e != null) {
+                    logger.warn("Fail to sync with server", e);
+                }
+            });
+            scheduleSync(channel);
+        }, syncIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the digest of the versions of the exact watched keys, the server replies with the buckets that differ,
+     * and the stale keys of these buckets are watched again.
+     */
+    CompletableFuture<Void> sync() {
+        // the reply is read against the keys and buckets of the request, keys may be watched meanwhile
+        Set<String> keys = new HashSet<>(watchedConfig);
+        // keys under a prefix are neither versioned by the server nor in the digest
+        keys.removeIf(WatchKeysRequest::isPrefixKey);
+        int buckets = ConfigDigest.bucketsFor(keys.size());
+        ConfigDigest digest = new ConfigDigest(buckets);
+        for (String key : keys) {
+            digest.add(key, configVersions.getOrDefault(key, WatchKeysRequest.Unknown_Version));
+        }
+        SyncRequest request = new SyncRequest(ConnectionProtocol.get(transport.getChannel()).getVersion(),
+                nextRequestId(), getSessionId(), digest);
+        return doRequest(request).thenAccept(response -> {
+            Set<String> staleKeys = staleKeys((SyncResponse) response, keys, buckets, configVersions);
+            if (!staleKeys.isEmpty()) {
+                logger.info("Keys {} are out of sync with the server, watch them again", staleKeys);
+                watch(staleKeys);
+            }
+        });
+    }
+
+    /**
+     * @param keys the keys of the digest of the sync request
+     * @param buckets the number of buckets of the digest
+     * @param versions the versions known by the client
+     * @return the keys of the buckets that differ whose version the client and the server do not agree on
+     */
+    static Set<String> staleKeys(SyncResponse response, Collection<String> keys, int buckets,
+            Map<String, Integer> versions) {
+        Set<String> staleKeys = new HashSet<>();
+        if (response.getDifferingBuckets().length == 0) {
+            return staleKeys;
+        }
+        Set<Integer> differing = new HashSet<>();
+        for (int bucket : response.getDifferingBuckets()) {
+            differing.add(bucket);
+        }
+        for (String key : keys) {
+            if (!differing.contains(ConfigDigest.bucketOf(key, buckets))) {
+                continue;
+            }
+            int version = versions.getOrDefault(key, WatchKeysRequest.Unknown_Version);
+            Integer serverVersion = response.getVersions().get(key);
+            // a key unknown to either side is watched again as well
+            if (serverVersion == null || version == WatchKeysRequest.Unknown_Version || version != serverVersion) {
+                staleKeys.add(key);
+            }
+        }
+        return staleKeys;
     }
 
     private CompletableFuture<Object> doRequest(ConfrMessage request) {
@@ -124,24 +271,78 @@ class ConfrSession implements ResponseHandler {
         Channel responseChannel = responseInfo.getResponseChannel();
         logger.info("Receive msg {} from server {}", msg.getType(), responseChannel.remoteAddress());
         if (msg instanceof Pong) {
+        } else if (msg instanceof Handshake) {
+            handleHandshake(((Handshake) msg), responseInfo.getResponseChannel());
         } else if (msg instanceof WatchKeysResponse) {
             handleWatchResponse(((WatchKeysResponse) msg), responseInfo.getResponseChannel());
         } else if (msg instanceof ConfChangeResponse) {
             handleConfChange(((ConfChangeResponse) msg), responseInfo.getResponseChannel());
+        } else if (msg instanceof SyncResponse) {
+            handleSyncResponse(((SyncResponse) msg));
+        }
+    }
+
+    private void handleHandshake(Handshake handshake, Channel responseChannel) {
+        // called on the event loop of the channel, so the next message is read in the new protocol already.
+        ConnectionProtocol.set(responseChannel,
+                new ProtocolContext(handshake.getProtocolVersion(), sessionId, new KeyIdTable()));
+        serverLogEpoch = handshake.getLogEpoch();
+        logger.info("Use protocol {} with server {}", handshake.getProtocolVersion(), responseChannel.remoteAddress());
+        CompletableFuture<Object> future = inflightRequests.remove(handshake.getCorrelationId());
+        if (future != null) {
+            future.complete(handshake);
         }
     }
 
     private void handleConfChange(ConfChangeResponse msg, Channel responseChannel) {
-        Map<String, String> changedConfig = msg.getData();
+        // the position moves along with the pushes, only within the log the position comes from
+        if (msg.getLogSequence() > logSequence && logEpoch != 0 && logEpoch == serverLogEpoch) {
+            logSequence = msg.getLogSequence();
+        }
+        Map<String, byte[]> changedConfig = msg.getRawData();
+        Map<String, Integer> versions = msg.getVersions();
         changedConfig.forEach((k, v) -> {
-            if (!watchedConfig.contains(k)) {
+            if (!isWatched(k)) {
                 logger.error("Client is not watching key {}, Please check server impl to fix this", k);
             } else {
-                configCache.put(k, v);
+                updateConfig(k, v, versions.get(k));
             }
         });
     }
 
+    private void handleSyncResponse(SyncResponse response) {
+        // the stale keys are found by the sync request, which knows its keys and buckets
+        CompletableFuture<Object> future = inflightRequests.remove(response.getCorrelationId());
+        if (future != null) {
+            future.complete(response);
+        }
+    }
+
+    private void updateConfig(String key, byte[] value, Integer version) {
+        configCache.put(key, value);
+        if (version == null) {
+            // a value without version, never claim to know the version of the cached value.
+            configVersions.remove(key);
+        } else {
+            configVersions.put(key, version);
+        }
+    }
+
+    /**
+     * @return true if the key or any of its prefixes is watched.
+     */
+    private boolean isWatched(String key) {
+        if (watchedConfig.contains(key) || watchedConfig.contains(WatchKeysRequest.Wildcard)) {
+            return true;
+        }
+        for (int i = key.indexOf('/'); i >= 0; i = key.indexOf('/', i + 1)) {
+            if (watchedConfig.contains(key.substring(0, i + 1) + WatchKeysRequest.Wildcard)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void handleWatchResponse(WatchKeysResponse response, Channel responseChannel) {
         String clientId = response.getClientId();
         long correlationId = response.getCorrelationId();
@@ -150,15 +351,24 @@ class ConfrSession implements ResponseHandler {
             return;
         }
 
-        Map<String, String> configData = response.getConfigData();
+        Map<String, byte[]> configData = response.getRawConfigData();
+        Map<String, Integer> versions = response.getVersions();
         configData.forEach((key, value) -> {
-            if (!watchedConfig.contains(key)) {
+            if (!isWatched(key)) {
                 logger.error("Client is not watching key {}, Please check server impl to fix this", key);
             } else {
                 // TODO: based on config version to udpate the cache
-                configCache.put(key, value);
+                updateConfig(key, value, versions.get(key));
             }
         });
+        logger.debug("Watch response {} carries {} changed keys, {} unchanged", correlationId, configData.size(),
+                response.getUnchangedKeys().size());
+        // the position holds only when every watched value is known as of it, prefix keys are sent in full anyway
+        if (response.getLogEpoch() != 0 && watchedConfig.stream().allMatch(key -> WatchKeysRequest.isPrefixKey(key)
+                || configData.containsKey(key) || response.getUnchangedKeys().contains(key))) {
+            logEpoch = response.getLogEpoch();
+            logSequence = response.getLogSequence();
+        }
 
         // Handle the request future
         CompletableFuture<Object> requestCompleteFuture = inflightRequests.remove(correlationId);
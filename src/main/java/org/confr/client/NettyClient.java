@@ -6,8 +6,8 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import org.confr.utils.NettyTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,7 +21,8 @@ class NettyClient {
     private static final Logger logger = LoggerFactory.getLogger(NettyClient.class);
 
     private CountDownLatch shutdownLatch = new CountDownLatch(1);
-    private NioEventLoopGroup workerGroup;
+    private final NettyTransport transport;
+    private EventLoopGroup workerGroup;
     private Bootstrap bootstrap;
     private SocketAddress address;
 
@@ -33,7 +34,8 @@ class NettyClient {
     private final ReconnectChannelFutureListener reconnectChannelFutureListener = new ReconnectChannelFutureListener();
 
 
-    NettyClient(SocketAddress address, ResponseHandler responseHandler) {
+    NettyClient(SocketAddress address, ResponseHandler responseHandler, boolean nativeTransport) {
+        this.transport = new NettyTransport(nativeTransport);
         this.responseHandler = responseHandler;
         this.address = address;
     }
@@ -42,10 +44,11 @@ class NettyClient {
         long startupBeginTime = System.currentTimeMillis();
         try {
             logger.trace("Starting NettyClient");
-            workerGroup = new NioEventLoopGroup(1);
+            // one connection only, one thread is enough
+            workerGroup = transport.newEventLoopGroup(1, "confr-client");
             bootstrap = new Bootstrap()
                     .group(workerGroup)
-                    .channel(NioSocketChannel.class)
+                    .channel(transport.channelClass())
                     .option(ChannelOption.TCP_NODELAY, true)
                     .handler(new NettyClientChannelInitializer(this));
 
@@ -1,13 +1,13 @@
 package org.confr.client;
 
 import org.confr.codec.ConfrMessageDecoder;
+import org.confr.codec.ConnectionProtocol;
 import org.confr.codec.ConfrMessageEncoder;
 import org.confr.messages.ConfrMessage;
 import org.confr.messages.Ping;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
@@ -27,7 +27,7 @@ public class NettyClientChannelInitializer extends ChannelInitializer<SocketChan
         ChannelPipeline pipeline = ch.pipeline();
         // outbound handlers
 //        pipeline.addLast(new ChannelOutboundDebuger());
-        pipeline.addLast(new LengthFieldPrepender(4, true));
+        // the encoder writes the length field of the frame itself
         pipeline.addLast(new ConfrMessageEncoder());
 
         // inbound handlers
@@ -36,7 +36,7 @@ public class NettyClientChannelInitializer extends ChannelInitializer<SocketChan
         pipeline.addLast("idleEventHandler", new IdleEventClientHandler());
         pipeline.addLast("reconnectHandler", new ReconnectRemoteHandler());
         pipeline.addLast("lengthFieldBasedFrameDecoder", new LengthFieldBasedFrameDecoder(4 * 1024 * 1024, 0, 4, -4, 4))
-                .addLast("confrMessageDecoder", new ConfrMessageDecoder());
+                .addLast("confrMessageDecoder", new ConfrMessageDecoder(true));
         pipeline.addLast("confrMessageClientHandler", new ConfrMessageClientHandler(nettyClient.getResponseHandler()));
     }
 
@@ -65,7 +65,7 @@ public class NettyClientChannelInitializer extends ChannelInitializer<SocketChan
         @Override public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
             if (evt instanceof IdleStateEvent) {
                 // write and flush immediately
-                ctx.writeAndFlush(new Ping((short)1, 1, "client1"));
+                ctx.writeAndFlush(new Ping(ConnectionProtocol.get(ctx.channel()).getVersion(), 1, "client1"));
             } else {
                 super.userEventTriggered(ctx, evt);
             }
@@ -5,9 +5,13 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.DecoderException;
 import org.confr.messages.ConfChangeResponse;
+import org.confr.messages.Handshake;
 import org.confr.messages.MessageType;
 import org.confr.messages.Ping;
 import org.confr.messages.Pong;
+import org.confr.messages.ProtocolContext;
+import org.confr.messages.SyncRequest;
+import org.confr.messages.SyncResponse;
 import org.confr.messages.WatchKeysRequest;
 import org.confr.messages.WatchKeysResponse;
 import org.slf4j.Logger;
@@ -17,39 +21,69 @@ import java.util.List;
 
 /**
  *  * Decode ConfrMessage from bytebuf.
+ *
+ * Messages are read in the format of the protocol of the channel, see ConnectionProtocol.
+ * Strings are read straight from the frame. In lazy mode the maps of WatchKeysResponse and
+ * ConfChangeResponse stay retained slices of the frame until they are read, such messages are
+ * reference counted and should be released by the handler, as SimpleChannelInboundHandler does.
  */
 public class ConfrMessageDecoder extends ByteToMessageDecoder {
     private static final Logger logger = LoggerFactory.getLogger(ConfrMessageDecoder.class);
+    private static final MessageType[] Message_Types = MessageType.values();
+
+    private final boolean lazy;
+
+    public ConfrMessageDecoder() {
+        this(false);
+    }
+
+    public ConfrMessageDecoder(boolean lazy) {
+        this.lazy = lazy;
+    }
+
     @Override protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-        // read all
-        ByteBuf byteBuf = in.readSlice(in.readableBytes());
+        decode(in, out, ConnectionProtocol.get(ctx.channel()));
+    }
 
-        int ordinal = byteBuf.readInt();
-        if (ordinal < 0 || ordinal > MessageType.values().length - 1) {
+    void decode(ByteBuf in, List<Object> out, ProtocolContext protocol) {
+        int ordinal = protocol.isV2() ? in.readUnsignedByte() : in.readInt();
+        if (ordinal < 0 || ordinal > Message_Types.length - 1) {
             logger.error("Receive invalid message of type {}, close channel now", ordinal);
             throw new DecoderException("Invalid message type id " + ordinal);
         }
 
-        MessageType messageType = MessageType.values()[ordinal];
+        MessageType messageType = Message_Types[ordinal];
 
         switch (messageType) {
         case PING:
-            out.add(Ping.readFrom(byteBuf));
+            out.add(Ping.readFrom(in, protocol));
             break;
         case PONG:
-            out.add(Pong.readFrom(byteBuf));
+            out.add(Pong.readFrom(in, protocol));
             break;
         case WatchKeysRequest:
-            out.add(WatchKeysRequest.readFrom(byteBuf));
+            out.add(WatchKeysRequest.readFrom(in, protocol));
             break;
         case WatchKeysResponse:
-            out.add(WatchKeysResponse.readFrom(byteBuf));
+            out.add(WatchKeysResponse.readFrom(in, protocol, lazy));
             break;
         case ConfChangeResponse:
-            out.add(ConfChangeResponse.readFrom(byteBuf));
+            out.add(ConfChangeResponse.readFrom(in, protocol, lazy));
+            break;
+        case Handshake:
+            // always protocol v1
+            out.add(Handshake.readFrom(in));
+            break;
+        case SyncRequest:
+            out.add(SyncRequest.readFrom(in, protocol));
+            break;
+        case SyncResponse:
+            out.add(SyncResponse.readFrom(in, protocol));
             break;
         default:
             throw new UnsupportedOperationException("Message type not supported " + messageType);
         }
+        // one frame is one message, skip whatever left.
+        in.skipBytes(in.readableBytes());
     }
 }
@@ -3,16 +3,58 @@ package org.confr.codec;
 import org.confr.messages.ConfrMessage;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.EncoderException;
 import io.netty.handler.codec.MessageToByteEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 
+/**
+ * Encode ConfrMessage into a frame, which is the frame length, including the length field itself,
+ * followed by the message. The frame is written into one pooled direct buffer of its exact size.
+ */
 public class ConfrMessageEncoder extends MessageToByteEncoder<ConfrMessage> {
     private static final Logger logger = LoggerFactory.getLogger(ConfrMessageEncoder.class);
+    private static final int Length_Field_Size_In_Bytes = Integer.BYTES;
+
+    public ConfrMessageEncoder() {
+        super(ConfrMessage.class, true);
+    }
+
+    /**
+     * @return size of the frame of the message, including the length field.
+     */
+    public static int frameSize(ConfrMessage msg) {
+        long size = Length_Field_Size_In_Bytes + msg.sizeInBytes();
+        if (size > Integer.MAX_VALUE) {
+            throw new EncoderException("Message " + msg.getType() + " is too large: " + size);
+        }
+        return (int) size;
+    }
+
+    /**
+     * Write the frame of the message, the buffer should have frameSize bytes writable.
+     */
+    public static void writeFrame(ConfrMessage msg, ByteBuf out) throws IOException {
+        int frameSize = frameSize(msg);
+        int writerIndex = out.writerIndex();
+        out.writeInt(frameSize);
+        msg.writeTo(out);
+        if (out.writerIndex() - writerIndex != frameSize) {
+            throw new EncoderException("Message " + msg.getType() + " sized " + frameSize + " bytes but wrote "
+                    + (out.writerIndex() - writerIndex));
+        }
+    }
+
+    @Override protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, ConfrMessage msg, boolean preferDirect)
+            throws Exception {
+        return ctx.alloc().directBuffer(frameSize(msg));
+    }
+
     @Override protected void encode(ChannelHandlerContext ctx, ConfrMessage msg, ByteBuf out) throws Exception {
         logger.trace("Encode conf message {}", msg.getType());
-        msg.writeTo(out);
+        writeFrame(msg, out);
     }
 
     @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
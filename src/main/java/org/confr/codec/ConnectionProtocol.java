@@ -0,0 +1,27 @@
+package org.confr.codec;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.confr.messages.ProtocolContext;
+
+/**
+ * Protocol negotiated by a channel, protocol v1 until the handshake is done.
+ */
+public class ConnectionProtocol {
+    private static final AttributeKey<ProtocolContext> Protocol_Key = AttributeKey.valueOf("protocol");
+
+    private ConnectionProtocol() {
+    }
+
+    public static ProtocolContext get(Channel channel) {
+        ProtocolContext protocol = channel.attr(Protocol_Key).get();
+        return protocol == null ? ProtocolContext.V1 : protocol;
+    }
+
+    /**
+     * Messages read from the channel after this are read in the format of the protocol.
+     */
+    public static void set(Channel channel, ProtocolContext protocol) {
+        channel.attr(Protocol_Key).set(protocol);
+    }
+}
@@ -1,12 +1,91 @@
 package org.confr.config;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 public class ConfServerConfig {
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public enum StorageBackend {
+        Zk, Memory, MappedFile
+    }
+
     private final String bindAddress;
     private final int bindPort;
+    private final StorageBackend storageBackend;
+    private final String storageFile;
+    private final long storageFileCapacityBytes;
+    private final String zkConnectString;
+    private final String zkNamespace;
+    private final List<String> zkShardConnectStrings;
+    private final Set<String> zkTreeCachePrefixes;
+    private final long changeCoalesceWindowMs;
+    private final int fanoutThreads;
+    private final int changeLogCapacity;
+    private final long watcherGracePeriodMs;
+    private final int maxIdleWatchers;
+    private final int zkResyncBatchSize;
+    private final int zkResyncKeysPerSecond;
+    private final String snapshotFile;
+    private final long snapshotCheckpointIntervalMs;
+    private final int requestHandlerThreads;
+    private final int requestQueueCapacity;
+    private final int maxPendingChangesPerClient;
+    private final long changeBatchWindowMs;
+    private final int changeBatchMaxKeys;
+    private final boolean nativeTransport;
+    private final int acceptorThreads;
+    private final int workerThreads;
+    private final boolean reusePort;
+    private final boolean tcpNoDelay;
+    private final int writeBufferLowWaterMark;
+    private final int writeBufferHighWaterMark;
+    private final boolean metricsJmx;
+    private final int metricsPort;
 
     public ConfServerConfig(String bindAddress, int bindPort) {
-        this.bindAddress = bindAddress;
-        this.bindPort = bindPort;
+        this(builder().withBindAddress(bindAddress).withBindPort(bindPort));
+    }
+
+    private ConfServerConfig(Builder builder) {
+        this.bindAddress = builder.bindAddress;
+        this.bindPort = builder.bindPort;
+        this.storageBackend = builder.storageBackend;
+        this.storageFile = builder.storageFile;
+        this.storageFileCapacityBytes = builder.storageFileCapacityBytes;
+        this.zkConnectString = builder.zkConnectString;
+        this.zkNamespace = builder.zkNamespace;
+        this.zkShardConnectStrings = Collections.unmodifiableList(new ArrayList<>(builder.zkShardConnectStrings));
+        this.zkTreeCachePrefixes = Collections.unmodifiableSet(new LinkedHashSet<>(builder.zkTreeCachePrefixes));
+        this.changeCoalesceWindowMs = builder.changeCoalesceWindowMs;
+        this.fanoutThreads = builder.fanoutThreads;
+        this.changeLogCapacity = builder.changeLogCapacity;
+        this.watcherGracePeriodMs = builder.watcherGracePeriodMs;
+        this.maxIdleWatchers = builder.maxIdleWatchers;
+        this.zkResyncBatchSize = builder.zkResyncBatchSize;
+        this.zkResyncKeysPerSecond = builder.zkResyncKeysPerSecond;
+        this.snapshotFile = builder.snapshotFile;
+        this.snapshotCheckpointIntervalMs = builder.snapshotCheckpointIntervalMs;
+        this.requestHandlerThreads = builder.requestHandlerThreads;
+        this.requestQueueCapacity = builder.requestQueueCapacity;
+        this.maxPendingChangesPerClient = builder.maxPendingChangesPerClient;
+        this.changeBatchWindowMs = builder.changeBatchWindowMs;
+        this.changeBatchMaxKeys = builder.changeBatchMaxKeys;
+        this.nativeTransport = builder.nativeTransport;
+        this.acceptorThreads = builder.acceptorThreads;
+        this.workerThreads = builder.workerThreads;
+        this.reusePort = builder.reusePort;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.writeBufferLowWaterMark = builder.writeBufferLowWaterMark;
+        this.writeBufferHighWaterMark = builder.writeBufferHighWaterMark;
+        this.metricsJmx = builder.metricsJmx;
+        this.metricsPort = builder.metricsPort;
     }
 
     public int getBindPort() {
@@ -16,4 +95,415 @@ public class ConfServerConfig {
     public String getBindAddress() {
         return bindAddress;
     }
+
+    /**
+     * Where the values are kept: zk, the memory of the server for tests and load generation,
+     * or a memory-mapped file of the storage file for a single node. The zk settings are used by zk only.
+     */
+    public StorageBackend getStorageBackend() {
+        return storageBackend;
+    }
+
+    public String getStorageFile() {
+        return storageFile;
+    }
+
+    /**
+     * Size the storage file is mapped with, the file never grows beyond it.
+     */
+    public long getStorageFileCapacityBytes() {
+        return storageFileCapacityBytes;
+    }
+
+    public String getZkConnectString() {
+        return zkConnectString;
+    }
+
+    public String getZkNamespace() {
+        return zkNamespace;
+    }
+
+    /**
+     * Connect strings of the zk sessions the keys are sharded over, each with its own event thread,
+     * see ShardedValueDispatcher. The same ensemble may appear more than once. Empty for one session
+     * to the zk connect string.
+     */
+    public List<String> getZkShardConnectStrings() {
+        return zkShardConnectStrings;
+    }
+
+    /**
+     * Key prefixes whose whole zk subtree is watched by one tree cache, see ZkValueDispatcher.
+     * An empty prefix covers every key.
+     */
+    public Set<String> getZkTreeCachePrefixes() {
+        return zkTreeCachePrefixes;
+    }
+
+    /**
+     * Changes of the same key within the window are pushed to clients once, with the latest value.
+     */
+    public long getChangeCoalesceWindowMs() {
+        return changeCoalesceWindowMs;
+    }
+
+    /**
+     * Number of threads notifying sessions of key changes.
+     */
+    public int getFanoutThreads() {
+        return fanoutThreads;
+    }
+
+    /**
+     * Max number of recent changes kept in memory, a reconnecting client is answered from them
+     * instead of comparing the versions of all its keys. 0 disables the change log.
+     */
+    public int getChangeLogCapacity() {
+        return changeLogCapacity;
+    }
+
+    /**
+     * How long a key no client watches any more stays watched in zk, so clients reconnecting
+     * within the period find it warm. 0 stops watching it at once.
+     */
+    public long getWatcherGracePeriodMs() {
+        return watcherGracePeriodMs;
+    }
+
+    /**
+     * Max number of keys kept watched for their grace period, the key idle for the longest time is evicted first.
+     */
+    public int getMaxIdleWatchers() {
+        return maxIdleWatchers;
+    }
+
+    /**
+     * Number of keys read at once when resyncing with zk after a reconnection.
+     */
+    public int getZkResyncBatchSize() {
+        return zkResyncBatchSize;
+    }
+
+    /**
+     * Max number of keys read per second when resyncing with zk after a reconnection, 0 for no limit.
+     * Keeps a server with many keys from hammering the ensemble right after it recovered.
+     */
+    public int getZkResyncKeysPerSecond() {
+        return zkResyncKeysPerSecond;
+    }
+
+    /**
+     * File the snapshot of the zk values is checkpointed to, so a restarted server answers watches at once
+     * and revalidates the values in the background. Null for no checkpoint. With zk shards, every shard
+     * has its own file, suffixed by the index of the shard.
+     */
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * How often the snapshot is checkpointed, 0 checkpoints only at shutdown.
+     */
+    public long getSnapshotCheckpointIntervalMs() {
+        return snapshotCheckpointIntervalMs;
+    }
+
+    /**
+     * Number of request handler threads, requests of one connection are always handled by the same thread.
+     */
+    public int getRequestHandlerThreads() {
+        return requestHandlerThreads;
+    }
+
+    /**
+     * A connection stops reading when the requests queued for its handler thread exceed the capacity.
+     */
+    public int getRequestQueueCapacity() {
+        return requestQueueCapacity;
+    }
+
+    /**
+     * Changes wait in a per connection map holding the latest change of each key while the connection is
+     * unwritable, the connection is closed when more keys than this are pending.
+     */
+    public int getMaxPendingChangesPerClient() {
+        return maxPendingChangesPerClient;
+    }
+
+    /**
+     * Changes pushed to a connection within the window are merged into one response.
+     * 0 merges only the changes queued together while the connection is busy.
+     */
+    public long getChangeBatchWindowMs() {
+        return changeBatchWindowMs;
+    }
+
+    /**
+     * Max number of keys of a merged change response, a batch is written once it has so many keys.
+     */
+    public int getChangeBatchMaxKeys() {
+        return changeBatchMaxKeys;
+    }
+
+    /**
+     * Use the native epoll transport when it is available, NIO otherwise.
+     */
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    /**
+     * Number of threads accepting connections. More than 1 takes effect with reusePort on the native
+     * transport only, where every acceptor binds its own socket to the port.
+     */
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    /**
+     * Number of threads doing the socket io of connections, 0 for twice the number of cores.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * SO_REUSEPORT, native transport only.
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * A connection becomes writable again when its outbound buffer drops below the low water mark.
+     */
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    /**
+     * A connection becomes unwritable when its outbound buffer grows above the high water mark.
+     */
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    /**
+     * Publish the metrics of the server as the attributes of the MBean org.confr:type=Metrics.
+     */
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    /**
+     * Port of the plain text scrape endpoint of the metrics, GET /metrics on the bind address. 0 disables it.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public static class Builder {
+        private String bindAddress = "0.0.0.0";
+        private int bindPort = 8844;
+        private StorageBackend storageBackend = StorageBackend.Zk;
+        private String storageFile = "confr.values";
+        private long storageFileCapacityBytes = 64L * 1024 * 1024;
+        private String zkConnectString = "localhost:2181";
+        private String zkNamespace = "confr";
+        private List<String> zkShardConnectStrings = new ArrayList<>();
+        private Set<String> zkTreeCachePrefixes = new LinkedHashSet<>();
+        private long changeCoalesceWindowMs = 0;
+        private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+        private int changeLogCapacity = 4096;
+        private long watcherGracePeriodMs = 30000;
+        private int maxIdleWatchers = 10000;
+        private int zkResyncBatchSize = 100;
+        private int zkResyncKeysPerSecond = 2000;
+        private String snapshotFile = null;
+        private long snapshotCheckpointIntervalMs = 60000;
+        private int requestHandlerThreads = 2;
+        private int requestQueueCapacity = 500;
+        private int maxPendingChangesPerClient = 10000;
+        private long changeBatchWindowMs = 0;
+        private int changeBatchMaxKeys = 256;
+        private boolean nativeTransport = true;
+        private int acceptorThreads = 1;
+        private int workerThreads = 0;
+        private boolean reusePort = false;
+        private boolean tcpNoDelay = true;
+        private int writeBufferLowWaterMark = 32 * 1024;
+        private int writeBufferHighWaterMark = 64 * 1024;
+        private boolean metricsJmx = true;
+        private int metricsPort = 0;
+
+        public Builder withBindAddress(String bindAddress) {
+            this.bindAddress = bindAddress;
+            return this;
+        }
+
+        public Builder withBindPort(int bindPort) {
+            this.bindPort = bindPort;
+            return this;
+        }
+
+        public Builder withStorageBackend(StorageBackend storageBackend) {
+            this.storageBackend = storageBackend;
+            return this;
+        }
+
+        public Builder withStorageFile(String storageFile) {
+            this.storageFile = storageFile;
+            return this;
+        }
+
+        public Builder withStorageFileCapacityBytes(long storageFileCapacityBytes) {
+            this.storageFileCapacityBytes = storageFileCapacityBytes;
+            return this;
+        }
+
+        public Builder withZkConnectString(String zkConnectString) {
+            this.zkConnectString = zkConnectString;
+            return this;
+        }
+
+        public Builder withZkNamespace(String zkNamespace) {
+            this.zkNamespace = zkNamespace;
+            return this;
+        }
+
+        /**
+         * Keys move between shards when the list changes, its order matters too.
+         */
+        public Builder withZkShardConnectStrings(Collection<String> connectStrings) {
+            this.zkShardConnectStrings.addAll(connectStrings);
+            return this;
+        }
+
+        public Builder withZkTreeCachePrefixes(Collection<String> prefixes) {
+            this.zkTreeCachePrefixes.addAll(prefixes);
+            return this;
+        }
+
+        public Builder withChangeCoalesceWindowMs(long changeCoalesceWindowMs) {
+            this.changeCoalesceWindowMs = changeCoalesceWindowMs;
+            return this;
+        }
+
+        public Builder withFanoutThreads(int fanoutThreads) {
+            this.fanoutThreads = fanoutThreads;
+            return this;
+        }
+
+        public Builder withChangeLogCapacity(int changeLogCapacity) {
+            this.changeLogCapacity = changeLogCapacity;
+            return this;
+        }
+
+        public Builder withWatcherGracePeriodMs(long watcherGracePeriodMs) {
+            this.watcherGracePeriodMs = watcherGracePeriodMs;
+            return this;
+        }
+
+        public Builder withMaxIdleWatchers(int maxIdleWatchers) {
+            this.maxIdleWatchers = maxIdleWatchers;
+            return this;
+        }
+
+        public Builder withZkResyncBatchSize(int zkResyncBatchSize) {
+            this.zkResyncBatchSize = zkResyncBatchSize;
+            return this;
+        }
+
+        public Builder withZkResyncKeysPerSecond(int zkResyncKeysPerSecond) {
+            this.zkResyncKeysPerSecond = zkResyncKeysPerSecond;
+            return this;
+        }
+
+        public Builder withSnapshotFile(String snapshotFile) {
+            this.snapshotFile = snapshotFile;
+            return this;
+        }
+
+        public Builder withSnapshotCheckpointIntervalMs(long snapshotCheckpointIntervalMs) {
+            this.snapshotCheckpointIntervalMs = snapshotCheckpointIntervalMs;
+            return this;
+        }
+
+        public Builder withRequestHandlerThreads(int requestHandlerThreads) {
+            this.requestHandlerThreads = requestHandlerThreads;
+            return this;
+        }
+
+        public Builder withRequestQueueCapacity(int requestQueueCapacity) {
+            this.requestQueueCapacity = requestQueueCapacity;
+            return this;
+        }
+
+        public Builder withMaxPendingChangesPerClient(int maxPendingChangesPerClient) {
+            this.maxPendingChangesPerClient = maxPendingChangesPerClient;
+            return this;
+        }
+
+        public Builder withChangeBatchWindowMs(long changeBatchWindowMs) {
+            this.changeBatchWindowMs = changeBatchWindowMs;
+            return this;
+        }
+
+        public Builder withChangeBatchMaxKeys(int changeBatchMaxKeys) {
+            this.changeBatchMaxKeys = changeBatchMaxKeys;
+            return this;
+        }
+
+        public Builder withNativeTransport(boolean nativeTransport) {
+            this.nativeTransport = nativeTransport;
+            return this;
+        }
+
+        public Builder withAcceptorThreads(int acceptorThreads) {
+            this.acceptorThreads = acceptorThreads;
+            return this;
+        }
+
+        public Builder withWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        public Builder withReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        public Builder withTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder withWriteBufferWaterMark(int low, int high) {
+            if (low < 0 || high < low) {
+                throw new IllegalArgumentException("Invalid write buffer water mark: low " + low + ", high " + high);
+            }
+            this.writeBufferLowWaterMark = low;
+            this.writeBufferHighWaterMark = high;
+            return this;
+        }
+
+        public Builder withMetricsJmx(boolean metricsJmx) {
+            this.metricsJmx = metricsJmx;
+            return this;
+        }
+
+        public Builder withMetricsPort(int metricsPort) {
+            this.metricsPort = metricsPort;
+            return this;
+        }
+
+        public ConfServerConfig build() {
+            return new ConfServerConfig(this);
+        }
+    }
 }
@@ -2,60 +2,150 @@ package org.confr.messages;
 
 import io.netty.buffer.ByteBuf;
 
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 
-public class ConfChangeResponse extends ConfrMessage {
+/**
+ * Changed values pushed to a client. In protocol v2 the header ends with a long, the change log sequence
+ * of the latest change carried, 0 if none is logged, see WatchKeysResponse.getLogSequence.
+ */
+public class ConfChangeResponse extends StringMapMessage {
     public static final short VERSION = 1;
     public static Builder builder() {
         return new Builder();
     }
 
     public static ConfChangeResponse readFrom(ByteBuf buf) {
-        return new ConfChangeResponse(buf);
+        return readFrom(buf, ProtocolContext.V1, false);
     }
 
-    private Map<String, String> data;
-    ConfChangeResponse(String clientId, Map<String, String> data) {
-        super(MessageType.ConfChangeResponse, VERSION, -1, clientId);
-        this.data = data;
+    /**
+     * @param lazy keep the data as a retained slice of buf until it is read, see StringMapMessage.
+     */
+    public static ConfChangeResponse readFrom(ByteBuf buf, ProtocolContext protocol, boolean lazy) {
+        return new ConfChangeResponse(buf, protocol, lazy);
     }
 
-    private ConfChangeResponse(ByteBuf buf) {
-        super(buf, MessageType.ConfChangeResponse);
-        int mapsize = buf.readInt();
+    // no initializer, set by readHeaderFields while the super constructor reads the frame
+    private long logSequence;
 
-        // NOTICE: do not init capicity with mapsize.
-        this.data = new HashMap<>();
-        for (int i = 0; i < mapsize; i++) {
-            String k = buf.readBytes(buf.readInt()).toString(StandardCharsets.UTF_8);
-            String v = buf.readBytes(buf.readInt()).toString(StandardCharsets.UTF_8);
-            data.put(k, v);
+    ConfChangeResponse(short versionId, String clientId, Map<String, byte[]> data, Map<String, Integer> versions,
+            boolean definesKeyIds, KeyIdTable keyIds, long logSequence) {
+        super(MessageType.ConfChangeResponse, versionId, -1, clientId, data, versions, definesKeyIds, keyIds);
+        this.logSequence = logSequence;
+    }
+
+    private ConfChangeResponse(ByteBuf buf, ProtocolContext protocol, boolean lazy) {
+        super(buf, MessageType.ConfChangeResponse, protocol, lazy);
+    }
+
+    @Override void readHeaderFields(ByteBuf buf) {
+        logSequence = isV2() ? buf.readLong() : 0;
+    }
+
+    @Override int headerSize() {
+        return super.headerSize() + (isV2() ? Long.BYTES : 0);
+    }
+
+    @Override void writeHeader(ByteBuf buffer) {
+        super.writeHeader(buffer);
+        if (isV2()) {
+            buffer.writeLong(logSequence);
         }
     }
 
+    /**
+     * @return change log sequence of the latest change carried, 0 if unknown or in protocol v1.
+     */
+    public long getLogSequence() {
+        return logSequence;
+    }
+
+    /**
+     * @return the values decoded as UTF-8.
+     */
     public Map<String, String> getData() {
-        return data;
+        return map();
     }
 
-    @Override public long writeTo(ByteBuf buf) throws IOException {
-        int writerIndex = buf.writerIndex();
-        writeHeader(buf);
-        buf.writeInt(data.size());
-        for (Map.Entry<String, String> entry : data.entrySet()) {
-            buf.writeInt(entry.getKey().getBytes().length).writeBytes(entry.getKey().getBytes());
-            buf.writeInt(entry.getValue().getBytes().length).writeBytes(entry.getValue().getBytes());
-        }
-        return buf.writerIndex() - writerIndex;
+    /**
+     * @return the raw values, which must not be modified.
+     */
+    public Map<String, byte[]> getRawData() {
+        return rawMap();
+    }
+
+    /**
+     * @return versions of the changed values, empty in protocol v1.
+     */
+    public Map<String, Integer> getVersions() {
+        return versions();
+    }
+
+    /**
+     * @return size of the header and the number of entries, where the entries start.
+     */
+    public static int entriesPrefixSize(short versionId, String clientId, int entries) {
+        ConfChangeResponse empty = new ConfChangeResponse(versionId, clientId, Collections.emptyMap(), null, false,
+                null, 0);
+        return empty.headerSize() + empty.countSize(entries);
+    }
+
+    /**
+     * Write the header and the number of entries of a response, whose entries are copied from responses
+     * encoded already with the same version and key ids. So changes of many keys can be merged into one
+     * response without encoding them again.
+     * @param logSequence the latest log sequence of the entries, written in protocol v2 only
+     */
+    public static void writeEntriesPrefix(ByteBuf buf, short versionId, String clientId, int entries,
+            long logSequence) {
+        ConfChangeResponse empty = new ConfChangeResponse(versionId, clientId, Collections.emptyMap(), null, false,
+                null, logSequence);
+        empty.writeHeader(buf);
+        empty.writeCount(buf, entries);
+    }
+
+    /**
+     * @return where the log sequence is in a response of protocol v2, from the start of its header.
+     */
+    public static int logSequenceOffset(String clientId) {
+        ConfChangeResponse empty = new ConfChangeResponse(Protocol_V2, clientId, Collections.emptyMap(), null, false,
+                null, 0);
+        return empty.headerSize() - Long.BYTES;
     }
 
     public static class Builder {
+        private short versionId = VERSION;
         private String clientId;
-        private Map<String, String> configData = new HashMap<>();
+        private KeyIdTable keyIds;
+        private boolean definesKeyIds = false;
+        private Map<String, byte[]> configData = new HashMap<>();
+        private Map<String, Integer> versions = new HashMap<>();
+        private long logSequence = 0;
+
+        public Builder setVersionId(short versionId) {
+            this.versionId = versionId;
+            return this;
+        }
 
+        /**
+         * Ids of the keys, needed by protocol v2.
+         */
+        public Builder setKeyIds(KeyIdTable keyIds) {
+            this.keyIds = keyIds;
+            return this;
+        }
+
+        /**
+         * Send the keys along with their ids in protocol v2, for a channel which may not know them yet.
+         */
+        public Builder setDefinesKeyIds(boolean definesKeyIds) {
+            this.definesKeyIds = definesKeyIds;
+            return this;
+        }
 
         public Builder setClientId(String clientId) {
             this.clientId = clientId;
@@ -63,17 +153,43 @@ public class ConfChangeResponse extends ConfrMessage {
         }
 
         public Builder addConfigData(String key, String value) {
+            configData.put(key, value.getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        /**
+         * @param version version of the value, sent in protocol v2 only
+         */
+        public Builder addConfigData(String key, String value, int version) {
+            return addConfigData(key, value.getBytes(StandardCharsets.UTF_8), version);
+        }
+
+        /**
+         * @param value raw value, sent as it is
+         * @param version version of the value, sent in protocol v2 only
+         */
+        public Builder addConfigData(String key, byte[] value, int version) {
             configData.put(key, value);
+            versions.put(key, version);
+            return this;
+        }
+
+        /**
+         * Change log sequence of the latest change carried, sent in protocol v2 only.
+         */
+        public Builder setLogSequence(long logSequence) {
+            this.logSequence = logSequence;
             return this;
         }
 
         public Builder addConfigData(Map<String, String> config) {
-            configData.putAll(config);
+            config.forEach(this::addConfigData);
             return this;
         }
 
         public ConfChangeResponse build() {
-            return new ConfChangeResponse(clientId, configData);
+            return new ConfChangeResponse(versionId, clientId, configData, versions, definesKeyIds, keyIds,
+                    logSequence);
         }
     }
 }
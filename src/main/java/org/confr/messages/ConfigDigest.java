@@ -0,0 +1,65 @@
+package org.confr.messages;
+
+/**
+ * Digest of the versions of a set of keys, for the client and server to find out cheaply whether they agree.
+ *
+ * Keys are grouped into buckets by the hash of the key, the digest of a bucket is the sum of the mixed hashes
+ * of its (key, version) pairs. So the digest does not depend on the order the keys are added, and only the
+ * keys of the buckets that differ need to be compared one by one.
+ */
+public class ConfigDigest {
+    static final int Max_Buckets = 64;
+    private static final int Keys_Per_Bucket = 8;
+
+    /**
+     * @return number of buckets for a digest of so many keys, a few buckets of about Keys_Per_Bucket keys.
+     */
+    public static int bucketsFor(int keys) {
+        return Math.max(1, Math.min(Max_Buckets, (keys + Keys_Per_Bucket - 1) / Keys_Per_Bucket));
+    }
+
+    public static int bucketOf(String key, int buckets) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % buckets;
+    }
+
+    private final int[] buckets;
+
+    public ConfigDigest(int buckets) {
+        if (buckets <= 0 || buckets > Max_Buckets) {
+            throw new IllegalArgumentException("Digest buckets should be in [1, " + Max_Buckets + "]: " + buckets);
+        }
+        this.buckets = new int[buckets];
+    }
+
+    ConfigDigest(int[] buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * @param version version of the value, WatchKeysRequest.Unknown_Version if not known
+     */
+    public ConfigDigest add(String key, int version) {
+        buckets[bucketOf(key, buckets.length)] += mix(key.hashCode() * 31 + version);
+        return this;
+    }
+
+    public int getBucketCount() {
+        return buckets.length;
+    }
+
+    public int getBucket(int bucket) {
+        return buckets[bucket];
+    }
+
+    // finalizer of murmur3, so close versions of the same key give unrelated hashes.
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
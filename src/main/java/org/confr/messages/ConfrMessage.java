@@ -3,12 +3,28 @@ package org.confr.messages;
 import io.netty.buffer.ByteBuf;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
 
+/**
+ * Base of all messages. The versionId is the protocol version of the message, which decides its format.
+ *
+ * Protocol v1 header: int type, short version, long correlationId, int length prefixed clientId,
+ * and every length of the body is an int.
+ * Protocol v2 header: byte type, zigzag varint correlationId. The version and the clientId are known by
+ * the connection after the Handshake, and every length of the body is a varint.
+ */
 public abstract class ConfrMessage implements Send {
+    public static final short Protocol_V1 = 1;
+    public static final short Protocol_V2 = 2;
+    public static final short Latest_Protocol = Protocol_V2;
+
     private final MessageType type;
     private final short versionId;
     private final String clientId;
     private final long correlationId;
+    // UTF-8 bytes of clientId, encoded once when the message is sized or written
+    private byte[] clientIdBytes;
 
     private static final int Message_Type_Size_In_Bytes = Integer.BYTES;
     private static final int Message_Version_Size_In_Bytes = Short.BYTES;
@@ -26,7 +42,24 @@ public abstract class ConfrMessage implements Send {
         this.type = type;
         this.versionId = buf.readShort();
         this.correlationId = buf.readLong();
-        this.clientId = buf.readBytes(buf.readInt()).toString(StandardCharsets.UTF_8);
+        this.clientId = readString(buf);
+    }
+
+    /**
+     * Read the header after the type, in the format of the protocol.
+     */
+    protected ConfrMessage(ByteBuf buf, MessageType type, ProtocolContext protocol) {
+        if (!protocol.isV2()) {
+            this.type = type;
+            this.versionId = buf.readShort();
+            this.correlationId = buf.readLong();
+            this.clientId = readString(buf);
+        } else {
+            this.type = type;
+            this.versionId = protocol.getVersion();
+            this.correlationId = Varints.readSignedVarlong(buf);
+            this.clientId = protocol.getClientId();
+        }
     }
 
     public MessageType getType() {
@@ -45,17 +78,142 @@ public abstract class ConfrMessage implements Send {
         return clientId;
     }
 
+    boolean isV2() {
+        return versionId >= Protocol_V2;
+    }
+
     void writeHeader(ByteBuf buffer) {
+        if (isV2()) {
+            buffer.writeByte(type.ordinal());
+            Varints.writeSignedVarlong(buffer, correlationId);
+            return;
+        }
+        byte[] clientIdBytes = clientIdBytes();
         buffer.writeInt(type.ordinal())
         .writeShort(versionId)
         .writeLong(correlationId)
-        .writeInt(clientId.getBytes().length).writeBytes(clientId.getBytes());
+        .writeInt(clientIdBytes.length).writeBytes(clientIdBytes);
     }
 
-    private int headerSize() {
+    int headerSize() {
+        if (isV2()) {
+            return Byte.BYTES + Varints.signedVarlongSize(correlationId);
+        }
         return Message_Type_Size_In_Bytes +
                 Message_Version_Size_In_Bytes +
                 CorrelationId_Size_In_Bytes +
-                ClientId_Field_Size_In_Bytes + clientId.getBytes().length;
+                ClientId_Field_Size_In_Bytes + clientIdBytes().length;
+    }
+
+    private byte[] clientIdBytes() {
+        if (clientIdBytes == null) {
+            clientIdBytes = clientId.getBytes(StandardCharsets.UTF_8);
+        }
+        return clientIdBytes;
+    }
+
+    /**
+     * Read a string prefixed by its length straight from the buffer.
+     */
+    static String readString(ByteBuf buf) {
+        int length = buf.readInt();
+        String s = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return s;
+    }
+
+    /**
+     * Read a string prefixed by its varint length, protocol v2.
+     */
+    static String readVarString(ByteBuf buf) {
+        int length = Varints.readVarint(buf);
+        String s = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return s;
+    }
+
+    /**
+     * Read a field prefixed by its length in the format of the message, the bytes are copied out of the buffer.
+     */
+    byte[] readBytes(ByteBuf buf) {
+        byte[] bytes = new byte[isV2() ? Varints.readVarint(buf) : buf.readInt()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the length of the string field in the format of the message.
+     */
+    int fieldSize(byte[] field) {
+        return (isV2() ? Varints.varintSize(field.length) : Integer.BYTES) + field.length;
+    }
+
+    /**
+     * Write the field prefixed by its length in the format of the message.
+     */
+    void writeField(ByteBuf buf, byte[] field) {
+        if (isV2()) {
+            Varints.writeVarint(buf, field.length);
+        } else {
+            buf.writeInt(field.length);
+        }
+        buf.writeBytes(field);
+    }
+
+    /**
+     * Write the number of the fields, or entries, in the format of the message.
+     */
+    void writeCount(ByteBuf buf, int count) {
+        if (isV2()) {
+            Varints.writeVarint(buf, count);
+        } else {
+            buf.writeInt(count);
+        }
+    }
+
+    int countSize(int count) {
+        return isV2() ? Varints.varintSize(count) : Integer.BYTES;
+    }
+
+    static byte[][] utf8(Collection<String> strings) {
+        byte[][] fields = new byte[strings.size()][];
+        int i = 0;
+        for (String s : strings) {
+            fields[i++] = s.getBytes(StandardCharsets.UTF_8);
+        }
+        return fields;
+    }
+
+    /**
+     * @return the entries of the map, UTF-8 bytes of the key followed by its raw value.
+     */
+    static byte[][] fields(Map<String, byte[]> map) {
+        byte[][] fields = new byte[map.size() * 2][];
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : map.entrySet()) {
+            fields[i++] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            fields[i++] = entry.getValue();
+        }
+        return fields;
+    }
+
+    /**
+     * @return size of the fields written by writeFields.
+     */
+    int fieldsSize(byte[][] fields) {
+        int size = 0;
+        for (byte[] field : fields) {
+            size += fieldSize(field);
+        }
+        return size;
+    }
+
+    /**
+     * Write every field prefixed by its length.
+     */
+    void writeFields(ByteBuf buf, byte[][] fields) {
+        for (byte[] field : fields) {
+            writeField(buf, field);
+        }
     }
 }
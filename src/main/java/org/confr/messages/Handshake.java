@@ -0,0 +1,65 @@
+package org.confr.messages;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * First message of a connection, the client sends the latest protocol version it supports,
+ * the server replies with the version both sides use for the following messages.
+ * Handshake itself is always in protocol v1, clients never sending it keep using v1.
+ *
+ * The reply of the server carries the epoch of its change log too, so the client knows whether its
+ * change log position is meaningful to the server, see WatchKeysRequest. The epoch is appended after
+ * the version, where older peers ignore it.
+ */
+public class Handshake extends ConfrMessage {
+    private static final short VERSION = Protocol_V1;
+
+    public static Handshake readFrom(ByteBuf buf) {
+        return new Handshake(buf);
+    }
+
+    private final short protocolVersion;
+    // 0 if not sent
+    private final long logEpoch;
+
+    public Handshake(long correlationId, String clientId, short protocolVersion) {
+        this(correlationId, clientId, protocolVersion, 0);
+    }
+
+    public Handshake(long correlationId, String clientId, short protocolVersion, long logEpoch) {
+        super(MessageType.Handshake, VERSION, correlationId, clientId);
+        this.protocolVersion = protocolVersion;
+        this.logEpoch = logEpoch;
+    }
+
+    private Handshake(ByteBuf buf) {
+        super(buf, MessageType.Handshake);
+        this.protocolVersion = buf.readShort();
+        this.logEpoch = buf.readableBytes() >= Long.BYTES ? buf.readLong() : 0;
+    }
+
+    public short getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return epoch of the change log of the server, 0 if not sent.
+     */
+    public long getLogEpoch() {
+        return logEpoch;
+    }
+
+    @Override public long sizeInBytes() {
+        return headerSize() + Short.BYTES + (logEpoch != 0 ? Long.BYTES : 0);
+    }
+
+    @Override public long writeTo(ByteBuf buf) {
+        int writeStartIdx = buf.writerIndex();
+        writeHeader(buf);
+        buf.writeShort(protocolVersion);
+        if (logEpoch != 0) {
+            buf.writeLong(logEpoch);
+        }
+        return buf.writerIndex() - writeStartIdx;
+    }
+}
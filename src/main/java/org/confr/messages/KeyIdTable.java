@@ -0,0 +1,48 @@
+package org.confr.messages;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Integer ids of keys in protocol v2. WatchKeysResponse defines the id of every key it carries,
+ * ConfChangeResponse refers to keys by id only, unless the channel may not know the key yet.
+ *
+ * The server assigns ids with idOf, the client learns them with register.
+ * This class is thread safe.
+ */
+public class KeyIdTable {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, String> keys = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(0);
+
+    /**
+     * @return id of the key, a new id is assigned if the key has none yet.
+     */
+    public int idOf(String key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        return ids.computeIfAbsent(key, k -> {
+            int newId = nextId.getAndIncrement();
+            keys.put(newId, k);
+            return newId;
+        });
+    }
+
+    /**
+     * @return key of the id, null if the id is unknown.
+     */
+    public String keyOf(int id) {
+        return keys.get(id);
+    }
+
+    public void register(int id, String key) {
+        keys.put(id, key);
+        ids.put(key, id);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
@@ -8,5 +8,8 @@ public enum MessageType {
     ACK,
     PING,
     PONG, // sent from client to server
-    ConfChangeResponse
+    ConfChangeResponse,
+    Handshake,
+    SyncRequest,
+    SyncResponse
 }
@@ -2,19 +2,32 @@ package org.confr.messages;
 
 import io.netty.buffer.ByteBuf;
 
+import java.nio.charset.StandardCharsets;
+
 public class Ping extends ConfrMessage {
-    private static final String PING = "PING";
+    private static final byte[] PING = "PING".getBytes(StandardCharsets.UTF_8);
     public static Ping readFrom(ByteBuf buf) {
-        return new Ping(buf);
+        return readFrom(buf, ProtocolContext.V1);
+    }
+
+    public static Ping readFrom(ByteBuf buf, ProtocolContext protocol) {
+        return new Ping(buf, protocol);
     }
 
     public Ping(short versionId,long correlationId, String clientId) {
         super(MessageType.PING, versionId, correlationId, clientId);
     }
 
-    private Ping(ByteBuf buf) {
-        super(buf, MessageType.PING);
-        buf.skipBytes(buf.readInt());
+    private Ping(ByteBuf buf, ProtocolContext protocol) {
+        super(buf, MessageType.PING, protocol);
+        // protocol v2 drops the constant payload
+        if (!protocol.isV2()) {
+            buf.skipBytes(buf.readInt());
+        }
+    }
+
+    @Override public long sizeInBytes() {
+        return headerSize() + (isV2() ? 0 : Integer.BYTES + PING.length);
     }
 
     @Override public long writeTo(ByteBuf buf) {
@@ -22,8 +35,9 @@ public class Ping extends ConfrMessage {
 
         writeHeader(buf);
 
-        byte[] bytes = PING.getBytes();
-        buf.writeInt(bytes.length).writeBytes(bytes);
+        if (!isV2()) {
+            buf.writeInt(PING.length).writeBytes(PING);
+        }
 
         return buf.writerIndex() - writeStartIdx;
     }
@@ -3,12 +3,17 @@ package org.confr.messages;
 import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 public class Pong extends ConfrMessage {
-    private static final String PONG = "PONG";
+    private static final byte[] PONG = "PONG".getBytes(StandardCharsets.UTF_8);
 
     public static Pong readFrom(ByteBuf buf) {
-        return new Pong(buf);
+        return readFrom(buf, ProtocolContext.V1);
+    }
+
+    public static Pong readFrom(ByteBuf buf, ProtocolContext protocol) {
+        return new Pong(buf, protocol);
     }
 
 
@@ -16,17 +21,25 @@ public class Pong extends ConfrMessage {
         super(MessageType.PONG, versionId, correlationId, clientId);
     }
 
-    private Pong(ByteBuf buf) {
-        super(buf, MessageType.PONG);
-        buf.skipBytes(buf.readInt());
+    private Pong(ByteBuf buf, ProtocolContext protocol) {
+        super(buf, MessageType.PONG, protocol);
+        // protocol v2 drops the constant payload
+        if (!protocol.isV2()) {
+            buf.skipBytes(buf.readInt());
+        }
+    }
+
+    @Override public long sizeInBytes() {
+        return headerSize() + (isV2() ? 0 : Integer.BYTES + PONG.length);
     }
 
     @Override public long writeTo(ByteBuf buf) throws IOException {
         int writeStartIdx = buf.writerIndex();
         writeHeader(buf);
 
-        byte[] bytes = PONG.getBytes();
-        buf.writeInt(bytes.length).writeBytes(bytes);
+        if (!isV2()) {
+            buf.writeInt(PONG.length).writeBytes(PONG);
+        }
 
         return buf.writerIndex() - writeStartIdx;
     }
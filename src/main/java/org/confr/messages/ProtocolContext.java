@@ -0,0 +1,40 @@
+package org.confr.messages;
+
+/**
+ * Protocol negotiated by a connection with Handshake, needed to read messages of protocol v2,
+ * which carry neither the client id nor the full keys.
+ */
+public class ProtocolContext {
+    public static final ProtocolContext V1 = new ProtocolContext(ConfrMessage.Protocol_V1, null, null);
+
+    private final short version;
+    private final String clientId;
+    private final KeyIdTable keyIds;
+
+    /**
+     * @param version negotiated protocol version
+     * @param clientId client id of the connection, sent once in the handshake
+     * @param keyIds key ids of the connection
+     */
+    public ProtocolContext(short version, String clientId, KeyIdTable keyIds) {
+        this.version = version;
+        this.clientId = clientId;
+        this.keyIds = keyIds;
+    }
+
+    public short getVersion() {
+        return version;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public KeyIdTable getKeyIds() {
+        return keyIds;
+    }
+
+    public boolean isV2() {
+        return version >= ConfrMessage.Protocol_V2;
+    }
+}
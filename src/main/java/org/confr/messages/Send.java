@@ -11,5 +11,9 @@ import java.nio.channels.WritableByteChannel;
 public interface Send {
 //    long writeTo(WritableByteChannel channel) throws IOException;
     long writeTo(ByteBuf buf) throws IOException;
-//    long sizeInBytes();
+
+    /**
+     * @return the exact number of bytes writeTo writes.
+     */
+    long sizeInBytes();
 }
@@ -0,0 +1,286 @@
+package org.confr.messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message carrying a map from string keys to raw values. Values are copied out of the frame as they are,
+ * and decoded as UTF-8 only when read as strings.
+ *
+ * In protocol v2 keys are sent by their id, see KeyIdTable, and every value goes with its version.
+ * An entry is the id shifted left by one, with the low bit set if the key follows and defines the id,
+ * then the version and the value. A message defining key ids defines every key it carries, the others
+ * define none unless built with definesKeyIds.
+ *
+ * When read lazily the map stays a retained slice of the frame until it is first read,
+ * the slice is released then, or when the message is released if the map is never read.
+ * A message read eagerly or built locally holds no buffer, releasing it does nothing.
+ */
+abstract class StringMapMessage extends ConfrMessage implements ReferenceCounted {
+    private final Reference reference = new Reference();
+    private final boolean definesKeyIds;
+    // ids of the keys in protocol v2, assigned by the server and learned by the client
+    private final KeyIdTable keyIds;
+    // null until decoded when read lazily
+    private Map<String, byte[]> map;
+    // map with the values decoded as UTF-8, null until first asked for
+    private Map<String, String> strings;
+    // versions of the values, protocol v2 only
+    private Map<String, Integer> versions;
+    // the undecoded map, null once decoded
+    private ByteBuf undecoded;
+    private int undecodedSize;
+    // UTF-8 bytes of map, encoded once when the message is sized or written
+    private byte[][] encoded;
+    // ids and versions of the keys of encoded, protocol v2 only
+    private int[] encodedIds;
+    private int[] encodedVersions;
+
+    /**
+     * @param versions versions of the values, WatchKeysRequest.Unknown_Version for a missing one,
+     *                 sent in protocol v2 only
+     * @param keyIds needed by protocol v2 only
+     */
+    StringMapMessage(MessageType type, short versionId, long correlationId, String clientId,
+            Map<String, byte[]> map, Map<String, Integer> versions, boolean definesKeyIds, KeyIdTable keyIds) {
+        super(type, versionId, correlationId, clientId);
+        this.map = map;
+        this.versions = versions;
+        this.definesKeyIds = definesKeyIds;
+        this.keyIds = keyIds;
+    }
+
+    StringMapMessage(ByteBuf buf, MessageType type, ProtocolContext protocol, boolean lazy) {
+        super(buf, type, protocol);
+        this.definesKeyIds = false;
+        this.keyIds = protocol.getKeyIds();
+        readHeaderFields(buf);
+        int size = protocol.isV2() ? Varints.readVarint(buf) : buf.readInt();
+        int start = buf.readerIndex();
+        // ids defined by the message must be known before the following messages are read
+        if (lazy && !skipEntries(buf, size)) {
+            this.undecoded = buf.retainedSlice(start, buf.readerIndex() - start);
+            this.undecodedSize = size;
+        } else {
+            buf.readerIndex(start);
+            this.map = readMap(buf, size);
+        }
+    }
+
+    /**
+     * Read the fields a message writes after the header, before its entries, see writeHeader.
+     * Called by the constructor, so the fields set must not have an initializer.
+     */
+    void readHeaderFields(ByteBuf buf) {
+    }
+
+    /**
+     * @return the map with the values decoded as UTF-8.
+     */
+    synchronized Map<String, String> map() {
+        if (strings == null) {
+            Map<String, String> decoded = new HashMap<>();
+            rawMap().forEach((key, value) -> decoded.put(key, new String(value, StandardCharsets.UTF_8)));
+            strings = decoded;
+        }
+        return strings;
+    }
+
+    /**
+     * @return the map with the raw values, which must not be modified.
+     */
+    synchronized Map<String, byte[]> rawMap() {
+        if (map == null) {
+            if (reference.refCnt() == 0) {
+                throw new IllegalStateException("Message " + getType() + " is released before its data is read");
+            }
+            map = readMap(undecoded, undecodedSize);
+            undecoded.release();
+            undecoded = null;
+        }
+        return map;
+    }
+
+    /**
+     * @return versions of the values, empty in protocol v1.
+     */
+    synchronized Map<String, Integer> versions() {
+        rawMap();
+        return versions == null ? Collections.emptyMap() : versions;
+    }
+
+    KeyIdTable keyIds() {
+        return keyIds;
+    }
+
+    /**
+     * @return true if any of the entries defines a key id.
+     */
+    private boolean skipEntries(ByteBuf buf, int size) {
+        boolean defines = false;
+        for (int i = 0; i < size; i++) {
+            if (isV2()) {
+                if ((Varints.readVarint(buf) & 1) != 0) {
+                    buf.skipBytes(Varints.readVarint(buf));
+                    defines = true;
+                }
+                Varints.readSignedVarlong(buf);
+                buf.skipBytes(Varints.readVarint(buf));
+            } else {
+                buf.skipBytes(buf.readInt());
+                buf.skipBytes(buf.readInt());
+            }
+        }
+        return defines;
+    }
+
+    private Map<String, byte[]> readMap(ByteBuf buf, int size) {
+        // NOTICE: do not init capicity with mapsize.
+        Map<String, byte[]> map = new HashMap<>();
+        if (isV2()) {
+            versions = new HashMap<>();
+        }
+        for (int i = 0; i < size; i++) {
+            if (!isV2()) {
+                String k = readString(buf);
+                byte[] v = readBytes(buf);
+                map.put(k, v);
+                continue;
+            }
+
+            int flaggedId = Varints.readVarint(buf);
+            int id = flaggedId >>> 1;
+            String k;
+            if ((flaggedId & 1) != 0) {
+                k = readVarString(buf);
+                keyIds.register(id, k);
+            } else {
+                k = keyIds.keyOf(id);
+            }
+            int version = (int) Varints.readSignedVarlong(buf);
+            byte[] v = readBytes(buf);
+            // a change may be pushed before the response defining the id of its key,
+            // the response carries a value not older than the change anyway.
+            if (k != null) {
+                map.put(k, v);
+                versions.put(k, version);
+            }
+        }
+        return map;
+    }
+
+    @Override public long sizeInBytes() {
+        byte[][] fields = encoded();
+        long size = headerSize() + countSize(fields.length / 2);
+        if (!isV2()) {
+            return size + fieldsSize(fields);
+        }
+        for (int i = 0; i < fields.length; i += 2) {
+            size += Varints.varintSize(flaggedId(encodedIds[i / 2])) + Varints.signedVarlongSize(encodedVersions[i / 2])
+                    + fieldSize(fields[i + 1]);
+            if (definesKeyIds) {
+                size += fieldSize(fields[i]);
+            }
+        }
+        return size;
+    }
+
+    @Override public long writeTo(ByteBuf buf) throws IOException {
+        int writerIndex = buf.writerIndex();
+        writeHeader(buf);
+        byte[][] fields = encoded();
+        writeCount(buf, fields.length / 2);
+        if (!isV2()) {
+            writeFields(buf, fields);
+        } else {
+            for (int i = 0; i < fields.length; i += 2) {
+                Varints.writeVarint(buf, flaggedId(encodedIds[i / 2]));
+                if (definesKeyIds) {
+                    writeField(buf, fields[i]);
+                }
+                Varints.writeSignedVarlong(buf, encodedVersions[i / 2]);
+                writeField(buf, fields[i + 1]);
+            }
+        }
+        return buf.writerIndex() - writerIndex;
+    }
+
+    private int flaggedId(int id) {
+        return id << 1 | (definesKeyIds ? 1 : 0);
+    }
+
+    private byte[][] encoded() {
+        if (encoded == null) {
+            byte[][] fields = fields(rawMap());
+            if (isV2()) {
+                if (keyIds == null) {
+                    throw new IllegalStateException("Message " + getType() + " of protocol v2 needs key ids");
+                }
+                int[] ids = new int[fields.length / 2];
+                int[] valueVersions = new int[ids.length];
+                int i = 0;
+                for (String key : rawMap().keySet()) {
+                    Integer version = versions == null ? null : versions.get(key);
+                    valueVersions[i] = version == null ? WatchKeysRequest.Unknown_Version : version;
+                    ids[i++] = keyIds.idOf(key);
+                }
+                encodedIds = ids;
+                encodedVersions = valueVersions;
+            }
+            encoded = fields;
+        }
+        return encoded;
+    }
+
+    @Override public int refCnt() {
+        return reference.refCnt();
+    }
+
+    @Override public StringMapMessage retain() {
+        reference.retain();
+        return this;
+    }
+
+    @Override public StringMapMessage retain(int increment) {
+        reference.retain(increment);
+        return this;
+    }
+
+    @Override public StringMapMessage touch() {
+        return this;
+    }
+
+    @Override public StringMapMessage touch(Object hint) {
+        return this;
+    }
+
+    @Override public boolean release() {
+        return reference.release();
+    }
+
+    @Override public boolean release(int decrement) {
+        return reference.release(decrement);
+    }
+
+    private class Reference extends AbstractReferenceCounted {
+        @Override protected void deallocate() {
+            synchronized (StringMapMessage.this) {
+                if (undecoded != null) {
+                    undecoded.release();
+                    undecoded = null;
+                }
+            }
+        }
+
+        @Override public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+}
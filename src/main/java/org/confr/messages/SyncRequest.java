@@ -0,0 +1,52 @@
+package org.confr.messages;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Sent by the client periodically with the digest of the versions of its watched keys,
+ * the server replies with a SyncResponse listing the keys of the buckets that differ.
+ * The digest is a fixed int per bucket in both protocols.
+ */
+public class SyncRequest extends ConfrMessage {
+    public static SyncRequest readFrom(ByteBuf buf, ProtocolContext protocol) {
+        return new SyncRequest(buf, protocol);
+    }
+
+    private final ConfigDigest digest;
+
+    public SyncRequest(short versionId, long correlationId, String clientId, ConfigDigest digest) {
+        super(MessageType.SyncRequest, versionId, correlationId, clientId);
+        this.digest = digest;
+    }
+
+    private SyncRequest(ByteBuf buf, ProtocolContext protocol) {
+        super(buf, MessageType.SyncRequest, protocol);
+        int size = protocol.isV2() ? Varints.readVarint(buf) : buf.readInt();
+        if (size <= 0 || size > ConfigDigest.Max_Buckets) {
+            throw new IllegalArgumentException("Invalid number of digest buckets " + size);
+        }
+        int[] buckets = new int[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = buf.readInt();
+        }
+        this.digest = new ConfigDigest(buckets);
+    }
+
+    public ConfigDigest getDigest() {
+        return digest;
+    }
+
+    @Override public long sizeInBytes() {
+        return headerSize() + countSize(digest.getBucketCount()) + Integer.BYTES * digest.getBucketCount();
+    }
+
+    @Override public long writeTo(ByteBuf buf) {
+        int writerIndex = buf.writerIndex();
+        writeHeader(buf);
+        writeCount(buf, digest.getBucketCount());
+        for (int i = 0; i < digest.getBucketCount(); i++) {
+            buf.writeInt(digest.getBucket(i));
+        }
+        return buf.writerIndex() - writerIndex;
+    }
+}
@@ -0,0 +1,109 @@
+package org.confr.messages;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reply of SyncRequest, the buckets whose digest differs and the versions known by the server of their keys.
+ * Empty when the client is in sync. The client watches again the keys of these buckets whose version it does not
+ * agree on, including the keys the server does not know at all.
+ *
+ * Keys are sent by their id in protocol v2, see KeyIdTable, and by name in protocol v1.
+ */
+public class SyncResponse extends ConfrMessage {
+    public static SyncResponse readFrom(ByteBuf buf, ProtocolContext protocol) {
+        return new SyncResponse(buf, protocol);
+    }
+
+    private final int[] differingBuckets;
+    private final Map<String, Integer> versions;
+    // needed by protocol v2 only
+    private final KeyIdTable keyIds;
+
+    public SyncResponse(short versionId, long correlationId, String clientId, int[] differingBuckets,
+            Map<String, Integer> versions, KeyIdTable keyIds) {
+        super(MessageType.SyncResponse, versionId, correlationId, clientId);
+        this.differingBuckets = differingBuckets;
+        this.versions = versions;
+        this.keyIds = keyIds;
+    }
+
+    private SyncResponse(ByteBuf buf, ProtocolContext protocol) {
+        super(buf, MessageType.SyncResponse, protocol);
+        this.keyIds = protocol.getKeyIds();
+        int buckets = protocol.isV2() ? Varints.readVarint(buf) : buf.readInt();
+        if (buckets < 0 || buckets > ConfigDigest.Max_Buckets) {
+            throw new IllegalArgumentException("Invalid number of digest buckets " + buckets);
+        }
+        this.differingBuckets = new int[buckets];
+        for (int i = 0; i < buckets; i++) {
+            differingBuckets[i] = protocol.isV2() ? Varints.readVarint(buf) : buf.readInt();
+        }
+        int size = protocol.isV2() ? Varints.readVarint(buf) : buf.readInt();
+        this.versions = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            if (!protocol.isV2()) {
+                String key = readString(buf);
+                versions.put(key, buf.readInt());
+                continue;
+            }
+            String key = keyIds.keyOf(Varints.readVarint(buf));
+            int version = (int) Varints.readSignedVarlong(buf);
+            // ids are defined by the watch responses, a key never watched on this connection is left out.
+            if (key != null) {
+                versions.put(key, version);
+            }
+        }
+    }
+
+    public int[] getDifferingBuckets() {
+        return differingBuckets;
+    }
+
+    /**
+     * @return versions of the keys in the buckets that differ, WatchKeysRequest.Unknown_Version if the server
+     * does not know the value of the key yet.
+     */
+    public Map<String, Integer> getVersions() {
+        return versions;
+    }
+
+    @Override public long sizeInBytes() {
+        long size = headerSize() + countSize(differingBuckets.length) + countSize(versions.size());
+        for (int bucket : differingBuckets) {
+            size += countSize(bucket);
+        }
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            if (isV2()) {
+                size += Varints.varintSize(keyIds.idOf(entry.getKey()))
+                        + Varints.signedVarlongSize(entry.getValue());
+            } else {
+                size += fieldSize(entry.getKey().getBytes(StandardCharsets.UTF_8)) + Integer.BYTES;
+            }
+        }
+        return size;
+    }
+
+    @Override public long writeTo(ByteBuf buf) {
+        int writerIndex = buf.writerIndex();
+        writeHeader(buf);
+        writeCount(buf, differingBuckets.length);
+        for (int bucket : differingBuckets) {
+            writeCount(buf, bucket);
+        }
+        writeCount(buf, versions.size());
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            if (isV2()) {
+                Varints.writeVarint(buf, keyIds.idOf(entry.getKey()));
+                Varints.writeSignedVarlong(buf, entry.getValue());
+            } else {
+                writeField(buf, entry.getKey().getBytes(StandardCharsets.UTF_8));
+                buf.writeInt(entry.getValue());
+            }
+        }
+        return buf.writerIndex() - writerIndex;
+    }
+}
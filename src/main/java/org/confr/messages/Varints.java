@@ -0,0 +1,72 @@
+package org.confr.messages;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Variable length integers of protocol v2, 7 bits per byte, least significant group first.
+ * Signed longs are zigzag encoded, so small negative numbers stay small.
+ */
+final class Varints {
+    private Varints() {
+    }
+
+    static void writeVarint(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    static int readVarint(ByteBuf buf) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeSignedVarlong(ByteBuf buf, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buf.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buf.writeByte((int) zigzag);
+    }
+
+    static long readSignedVarlong(ByteBuf buf) {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buf.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Malformed varlong");
+    }
+
+    static int signedVarlongSize(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((zigzag & ~0x7FL) != 0) {
+            zigzag >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -3,62 +3,183 @@ package org.confr.messages;
 import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * In protocol v2 every key goes with the version of its value known by the client, Unknown_Version if none,
+ * so the response carries only the keys whose value has changed since, see WatchKeysResponse.
+ *
+ * A client knowing its position in the change log of the server sends the position along with the versions.
+ * A key with a known version is sent if its version differs, a key without one is sent if the server cannot
+ * replay the changes since the position from memory, or a change of the key is among them.
+ * The position follows the keys, as the epoch of the log, then the sequence if the epoch is not 0.
+ *
+ * A key ending with the wildcard segment, like "app/payments/**", watches every key under the prefix at any depth,
+ * the response carries all of them. Versions and the change log position are used for the other keys only.
+ */
 public class WatchKeysRequest extends ConfrMessage {
+    /**
+     * Version of a value the client does not know, never equal to the version of a real value.
+     */
+    public static final int Unknown_Version = -1;
+
+    /**
+     * Last segment of a key watching the whole subtree of its prefix, "**" alone watches every key.
+     */
+    public static final String Wildcard = "**";
+
+    public static boolean isPrefixKey(String key) {
+        return key.equals(Wildcard) || key.endsWith("/" + Wildcard);
+    }
+
+    /**
+     * @return the prefix watched by a prefix key, empty for every key.
+     */
+    public static String prefixOf(String prefixKey) {
+        return prefixKey.length() <= Wildcard.length() ? ""
+                : prefixKey.substring(0, prefixKey.length() - Wildcard.length() - 1);
+    }
 
     public static WatchKeysRequestBuilder builder() {
         return new WatchKeysRequestBuilder();
     }
 
     public static WatchKeysRequest readFrom(ByteBuf buf) {
-        return new WatchKeysRequest(buf);
+        return readFrom(buf, ProtocolContext.V1);
+    }
+
+    public static WatchKeysRequest readFrom(ByteBuf buf, ProtocolContext protocol) {
+        return new WatchKeysRequest(buf, protocol);
     }
 
     private static final short VERSION = 1;
 
     private final Set<String> keys;
-
-    WatchKeysRequest(long correlationId, String clientId, Set<String> keys) {
-        super(MessageType.WatchKeysRequest, VERSION, correlationId, clientId);
+    // versions known by the client, protocol v2 only
+    private final Map<String, Integer> knownVersions;
+    // position in the change log of the server known by the client, protocol v2 only, epoch 0 if none
+    private final long sinceEpoch;
+    private final long sinceSequence;
+    // UTF-8 bytes of keys, encoded once when the message is sized or written
+    private byte[][] encodedKeys;
+
+    WatchKeysRequest(short versionId, long correlationId, String clientId, Set<String> keys,
+            Map<String, Integer> knownVersions, long sinceEpoch, long sinceSequence) {
+        super(MessageType.WatchKeysRequest, versionId, correlationId, clientId);
         this.keys = keys;
+        this.knownVersions = knownVersions;
+        this.sinceEpoch = sinceEpoch;
+        this.sinceSequence = sinceSequence;
     }
 
     // init request from buf
-    private WatchKeysRequest(ByteBuf buf) {
-        super(buf, MessageType.WatchKeysRequest);
-        int size = buf.readInt();
+    private WatchKeysRequest(ByteBuf buf, ProtocolContext protocol) {
+        super(buf, MessageType.WatchKeysRequest, protocol);
+        int size = protocol.isV2() ? Varints.readVarint(buf) : buf.readInt();
         this.keys = new HashSet<>(size);
+        this.knownVersions = new HashMap<>();
         for (int i = 0; i < size; i++) {
-            keys.add(buf.readBytes(buf.readInt()).toString(StandardCharsets.UTF_8));
+            if (!protocol.isV2()) {
+                keys.add(readString(buf));
+                continue;
+            }
+            String key = readVarString(buf);
+            int version = (int) Varints.readSignedVarlong(buf);
+            keys.add(key);
+            if (version != Unknown_Version) {
+                knownVersions.put(key, version);
+            }
         }
+        this.sinceEpoch = protocol.isV2() ? Varints.readSignedVarlong(buf) : 0;
+        this.sinceSequence = sinceEpoch != 0 ? Varints.readSignedVarlong(buf) : 0;
     }
 
     public Set<String> getKeys() {
         return keys;
     }
 
+    /**
+     * @return version of the value of the key known by the client, Unknown_Version if none or in protocol v1.
+     */
+    public int getKnownVersion(String key) {
+        return knownVersions.getOrDefault(key, Unknown_Version);
+    }
+
+    /**
+     * @return epoch of the change log position known by the client, 0 if none.
+     */
+    public long getSinceEpoch() {
+        return sinceEpoch;
+    }
+
+    public long getSinceSequence() {
+        return sinceSequence;
+    }
+
+    @Override public long sizeInBytes() {
+        byte[][] fields = encodedKeys();
+        long size = headerSize() + countSize(fields.length) + fieldsSize(fields);
+        if (isV2()) {
+            for (String key : keys) {
+                size += Varints.signedVarlongSize(getKnownVersion(key));
+            }
+            size += Varints.signedVarlongSize(sinceEpoch);
+            if (sinceEpoch != 0) {
+                size += Varints.signedVarlongSize(sinceSequence);
+            }
+        }
+        return size;
+    }
+
     @Override public long writeTo(ByteBuf buf) throws IOException {
         int writerStart = buf.writerIndex();
         writeHeader(buf);
 
         // write keys
-        buf.writeInt(keys.size());
-        for (String key : keys) {
-            buf.writeInt(key.getBytes().length).writeBytes(key.getBytes());
+        byte[][] fields = encodedKeys();
+        writeCount(buf, fields.length);
+        if (!isV2()) {
+            writeFields(buf, fields);
+        } else {
+            int i = 0;
+            for (String key : keys) {
+                writeField(buf, fields[i++]);
+                Varints.writeSignedVarlong(buf, getKnownVersion(key));
+            }
+            Varints.writeSignedVarlong(buf, sinceEpoch);
+            if (sinceEpoch != 0) {
+                Varints.writeSignedVarlong(buf, sinceSequence);
+            }
         }
 
         return buf.writerIndex() - writerStart;
     }
 
+    private byte[][] encodedKeys() {
+        if (encodedKeys == null) {
+            encodedKeys = utf8(keys);
+        }
+        return encodedKeys;
+    }
+
 
     public static class WatchKeysRequestBuilder {
+        private short versionId = VERSION;
         private long correlationId;
         private String clientId;
         private Set<String> keys = new HashSet<>();
+        private Map<String, Integer> knownVersions = new HashMap<>();
+        private long sinceEpoch = 0;
+        private long sinceSequence = 0;
+        public WatchKeysRequestBuilder setVersionId(short versionId) {
+            this.versionId = versionId;
+            return this;
+        }
+
         public WatchKeysRequestBuilder setCorrelationId(long correlationId) {
             this.correlationId = correlationId;
             return this;
@@ -74,13 +195,34 @@ public class WatchKeysRequest extends ConfrMessage {
             return this;
         }
 
+        /**
+         * @param knownVersion version of the value known by the client, sent in protocol v2 only
+         */
+        public WatchKeysRequestBuilder addWatchKey(String key, int knownVersion) {
+            keys.add(key);
+            if (knownVersion != Unknown_Version) {
+                knownVersions.put(key, knownVersion);
+            }
+            return this;
+        }
+
         public WatchKeysRequestBuilder addWatchKeys(Collection<String> keys) {
             this.keys.addAll(keys);
             return this;
         }
 
+        /**
+         * Position in the change log of the server known by the client, protocol v2 only.
+         */
+        public WatchKeysRequestBuilder setSince(long epoch, long sequence) {
+            this.sinceEpoch = epoch;
+            this.sinceSequence = sequence;
+            return this;
+        }
+
         public WatchKeysRequest build() {
-            return new WatchKeysRequest(correlationId, clientId, keys);
+            return new WatchKeysRequest(versionId, correlationId, clientId, keys, knownVersions, sinceEpoch,
+                    sinceSequence);
         }
 
     }
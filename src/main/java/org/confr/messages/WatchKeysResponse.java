@@ -4,61 +4,172 @@ import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-
-public class WatchKeysResponse extends ConfrMessage {
+import java.util.Set;
+
+/**
+ * In protocol v2 the response carries only the keys whose version differs from the one known by the client,
+ * see WatchKeysRequest. The other keys follow the entries as id and key, so the client learns their ids
+ * without receiving their values again.
+ * The position of the server in its change log as of the response comes last, as the epoch, then the sequence
+ * if the epoch is not 0. Every change after the position is pushed to the client.
+ */
+public class WatchKeysResponse extends StringMapMessage {
     public static Builder builder() {
         return new Builder();
     }
     public static WatchKeysResponse readFrom(ByteBuf buf) {
-        return new WatchKeysResponse(buf);
+        return readFrom(buf, ProtocolContext.V1, false);
     }
 
+    /**
+     * @param lazy keep the config data as a retained slice of buf until it is read, see StringMapMessage.
+     *             Never lazy in protocol v2, where the response defines the ids of its keys.
+     */
+    public static WatchKeysResponse readFrom(ByteBuf buf, ProtocolContext protocol, boolean lazy) {
+        return new WatchKeysResponse(buf, protocol, lazy);
+    }
 
-    private static final short VERSION = 1;
-    private Map<String, String> configData = new HashMap<>();
 
+    private static final short VERSION = 1;
 
-    private WatchKeysResponse(long correlationId, String clientId, Map<String, String> configData) {
-        super(MessageType.WatchKeysResponse, VERSION, correlationId, clientId);
-        this.configData = configData;
+    // keys whose value known by the client is up to date, protocol v2 only
+    private final Set<String> unchangedKeys;
+    // UTF-8 bytes of unchangedKeys, encoded once when the message is sized or written
+    private byte[][] encodedUnchangedKeys;
+    // position in the change log of the server, protocol v2 only, epoch 0 if none
+    private final long logEpoch;
+    private final long logSequence;
+
+    private WatchKeysResponse(short versionId, long correlationId, String clientId, Map<String, byte[]> configData,
+            Map<String, Integer> versions, Set<String> unchangedKeys, KeyIdTable keyIds, long logEpoch,
+            long logSequence) {
+        super(MessageType.WatchKeysResponse, versionId, correlationId, clientId, configData, versions, true, keyIds);
+        this.unchangedKeys = unchangedKeys;
+        this.logEpoch = logEpoch;
+        this.logSequence = logSequence;
     }
 
-    private WatchKeysResponse(ByteBuf buf) {
-        super(buf, MessageType.WatchKeysResponse);
-        int mapsize = buf.readInt();
-
-        // NOTICE: do not init capicity with mapsize.
-        this.configData = new HashMap<>();
-        for (int i = 0; i < mapsize; i++) {
-            String k = buf.readBytes(buf.readInt()).toString(StandardCharsets.UTF_8);
-            String v = buf.readBytes(buf.readInt()).toString(StandardCharsets.UTF_8);
-            configData.put(k, v);
+    private WatchKeysResponse(ByteBuf buf, ProtocolContext protocol, boolean lazy) {
+        super(buf, MessageType.WatchKeysResponse, protocol, lazy);
+        if (!protocol.isV2()) {
+            this.unchangedKeys = Collections.emptySet();
+            this.logEpoch = 0;
+            this.logSequence = 0;
+            return;
+        }
+        int size = Varints.readVarint(buf);
+        this.unchangedKeys = new LinkedHashSet<>(size);
+        for (int i = 0; i < size; i++) {
+            int id = Varints.readVarint(buf);
+            String key = readVarString(buf);
+            keyIds().register(id, key);
+            unchangedKeys.add(key);
         }
+        this.logEpoch = Varints.readSignedVarlong(buf);
+        this.logSequence = logEpoch != 0 ? Varints.readSignedVarlong(buf) : 0;
     }
 
+    /**
+     * @return the values decoded as UTF-8.
+     */
     public Map<String, String> getConfigData() {
-        return configData;
+        return map();
+    }
+
+    /**
+     * @return the raw values, which must not be modified.
+     */
+    public Map<String, byte[]> getRawConfigData() {
+        return rawMap();
+    }
+
+    /**
+     * @return versions of the values in config data, empty in protocol v1.
+     */
+    public Map<String, Integer> getVersions() {
+        return versions();
+    }
+
+    /**
+     * @return watched keys not in config data, since the client knows their latest value already.
+     * Always empty in protocol v1.
+     */
+    public Set<String> getUnchangedKeys() {
+        return unchangedKeys;
+    }
+
+    /**
+     * @return epoch of the change log position of the response, 0 if none.
+     */
+    public long getLogEpoch() {
+        return logEpoch;
+    }
+
+    public long getLogSequence() {
+        return logSequence;
+    }
+
+    @Override public long sizeInBytes() {
+        long size = super.sizeInBytes();
+        if (!isV2()) {
+            return size;
+        }
+        byte[][] keys = encodedUnchangedKeys();
+        size += countSize(keys.length);
+        int i = 0;
+        for (String key : unchangedKeys) {
+            size += Varints.varintSize(keyIds().idOf(key)) + fieldSize(keys[i++]);
+        }
+        size += Varints.signedVarlongSize(logEpoch);
+        if (logEpoch != 0) {
+            size += Varints.signedVarlongSize(logSequence);
+        }
+        return size;
     }
 
     @Override public long writeTo(ByteBuf buf) throws IOException {
+        long written = super.writeTo(buf);
+        if (!isV2()) {
+            return written;
+        }
         int writerIndex = buf.writerIndex();
-        writeHeader(buf);
-        buf.writeInt(configData.size());
-        for (Map.Entry<String, String> entry : configData.entrySet()) {
-            buf.writeInt(entry.getKey().getBytes().length).writeBytes(entry.getKey().getBytes());
-            buf.writeInt(entry.getValue().getBytes().length).writeBytes(entry.getValue().getBytes());
+        byte[][] keys = encodedUnchangedKeys();
+        writeCount(buf, keys.length);
+        int i = 0;
+        for (String key : unchangedKeys) {
+            Varints.writeVarint(buf, keyIds().idOf(key));
+            writeField(buf, keys[i++]);
         }
-        return buf.writerIndex() - writerIndex;
+        Varints.writeSignedVarlong(buf, logEpoch);
+        if (logEpoch != 0) {
+            Varints.writeSignedVarlong(buf, logSequence);
+        }
+        return written + buf.writerIndex() - writerIndex;
+    }
+
+    private byte[][] encodedUnchangedKeys() {
+        if (encodedUnchangedKeys == null) {
+            encodedUnchangedKeys = utf8(unchangedKeys);
+        }
+        return encodedUnchangedKeys;
     }
 
 
     public static class Builder {
+        private short versionId = VERSION;
         private String clientId;
         private long correlationId;
+        private KeyIdTable keyIds;
 
-        private Map<String, String> configData = new HashMap<>();
+        private Map<String, byte[]> configData = new HashMap<>();
+        private Map<String, Integer> versions = new HashMap<>();
+        private Set<String> unchangedKeys = new LinkedHashSet<>();
+        private long logEpoch = 0;
+        private long logSequence = 0;
 
 
         public Builder setClientId(String clientId) {
@@ -71,18 +182,66 @@ public class WatchKeysResponse extends ConfrMessage {
             return this;
         }
 
+        public Builder setVersionId(short versionId) {
+            this.versionId = versionId;
+            return this;
+        }
+
+        /**
+         * Ids of the keys, needed by protocol v2.
+         */
+        public Builder setKeyIds(KeyIdTable keyIds) {
+            this.keyIds = keyIds;
+            return this;
+        }
+
         public Builder addConfigData(String key, String value) {
+            configData.put(key, value.getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        /**
+         * @param version version of the value, sent in protocol v2 only
+         */
+        public Builder addConfigData(String key, String value, int version) {
+            return addConfigData(key, value.getBytes(StandardCharsets.UTF_8), version);
+        }
+
+        /**
+         * @param value raw value, sent as it is
+         * @param version version of the value, sent in protocol v2 only
+         */
+        public Builder addConfigData(String key, byte[] value, int version) {
             configData.put(key, value);
+            versions.put(key, version);
             return this;
         }
 
         public Builder addConfigData(Map<String, String> config) {
-            configData.putAll(config);
+            config.forEach(this::addConfigData);
+            return this;
+        }
+
+        /**
+         * The client knows the latest value of the key already, protocol v2 only.
+         */
+        public Builder addUnchangedKey(String key) {
+            unchangedKeys.add(key);
+            return this;
+        }
+
+        /**
+         * Position in the change log of the server as of the response, protocol v2 only.
+         */
+        public Builder setLogPosition(long epoch, long sequence) {
+            this.logEpoch = epoch;
+            this.logSequence = sequence;
             return this;
         }
 
         public WatchKeysResponse build() {
-            return new WatchKeysResponse(correlationId, clientId, configData);
+            return new WatchKeysResponse(versionId, correlationId, clientId, configData, versions, unchangedKeys,
+                    keyIds, logEpoch, logSequence);
         }
     }
 }
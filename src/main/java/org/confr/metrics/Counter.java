@@ -0,0 +1,23 @@
+package org.confr.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count, lock free and without allocation when updated from many threads.
+ * This class is thread safe.
+ */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
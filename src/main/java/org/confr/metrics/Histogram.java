@@ -0,0 +1,97 @@
+package org.confr.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non negative values, as of latencies in nanoseconds or sizes in bytes, in log-linear buckets
+ * like HdrHistogram: every power of two is split into 16 linear buckets, so a value is told within 1/16
+ * of itself over the whole long range, with a fixed array of 960 counts.
+ * Recording is lock free and allocates nothing. Reading is not atomic with recording, a percentile may
+ * miss the values recorded meanwhile.
+ * This class is thread safe.
+ */
+public class Histogram {
+    private static final int Sub_Bucket_Bits = 4;
+    private static final int Sub_Buckets = 1 << Sub_Bucket_Bits;
+    private static final int Bucket_Count = Sub_Buckets + (63 - Sub_Bucket_Bits) * Sub_Buckets;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Bucket_Count);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param value a negative value is recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile in (0, 100]
+     * @return the highest value of the bucket holding the percentile, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < Bucket_Count; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < Bucket_Count; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucketOf(long value) {
+        if (value < Sub_Buckets) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - Sub_Bucket_Bits;
+        return Sub_Buckets + shift * Sub_Buckets + (int) ((value >>> shift) & (Sub_Buckets - 1));
+    }
+
+    /**
+     * @return the highest value of the bucket
+     */
+    static long highestOf(int bucket) {
+        if (bucket < Sub_Buckets) {
+            return bucket;
+        }
+        int shift = (bucket - Sub_Buckets) / Sub_Buckets;
+        long lowest = (long) (Sub_Buckets + (bucket - Sub_Buckets) % Sub_Buckets) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
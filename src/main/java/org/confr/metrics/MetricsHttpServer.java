@@ -0,0 +1,102 @@
+package org.confr.metrics;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import org.confr.utils.NettyTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Plain text scrape endpoint of the metrics of a registry, GET /metrics answers the text of
+ * {@link MetricsRegistry#writeText}. One event loop thread of its own, so a scrape never delays client io.
+ */
+public class MetricsHttpServer {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+    private static final String Path = "/metrics";
+
+    private final MetricsRegistry registry;
+    private final SocketAddress address;
+    private EventLoopGroup group;
+    private Channel channel;
+
+    public MetricsHttpServer(MetricsRegistry registry, String bindAddress, int port) {
+        this.registry = registry;
+        this.address = new InetSocketAddress(bindAddress, port);
+    }
+
+    public void start() throws InterruptedException {
+        NettyTransport transport = new NettyTransport(false);
+        group = transport.newEventLoopGroup(1, "metrics-http");
+        channel = new ServerBootstrap()
+                .group(group)
+                .channel(transport.serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                                .addLast(new HttpServerCodec())
+                                .addLast(new HttpObjectAggregator(4096))
+                                .addLast(new ScrapeHandler());
+                    }
+                })
+                .bind(address).sync().channel();
+        logger.info("Metrics served at http://{}{}", channel.localAddress(), Path);
+    }
+
+    /**
+     * @return the bound address, with the port chosen when bound to port 0
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+    public void shutdown() {
+        if (group != null) {
+            group.shutdownGracefully();
+        }
+    }
+
+    private class ScrapeHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            FullHttpResponse response;
+            if (request.method() != HttpMethod.GET) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            } else if (!request.uri().equals(Path) && !request.uri().startsWith(Path + "?")) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+            } else {
+                StringBuilder text = new StringBuilder(4096);
+                registry.writeText(text);
+                ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), text);
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+            }
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            // one scrape per connection keeps the server trivial, scrapes are rare
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Metrics request failed", cause);
+            ctx.close();
+        }
+    }
+}
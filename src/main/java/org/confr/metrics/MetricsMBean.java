@@ -0,0 +1,132 @@
+package org.confr.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of a registry as the attributes of one MBean, read only. Metrics registered later show up
+ * as they come. A histogram shows as its count, mean, max and percentiles, like "request.handle.nanos.p99".
+ */
+public class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Register the metrics of the registry to the platform MBean server under the name.
+     */
+    public static ObjectName register(MetricsRegistry registry, String objectName) throws JMException {
+        ObjectName name = new ObjectName(objectName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), name);
+        return name;
+    }
+
+    public static void unregister(ObjectName name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Override public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object metric = registry.getMetrics().get(attribute);
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        } else if (metric instanceof LongSupplier) {
+            return ((LongSupplier) metric).getAsLong();
+        }
+
+        int dot = attribute.lastIndexOf('.');
+        Object histogram = dot < 0 ? null : registry.getMetrics().get(attribute.substring(0, dot));
+        if (histogram instanceof Histogram) {
+            Object value = histogramAttribute((Histogram) histogram, attribute.substring(dot + 1));
+            if (value != null) {
+                return value;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Object histogramAttribute(Histogram histogram, String stat) {
+        switch (stat) {
+        case "count":
+            return histogram.getCount();
+        case "mean":
+            return histogram.getMean();
+        case "max":
+            return histogram.getMax();
+        case "p50":
+            return histogram.getPercentile(50);
+        case "p90":
+            return histogram.getPercentile(90);
+        case "p99":
+            return histogram.getPercentile(99);
+        case "p999":
+            return histogram.getPercentile(99.9);
+        default:
+            return null;
+        }
+    }
+
+    @Override public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as by the contract of DynamicMBean
+            }
+        }
+        return list;
+    }
+
+    @Override public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        // metrics have no operation
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : registry.getMetrics().entrySet()) {
+            String name = entry.getKey();
+            if (entry.getValue() instanceof Histogram) {
+                for (String stat : new String[]{"count", "max", "p50", "p90", "p99", "p999"}) {
+                    attributes.add(attribute(name + "." + stat, "long"));
+                }
+                attributes.add(attribute(name + ".mean", "double"));
+            } else {
+                attributes.add(attribute(name, "long"));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Confr metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String type) {
+        return new MBeanAttributeInfo(name, type, name, true, false, false);
+    }
+}
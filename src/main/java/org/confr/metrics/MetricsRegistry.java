@@ -0,0 +1,94 @@
+package org.confr.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, gauges and histograms of a server, published through JMX by {@link MetricsMBean}
+ * and as plain text by {@link MetricsHttpServer}.
+ * Components look their metrics up once and keep them, the hot path only updates them.
+ * Names are dotted, like "request.handle.nanos", latencies are in nanoseconds.
+ * This class is thread safe.
+ */
+public class MetricsRegistry {
+    private static final double[] Percentiles = {50, 90, 99, 99.9};
+
+    // sorted by name, so the text is stable between scrapes
+    private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * @return the counter of the name, created if not exists
+     */
+    public Counter counter(String name) {
+        return metric(name, Counter.class, Counter::new);
+    }
+
+    /**
+     * @return the histogram of the name, created if not exists
+     */
+    public Histogram histogram(String name) {
+        return metric(name, Histogram.class, Histogram::new);
+    }
+
+    /**
+     * Register a gauge read when the metrics are published, a gauge of the same name is replaced.
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        Object previous = metrics.put(name, gauge);
+        if (previous != null && !(previous instanceof LongSupplier)) {
+            metrics.put(name, previous);
+            throw new IllegalArgumentException("Metric " + name + " is a " + previous.getClass().getSimpleName());
+        }
+    }
+
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * @return every metric by name, a Counter, a Histogram or a LongSupplier gauge
+     */
+    public Map<String, Object> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    private <T> T metric(String name, Class<T> type, Supplier<T> factory) {
+        Object metric = metrics.computeIfAbsent(name, n -> factory.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Write every metric in the text format of Prometheus, names are prefixed by "confr_" and dots become
+     * underscores. Histograms are written as summaries with their percentiles, and a max.
+     */
+    public void writeText(StringBuilder out) {
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = "confr_" + entry.getKey().replaceAll("[^a-zA-Z0-9_]", "_");
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                out.append("# TYPE ").append(name).append(" counter\n");
+                out.append(name).append(' ').append(((Counter) metric).get()).append('\n');
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                out.append("# TYPE ").append(name).append(" summary\n");
+                for (double percentile : Percentiles) {
+                    out.append(name).append("{quantile=\"").append(percentile / 100).append("\"} ")
+                            .append(histogram.getPercentile(percentile)).append('\n');
+                }
+                out.append(name).append("_sum ").append(histogram.getSum()).append('\n');
+                out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+                out.append("# TYPE ").append(name).append("_max gauge\n");
+                out.append(name).append("_max ").append(histogram.getMax()).append('\n');
+            } else {
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ').append(((LongSupplier) metric).getAsLong()).append('\n');
+            }
+        }
+    }
+}
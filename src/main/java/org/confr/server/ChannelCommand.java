@@ -1,6 +1,7 @@
 package org.confr.server;
 
 import org.confr.messages.ConfrMessage;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 
 /**
@@ -8,14 +9,23 @@ import io.netty.channel.Channel;
  */
 abstract class ChannelCommand {
     private final Channel channel;
+    private final long createdNanos;
 
     ChannelCommand(Channel channel) {
         this.channel = channel;
+        this.createdNanos = System.nanoTime();
     }
 
     public Channel getChannel() {
         return channel;
     }
+
+    /**
+     * @return System.nanoTime when the command was created, to tell how long it was queued
+     */
+    long getCreatedNanos() {
+        return createdNanos;
+    }
 }
 
 class RequestInfo<T extends ConfrMessage> extends ChannelCommand {
@@ -31,7 +41,11 @@ class RequestInfo<T extends ConfrMessage> extends ChannelCommand {
     }
 }
 
-class ResponseInfo<T extends ConfrMessage> extends ChannelCommand {
+/**
+ * Response written to the channel, the data is either a ConfrMessage or a buffer encoded already.
+ * A null data closes the channel.
+ */
+class ResponseInfo<T> extends ChannelCommand {
     private final T data;
 
     ResponseInfo(Channel channel, T data) {
@@ -44,6 +58,22 @@ class ResponseInfo<T extends ConfrMessage> extends ChannelCommand {
     }
 }
 
+/**
+ * Encoded change of a key, changes of the same key may be coalesced when the client is slow.
+ */
+class ChangeResponseInfo extends ResponseInfo<ByteBuf> {
+    private final String key;
+
+    ChangeResponseInfo(Channel channel, String key, ByteBuf encoded) {
+        super(channel, encoded);
+        this.key = key;
+    }
+
+    String getKey() {
+        return key;
+    }
+}
+
 class ClearSessionCmd extends ChannelCommand {
     ClearSessionCmd(Channel channel) {
         super(channel);
@@ -0,0 +1,256 @@
+package org.confr.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.PlatformDependent;
+import org.confr.codec.ConnectionProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write responses of one channel on its event loop.
+ *
+ * Responses can be queued from any thread, the first one queued schedules a drain on the event loop.
+ * All the responses queued before the drain runs are written and flushed once.
+ *
+ * Changes wait in a pending map, where only the latest change of every key is kept, and are merged into
+ * ConfChangeResponses of at most batchMaxKeys keys, see SharedChangeEncoder.merge. Keys are written in the order
+ * of their latest change, a key changed again moves behind the others. The pending changes are
+ * written when the batch window closes or when batchMaxKeys keys are pending, but not while the channel is
+ * unwritable. So a slow client holds at most one change per watched key, the channel is closed when it holds
+ * more than maxPendingChanges. Before any other response they are all written, writable or not,
+ * so a response is never followed by an older change of its keys.
+ */
+class ChannelResponseWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ChannelResponseWriter.class);
+    private static final AttributeKey<ChannelResponseWriter> Writer_Key = AttributeKey.valueOf("responseWriter");
+    // queued in place of a null response, which closes the channel
+    private static final Object Close = new Object();
+
+    static ChannelResponseWriter attach(Channel channel, ResponseHandler responseHandler) {
+        ChannelResponseWriter writer = new ChannelResponseWriter(channel, responseHandler);
+        channel.attr(Writer_Key).set(writer);
+        channel.closeFuture().addListener(future -> writer.discardPendingChanges());
+        return writer;
+    }
+
+    /**
+     * @return writer of the channel, null if the channel is not initialized by the server.
+     */
+    static ChannelResponseWriter of(Channel channel) {
+        return channel.attr(Writer_Key).get();
+    }
+
+    private final Channel channel;
+    private final ResponseHandler responseHandler;
+    private final Queue<Object> queue = PlatformDependent.newMpscQueue();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable drainTask = this::drain;
+    private final Runnable batchTask = this::batchWindowClosed;
+    // latest change of each key not written yet, only accessed by the event loop
+    private final LinkedHashMap<String, ByteBuf> pendingChanges = new LinkedHashMap<>();
+    // a flush of the pending changes is scheduled at the end of the batch window
+    private boolean batchScheduled = false;
+
+    private ChannelResponseWriter(Channel channel, ResponseHandler responseHandler) {
+        this.channel = channel;
+        this.responseHandler = responseHandler;
+    }
+
+    /**
+     * @param data ConfrMessage or encoded buffer, null to close the channel.
+     */
+    void write(Object data) {
+        enqueue(data == null ? Close : data);
+    }
+
+    /**
+     * @param encoded the change of the key encoded by SharedChangeEncoder, may be replaced by a later change
+     *                of the same key before it is written.
+     */
+    void writeChange(String key, ByteBuf encoded) {
+        enqueue(new KeyedChange(key, encoded));
+    }
+
+    /**
+     * Called on the event loop when the writability of the channel changes.
+     */
+    void writabilityChanged() {
+        if (channel.isWritable() && !pendingChanges.isEmpty()) {
+            writePendingChanges(false);
+            channel.flush();
+        }
+    }
+
+    /**
+     * @return number of the changes waiting to be written, should be called on the event loop.
+     */
+    int getPendingChangeCount() {
+        return pendingChanges.size();
+    }
+
+    private void enqueue(Object data) {
+        if (!queue.offer(data)) {
+            logger.error("Too many responses queued for channel {}, closing it", channel.id());
+            responseHandler.responseDone();
+            release(data);
+            channel.close();
+            return;
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                channel.eventLoop().execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                // event loop is shutting down, the channel is going away anyway.
+                scheduled.set(false);
+                discardQueued();
+            }
+        }
+    }
+
+    private void drain() {
+        // responses queued from now on schedule another drain
+        scheduled.set(false);
+
+        boolean written = false;
+        Object data;
+        while ((data = queue.poll()) != null) {
+            responseHandler.responseDone();
+            if (data == Close) {
+                logger.trace("Process null response, closing channel {}", channel.id());
+                if (written) {
+                    channel.flush();
+                }
+                channel.close();
+                discardQueued();
+                return;
+            }
+
+            if (!channel.isActive()) {
+                // encoded buffers shared between channels must be released
+                release(data);
+            } else if (data instanceof KeyedChange) {
+                addPendingChange((KeyedChange) data);
+            } else {
+                // changes pending go first, even to an unwritable channel, they are at most one per key
+                written |= writePendingChanges(true);
+                channel.write(data);
+                written = true;
+                logger.trace("Process {}, Write to channel {}", data.getClass().getSimpleName(), channel.id());
+            }
+        }
+
+        if (channel.isActive() && !pendingChanges.isEmpty()) {
+            if (responseHandler.getBatchWindowMs() <= 0
+                    || pendingChanges.size() >= responseHandler.getBatchMaxKeys()) {
+                written |= writePendingChanges(false);
+            } else if (!batchScheduled) {
+                batchScheduled = true;
+                channel.eventLoop().schedule(batchTask, responseHandler.getBatchWindowMs(), TimeUnit.MILLISECONDS);
+            }
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    private void batchWindowClosed() {
+        batchScheduled = false;
+        if (writePendingChanges(false)) {
+            channel.flush();
+        }
+    }
+
+    private void addPendingChange(KeyedChange change) {
+        // removed first, so the key moves to the end
+        ByteBuf replaced = pendingChanges.remove(change.key);
+        pendingChanges.put(change.key, change.encoded);
+        if (replaced != null) {
+            replaced.release();
+            responseHandler.changeCoalesced();
+        } else if (pendingChanges.size() > responseHandler.getMaxPendingChanges()) {
+            logger.warn("Channel {} holds more than {} pending changes, closing the slow client",
+                    channel.id(), responseHandler.getMaxPendingChanges());
+            responseHandler.slowClientClosed();
+            channel.close();
+            discardPendingChanges();
+        }
+    }
+
+    /**
+     * Write the pending changes in batches of at most batchMaxKeys.
+     * @param all write all of them, otherwise stop once the channel is unwritable
+     * @return true if anything is written
+     */
+    private boolean writePendingChanges(boolean all) {
+        if (pendingChanges.isEmpty() || !channel.isActive()) {
+            return false;
+        }
+
+        short version = ConnectionProtocol.get(channel).getVersion();
+        int batchMaxKeys = responseHandler.getBatchMaxKeys();
+        boolean written = false;
+        Iterator<Map.Entry<String, ByteBuf>> it = pendingChanges.entrySet().iterator();
+        while (it.hasNext() && (all || channel.isWritable())) {
+            List<ByteBuf> batch = new ArrayList<>(Math.min(batchMaxKeys, pendingChanges.size()));
+            while (it.hasNext() && batch.size() < batchMaxKeys) {
+                batch.add(it.next().getValue());
+                it.remove();
+            }
+
+            if (batch.size() == 1) {
+                channel.write(batch.get(0));
+            } else {
+                channel.write(SharedChangeEncoder.merge(channel.alloc(), version, batch));
+                responseHandler.changesMerged(batch.size());
+            }
+            written = true;
+        }
+        return written;
+    }
+
+    private void discardPendingChanges() {
+        for (ByteBuf encoded : pendingChanges.values()) {
+            encoded.release();
+        }
+        pendingChanges.clear();
+    }
+
+    private void discardQueued() {
+        Object data;
+        while ((data = queue.poll()) != null) {
+            responseHandler.responseDone();
+            release(data);
+        }
+    }
+
+    private static void release(Object data) {
+        if (data instanceof KeyedChange) {
+            ((KeyedChange) data).encoded.release();
+        } else if (data != Close) {
+            ReferenceCountUtil.release(data);
+        }
+    }
+
+    private static class KeyedChange {
+        private final String key;
+        private final ByteBuf encoded;
+
+        KeyedChange(String key, ByteBuf encoded) {
+            this.key = key;
+            this.encoded = encoded;
+        }
+    }
+}
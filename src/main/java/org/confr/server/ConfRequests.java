@@ -1,42 +1,78 @@
 package org.confr.server;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelId;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import org.confr.messages.ConfChangeResponse;
+import org.confr.codec.ConnectionProtocol;
+import org.confr.messages.ConfigDigest;
 import org.confr.messages.ConfrMessage;
+import org.confr.messages.Handshake;
+import org.confr.messages.KeyIdTable;
 import org.confr.messages.Ping;
 import org.confr.messages.Pong;
+import org.confr.messages.ProtocolContext;
+import org.confr.messages.SyncRequest;
+import org.confr.messages.SyncResponse;
 import org.confr.messages.WatchKeysRequest;
 import org.confr.messages.WatchKeysResponse;
+import org.confr.metrics.Counter;
+import org.confr.metrics.Histogram;
+import org.confr.metrics.MetricsRegistry;
+import org.confr.storage.ChangeLog;
 import org.confr.storage.ValueChangeListener;
 import org.confr.storage.ValueChangedEvent;
-import org.confr.storage.ZkValueDispatcher;
+import org.confr.storage.ValueDispatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Handle all request here.
- * Requests from same channel should be handled one after another to keep data in order.
+ * Requests from same channel are always handled by the same request handler thread one after another,
+ * see NettyRequestResponseChannel.
 
  * Response are sent to this handler, queued if necessary.
- * TODO: It should ensure that responses to the same channel should be processed sequentially.
  */
 public class ConfRequests {
     private static final Logger logger = LoggerFactory.getLogger(ConfRequests.class);
 
-    private final ZkValueDispatcher dispatcher;
+    private final ValueDispatcher dispatcher;
     private NettyRequestResponseChannel requestResponseChannel;
     private ConcurrentHashMap<ChannelId, Session> activeSessions = new ConcurrentHashMap<>();
+    // key ids of protocol v2 are assigned server wide, so an encoded change can still be shared by all channels.
+    private final KeyIdTable keyIds = new KeyIdTable();
+    private final SharedChangeEncoder changeEncoder = new SharedChangeEncoder(ByteBufAllocator.DEFAULT, keyIds);
+    // from a watch request handled to its response sent, in nanoseconds
+    private final Histogram watchNanos;
+    private final Histogram watchKeys;
+    private final Counter watchFailures;
+    private final Counter syncRequests;
+    private final Counter changesPushed;
 
-    ConfRequests(ZkValueDispatcher dispatcher, NettyRequestResponseChannel requestResponseChannel) {
+    ConfRequests(ValueDispatcher dispatcher, NettyRequestResponseChannel requestResponseChannel,
+            MetricsRegistry metrics) {
         this.dispatcher = dispatcher;
         this.requestResponseChannel = requestResponseChannel;
+        this.watchNanos = metrics.histogram("watch.register.nanos");
+        this.watchKeys = metrics.histogram("watch.keys");
+        this.watchFailures = metrics.counter("watch.failures");
+        this.syncRequests = metrics.counter("sync.requests");
+        this.changesPushed = metrics.counter("changes.pushed");
+        metrics.gauge("sessions.active", activeSessions::size);
+    }
+
+    void shutdown() {
+        changeEncoder.close();
     }
 
     void clearSession(ClearSessionCmd cmd) {
@@ -58,13 +94,28 @@ public class ConfRequests {
         }
 
         logger.trace("Start handle message {}", requestInfo.getMessage().getType());
-        if (requestInfo.getMessage() instanceof Ping) {
+        if (requestInfo.getMessage() instanceof Handshake) {
+            handleHandshake(((Handshake) requestInfo.getMessage()), requestInfo.getChannel());
+        } else if (requestInfo.getMessage() instanceof Ping) {
             handlePing(((Ping) requestInfo.getMessage()), requestInfo.getChannel());
         } else if (requestInfo.getMessage() instanceof WatchKeysRequest) {
             handleWatch(((WatchKeysRequest) requestInfo.getMessage()), requestInfo.getChannel());
+        } else if (requestInfo.getMessage() instanceof SyncRequest) {
+            handleSync(((SyncRequest) requestInfo.getMessage()), requestInfo.getChannel());
         }
     }
 
+    private void handleHandshake(Handshake handshake, Channel channel) {
+        short version = (short) Math.min(handshake.getProtocolVersion(), ConfrMessage.Latest_Protocol);
+        logger.debug("Channel {} asks for protocol {}, use {}", channel.id(), handshake.getProtocolVersion(), version);
+        // the client sends nothing else before the handshake response, so the following requests are read
+        // in the new protocol, while the response itself is in protocol v1.
+        ConnectionProtocol.set(channel, new ProtocolContext(version, handshake.getClientId(), keyIds));
+        sendResponse(new ResponseInfo<>(channel,
+                new Handshake(handshake.getCorrelationId(), handshake.getClientId(), version,
+                        dispatcher.getChangeLog().getEpoch())));
+    }
+
     private void handlePing(Ping ping, Channel channel) {
         ResponseInfo<Pong> pongResponseInfo = new ResponseInfo<>(channel,
                 new Pong(ping.getVersionId(), ping.getCorrelationId(), ping.getClientId())
@@ -74,31 +125,104 @@ public class ConfRequests {
 
     private void handleWatch(WatchKeysRequest request, Channel channel) {
         final Set<String> watchedKeys = request.getKeys();
+        long start = System.nanoTime();
+        watchKeys.record(watchedKeys.size());
         logger.trace("Watch request {} from channel {}, size: {}",
                 request.getCorrelationId(), channel.id(), watchedKeys.size());
         // left this for session manager, the response will be generated and sent from session manager.
         // TODO(changyang): when to remove it?
         // When the channel is closed, notify the session manager.
-        try {
-            Session session = activeSessions.computeIfAbsent(channel.id(), channelId -> new Session(channel));
-            // watch the underline storage
-            HashMap<String, String> data = new HashMap<>();
-            for (String key : watchedKeys) {
-                String configValue = session.watch(key);
-                data.put(key, configValue == null ? "" : configValue);
-                logger.trace("Watch key {} for channel {} done, data: {}", key, channel.id(), data.get(key));
+        Session session = activeSessions.computeIfAbsent(channel.id(), channelId -> new Session(channel));
+        // every change after the position is pushed to the channel, since the listener is registered after.
+        ChangeLog changeLog = dispatcher.getChangeLog();
+        long logSequence = changeLog.getSequence();
+        // watch the underline storage, the response is sent when all the keys are loaded,
+        // request handler thread is not blocked by storage.
+        session.watch(watchedKeys).whenComplete((events, e) -> {
+            if (e != null) {
+                logger.error("Watch request " + request.getCorrelationId() + " from channel " + channel.id()
+                        + " failed, closing channel", e);
+                // null response closes the channel, client will reconnect and watch again.
+                sendResponse(new ResponseInfo<>(channel, null));
+                watchFailures.inc();
+                return;
             }
 
-            WatchKeysResponse response = WatchKeysResponse.builder().addConfigData(data)
+            // the changes since the position known by the client, null if they cannot be replayed from memory.
+            // Pushes move the position, though an older change of another key may still be on its way,
+            // so the replay decides only for the keys the client sends no version of.
+            // keys under a watched prefix are sent with their values always.
+            Map<String, ValueChangedEvent> replay = request.getSinceEpoch() == 0 ? null
+                    : dispatcher.changesSince(request.getSinceEpoch(), request.getSinceSequence(),
+                            exactKeys(watchedKeys));
+            WatchKeysResponse.Builder builder = WatchKeysResponse.builder();
+            events.forEach((key, event) -> {
+                int knownVersion = request.getKnownVersion(key);
+                boolean unchanged = knownVersion == WatchKeysRequest.Unknown_Version
+                        ? replay != null && watchedKeys.contains(key) && !replay.containsKey(key)
+                        : event.getVersion() == knownVersion;
+                // the client knows the latest value already, only its id is sent, protocol v2 only
+                if (unchanged) {
+                    builder.addUnchangedKey(key);
+                } else {
+                    // values pass through as raw bytes
+                    byte[] value = event.getBytes() == null ? new byte[0] : event.getBytes();
+                    builder.addConfigData(key, value, event.getVersion());
+                }
+            });
+            logger.trace("Watch keys {} for channel {} done", watchedKeys, channel.id());
+
+            logger.trace("Watch request {} from channel {} replayed from change log: {}",
+                    request.getCorrelationId(), channel.id(), replay != null);
+
+            WatchKeysResponse response = builder
+                    .setVersionId(request.getVersionId())
+                    .setLogPosition(changeLog.getEpoch(), logSequence)
+                    .setKeyIds(keyIds)
                     .setClientId(request.getClientId())
                     .setCorrelationId(request.getCorrelationId())
                     .build();
             ResponseInfo<WatchKeysResponse> watchKeysResponseInfo = new ResponseInfo<>(channel, response);
             sendResponse(watchKeysResponseInfo);
-        } catch (Exception e) {
-            // TODO: handle failure
-            e.printStackTrace();
+            watchNanos.record(System.nanoTime() - start);
+            // changes queued after the response follow it on the channel
+            session.keysDefined(events.keySet());
+        });
+    }
+
+    /**
+     * Compare the digest of the client with the versions of the exact keys watched by the session,
+     * and reply with the versions of the keys in the buckets that differ.
+     */
+    private void handleSync(SyncRequest request, Channel channel) {
+        syncRequests.inc();
+        ConfigDigest clientDigest = request.getDigest();
+        ConfigDigest digest = new ConfigDigest(clientDigest.getBucketCount());
+        Map<String, Integer> versions = new HashMap<>();
+        Session session = activeSessions.get(channel.id());
+        if (session != null) {
+            // keys under a watched prefix are sent with their values always, see handleWatch
+            for (String key : exactKeys(session.getWatchedKeys())) {
+                ValueChangedEvent known = dispatcher.getKnownValue(key);
+                int version = known == null ? WatchKeysRequest.Unknown_Version : known.getVersion();
+                digest.add(key, version);
+                versions.put(key, version);
+            }
+        }
+
+        BitSet differing = new BitSet(digest.getBucketCount());
+        for (int i = 0; i < digest.getBucketCount(); i++) {
+            if (digest.getBucket(i) != clientDigest.getBucket(i)) {
+                differing.set(i);
+            }
         }
+        versions.keySet().removeIf(key -> !differing.get(ConfigDigest.bucketOf(key, digest.getBucketCount())));
+        if (!differing.isEmpty()) {
+            logger.debug("Channel {} is out of sync in {} buckets, {} keys", channel.id(), differing.cardinality(),
+                    versions.size());
+        }
+        sendResponse(new ResponseInfo<>(channel, new SyncResponse(request.getVersionId(),
+                request.getCorrelationId(), request.getClientId(), differing.stream().toArray(), versions, keyIds)));
     }
 
     private void closeSession(Channel channel) {
@@ -113,83 +237,133 @@ public class ConfRequests {
     }
 
 
+    /**
+     * @return the keys which are not prefix keys.
+     */
+    private static Set<String> exactKeys(Collection<String> keys) {
+        Set<String> exact = new HashSet<>(keys);
+        exact.removeIf(WatchKeysRequest::isPrefixKey);
+        return exact;
+    }
+
     private void sendResponse(ResponseInfo responseInfo) {
-        try {
-            requestResponseChannel.sendResponse(responseInfo);
-        } catch (InterruptedException e) {
-            responseInfo.getChannel().close();
-        }
+        requestResponseChannel.sendResponse(responseInfo);
     }
 
     /**
      * Session abstracts the connection and config key interests from it,
      * may contain other into like auth info, if such thing exists.
+     *
+     * A watched key ending with the wildcard watches every key under its prefix, see WatchKeysRequest.
      */
     class Session implements Closeable {
         //    private final String sessionId;
         private final Channel channel; // a connection from client
-        private final HashMap<String, ValueChangeListener> listeners;
+        private final ValueChangeListener listener;
+        private final Set<String> watchedKeys;
         private final Object lock = new Object();
+        // keys whose id the channel knows in protocol v2, a change of another key is sent with the key
+        private final Set<String> definedKeys = ConcurrentHashMap.newKeySet();
 
         Session(Channel channel) {
             this.channel = channel;
-            this.listeners = new HashMap<>(16);
+            this.listener = new SessionValueChangeListener(channel, definedKeys);
+            this.watchedKeys = new HashSet<>(16);
+        }
+
+        void keysDefined(Collection<String> keys) {
+            definedKeys.addAll(keys);
         }
 
         public Channel getChannel() {
             return channel;
         }
 
+        Set<String> getWatchedKeys() {
+            synchronized (lock) {
+                return new HashSet<>(watchedKeys);
+            }
+        }
+
         // NOTICE: Although cmds sent from the same channel may handled sequentially,
         // we still need to make sure watch and unwatch for the session should be executed sequentially.
-        String watch(String key) throws Exception {
+        /**
+         * @return future of the current value of every exact key and of every key under the watched prefixes.
+         */
+        CompletableFuture<Map<String, ValueChangedEvent>> watch(Collection<String> keys) {
             synchronized (lock) {
-                this.listeners.computeIfAbsent(key, k -> new SessionValueChangeListener(channel));
-                return dispatcher.register(key, this.listeners.get(key));
+                this.watchedKeys.addAll(keys);
+                Set<String> exactKeys = exactKeys(keys);
+                CompletableFuture<Map<String, ValueChangedEvent>> future =
+                        dispatcher.registerVersionedAsync(exactKeys, listener);
+                for (String key : keys) {
+                    if (exactKeys.contains(key)) {
+                        continue;
+                    }
+                    future = future.thenCombine(
+                            dispatcher.registerPrefixAsync(WatchKeysRequest.prefixOf(key), listener),
+                            (events, subtree) -> {
+                                subtree.forEach(events::putIfAbsent);
+                                return events;
+                            });
+                }
+                return future;
             }
         }
 
         public void unwatch(String key) throws IOException {
             synchronized (lock) {
-                ValueChangeListener listener = listeners.get(key);
-                if (listener == null) {
+                if (!watchedKeys.remove(key)) {
                     // TODO: this case should not happen, add error log
                     return;
                 }
-                dispatcher.deregister(key, listener);
-                listeners.remove(key);
+                deregister(key);
             }
         }
 
         @Override public void close() throws IOException {
             synchronized (lock) {
-                for (Map.Entry<String, ValueChangeListener> entry : listeners.entrySet()) {
-                    dispatcher.deregister(entry.getKey(), entry.getValue());
+                for (String key : watchedKeys) {
+                    deregister(key);
                 }
 
-                listeners.clear();
+                watchedKeys.clear();
+            }
+        }
+
+        private void deregister(String key) throws IOException {
+            if (WatchKeysRequest.isPrefixKey(key)) {
+                dispatcher.deregisterPrefix(WatchKeysRequest.prefixOf(key), listener);
+            } else {
+                dispatcher.deregister(key, listener);
             }
         }
     }
 
     class SessionValueChangeListener implements ValueChangeListener {
         private final Channel channel;
-        SessionValueChangeListener(Channel channel) {
+        private final Set<String> definedKeys;
+        SessionValueChangeListener(Channel channel, Set<String> definedKeys) {
             this.channel = channel;
+            this.definedKeys = definedKeys;
         }
 
         @Override public void onChanged(ValueChangedEvent event) {
-            // When Not Exist, it mean the key node is not exist.
-            // We assume a real delete never happen in zk.
-            // Deleting is just a mark on the node.
-            // TODO: handle the session id
-            ConfChangeResponse response = ConfChangeResponse.builder().setClientId("fake session id")
-                    .addConfigData(event.getKey(), event.getData() == null ? "" : event.getData()).build();
-
-            ResponseInfo<ConfChangeResponse> confChangeResponseInfo =
-                    new ResponseInfo<>(channel, response);
+            // a key under a watched prefix may be new to the channel
+            boolean definesKeyId = !definedKeys.contains(event.getKey());
+            ByteBuf encoded;
+            try {
+                encoded = changeEncoder.encode(event, ConnectionProtocol.get(channel).getVersion(), definesKeyId);
+            } catch (IOException e) {
+                logger.error("Failed to encode change of key " + event.getKey(), e);
+                return;
+            }
 
-            sendResponse(confChangeResponseInfo);
+            sendResponse(new ChangeResponseInfo(channel, event.getKey(), encoded));
+            changesPushed.inc();
+            if (definesKeyId) {
+                definedKeys.add(event.getKey());
+            }
         }
     }
 }
@@ -1,12 +1,21 @@
 package org.confr.server;
 
 import org.confr.config.ConfServerConfig;
+import org.confr.metrics.MetricsHttpServer;
+import org.confr.metrics.MetricsMBean;
+import org.confr.metrics.MetricsRegistry;
+import org.confr.storage.InMemoryValueDispatcher;
+import org.confr.storage.MappedFileValueDispatcher;
+import org.confr.storage.ShardedValueDispatcher;
+import org.confr.storage.ValueDispatcher;
 import org.confr.storage.ZkValueDispatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.InetSocketAddress;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -17,25 +26,99 @@ class ConfServer {
     private final CountDownLatch shutdownLatch = new CountDownLatch(1);
     private RequestHandlerPool requestHandlerPool;
     private NettyServer server;
-    private ZkValueDispatcher dispatcher;
+    private ValueDispatcher dispatcher;
+    private ConfRequests confRequests;
     private ConfServerConfig serverConfig;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private ObjectName metricsMBean;
+    private MetricsHttpServer metricsHttpServer;
 
     // TODO: add init: config step
     ConfServer(ConfServerConfig config) {
         this.serverConfig = config;
     }
 
-    public void start() throws InstantiationException, IOException {
-        dispatcher = new ZkValueDispatcher("localhost:2181", "confr");
+    public void start() throws Exception {
+        dispatcher = createDispatcher();
         dispatcher.start();
         //        ConfRequests requestResponseHandler = new ConfRequests(dispatcher);
 
-        server = new NettyServer(new InetSocketAddress(serverConfig.getBindAddress(), serverConfig.getBindPort()));
+        server = new NettyServer(serverConfig, metrics);
         server.start();
 
         NettyRequestResponseChannel requestResponseChannel = server.getRequestResponseChannel();
-        ConfRequests confRequests = new ConfRequests(dispatcher, requestResponseChannel);
-        requestHandlerPool = new RequestHandlerPool(2, requestResponseChannel, confRequests);
+        confRequests = new ConfRequests(dispatcher, requestResponseChannel, metrics);
+        requestHandlerPool = new RequestHandlerPool(requestResponseChannel, confRequests, metrics);
+        startMetrics();
+    }
+
+    private void startMetrics() throws InterruptedException {
+        if (serverConfig.isMetricsJmx()) {
+            try {
+                metricsMBean = MetricsMBean.register(metrics, "org.confr:type=Metrics");
+            } catch (JMException e) {
+                // as with another server in the same jvm, metrics are still served over http
+                logger.warn("Failed to register the metrics MBean", e);
+            }
+        }
+        if (serverConfig.getMetricsPort() > 0) {
+            metricsHttpServer = new MetricsHttpServer(metrics, serverConfig.getBindAddress(),
+                    serverConfig.getMetricsPort());
+            metricsHttpServer.start();
+        }
+    }
+
+    MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private ValueDispatcher createDispatcher() {
+        switch (serverConfig.getStorageBackend()) {
+            case Memory:
+                return new InMemoryValueDispatcher(serverConfig.getFanoutThreads(),
+                        serverConfig.getChangeLogCapacity());
+            case MappedFile:
+                return MappedFileValueDispatcher.builder()
+                        .withFile(Paths.get(serverConfig.getStorageFile()))
+                        .withCapacityBytes(serverConfig.getStorageFileCapacityBytes())
+                        .withFanoutThreads(serverConfig.getFanoutThreads())
+                        .withChangeLogCapacity(serverConfig.getChangeLogCapacity())
+                        .build();
+            default:
+                String snapshotFile = serverConfig.getSnapshotFile();
+                if (serverConfig.getZkShardConnectStrings().isEmpty()) {
+                    return dispatcherBuilder(serverConfig.getZkConnectString(), snapshotFile)
+                        .withTreeCachePrefixes(serverConfig.getZkTreeCachePrefixes())
+                        .withMetrics(metrics, "zk")
+                        .build();
+                }
+                ShardedValueDispatcher.Builder builder = ShardedValueDispatcher.builder()
+                        .withChangeLogCapacity(serverConfig.getChangeLogCapacity())
+                        .withFanoutThreads(serverConfig.getFanoutThreads())
+                        .withTreeCachePrefixes(serverConfig.getZkTreeCachePrefixes());
+                List<String> connectStrings = serverConfig.getZkShardConnectStrings();
+                for (int i = 0; i < connectStrings.size(); i++) {
+                    builder.addShard(dispatcherBuilder(connectStrings.get(i),
+                            snapshotFile == null ? null : snapshotFile + "." + i)
+                            .withMetrics(metrics, "zk.shard" + i));
+                }
+                return builder.build();
+        }
+    }
+
+    private ZkValueDispatcher.Builder dispatcherBuilder(String connectString, String snapshotFile) {
+        return ZkValueDispatcher.builder()
+                .withConnectString(connectString)
+                .withNamespace(serverConfig.getZkNamespace())
+                .withCoalesceWindowMs(serverConfig.getChangeCoalesceWindowMs())
+                .withFanoutThreads(serverConfig.getFanoutThreads())
+                .withChangeLogCapacity(serverConfig.getChangeLogCapacity())
+                .withWatcherGracePeriodMs(serverConfig.getWatcherGracePeriodMs())
+                .withMaxIdleWatchers(serverConfig.getMaxIdleWatchers())
+                .withResyncBatchSize(serverConfig.getZkResyncBatchSize())
+                .withResyncKeysPerSecond(serverConfig.getZkResyncKeysPerSecond())
+                .withSnapshotFile(snapshotFile == null ? null : Paths.get(snapshotFile))
+                .withCheckpointIntervalMs(serverConfig.getSnapshotCheckpointIntervalMs());
     }
 
     public void shutdown() {
@@ -48,6 +131,22 @@ class ConfServer {
             if (requestHandlerPool != null) {
                 requestHandlerPool.shutdown();
             }
+
+            if (dispatcher != null) {
+                dispatcher.shutdown();
+            }
+
+            if (confRequests != null) {
+                confRequests.shutdown();
+            }
+
+            if (metricsHttpServer != null) {
+                metricsHttpServer.shutdown();
+            }
+
+            if (metricsMBean != null) {
+                MetricsMBean.unregister(metricsMBean);
+            }
         } catch (Exception e) {
             logger.error("Error when shutting down server", e);
         } finally {
@@ -1,49 +1,170 @@
 package org.confr.server;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import io.netty.channel.Channel;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Bridge of request and request handling.
+ *
+ * Commands are routed to one of the request partitions by the id of their channel,
+ * every partition is consumed by exactly one request handler thread.
+ * So commands from the same channel are always handled by the same thread in order,
+ * and no lock is shared between partitions.
+ *
+ * Responses are handed over to the event loop of their channel by the ResponseHandler.
  */
 public class NettyRequestResponseChannel {
     private final int queueCapacity;
-    private final ArrayBlockingQueue<ChannelCommand> requestQueue;
-    private final ArrayBlockingQueue<ResponseInfo> responseQueue;
+    private final RequestPartition[] requestPartitions;
+    private final ResponseHandler responseHandler;
 
-    public NettyRequestResponseChannel(int queueCapacity) {
+    /**
+     * @param partitions number of request partitions, should be equal to the number of request handler threads
+     * @param queueCapacity the channel stops reading when its request partition holds more commands than this
+     * @param responseHandler writes the responses to their channels
+     */
+    public NettyRequestResponseChannel(int partitions, int queueCapacity, ResponseHandler responseHandler) {
         this.queueCapacity = queueCapacity;
-        this.requestQueue = new ArrayBlockingQueue<ChannelCommand>(this.queueCapacity);
-        this.responseQueue = new ArrayBlockingQueue<ResponseInfo>(this.queueCapacity);
+        this.requestPartitions = new RequestPartition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            requestPartitions[i] = new RequestPartition();
+        }
+        this.responseHandler = responseHandler;
+    }
+
+    /**
+     * Never blocks. When the partition of the channel is too busy, the channel stops reading until it is drained.
+     */
+    public void sendCommand(ChannelCommand command) {
+        Channel channel = command.getChannel();
+        RequestPartition partition = requestPartitions[partitionOf(channel)];
+        if (!partition.offer(command)) {
+            // should never happen with back pressure, there is nothing to do but drop the connection.
+            channel.close();
+            return;
+        }
+        if (command instanceof RequestInfo && partition.size() > queueCapacity) {
+            // paused before it is published, so a resume of the partition in between is not overridden
+            channel.config().setAutoRead(false);
+            partition.paused.add(channel);
+        }
+    }
+
+    void sendCommand(int partition, ChannelCommand command) {
+        requestPartitions[partition].offer(command);
     }
 
-    public void sendCommand(ChannelCommand command) throws InterruptedException {
-        requestQueue.put(command);
+    public void sendResponse(ResponseInfo responseInfo) {
+        responseHandler.sendResponse(responseInfo);
     }
-    public void sendResponse(ResponseInfo responseInfo) throws InterruptedException {
-        responseQueue.put(responseInfo);
+
+    /** Get the next request of the partition or block until there is one, should be called by one thread only */
+    public ChannelCommand receiveCommand(int partition) throws InterruptedException {
+        return requestPartitions[partition].take();
+    }
+
+    /**
+     * Resume reading of every channel of the partition stopped by back pressure, once the partition is drained
+     * enough, including the channels with nothing queued any more. Called by the consumer of the partition.
+     */
+    void commandHandled(int partition) {
+        RequestPartition requestPartition = requestPartitions[partition];
+        if (requestPartition.paused.isEmpty() || requestPartition.size() > queueCapacity / 2) {
+            return;
+        }
+        for (Channel channel : requestPartition.paused) {
+            requestPartition.paused.remove(channel);
+            channel.config().setAutoRead(true);
+        }
     }
 
-    /** Get the next request or block until there is one */
-    public ChannelCommand receiveCommand() throws InterruptedException {
-        return requestQueue.take();
+    ResponseHandler getResponseHandler() {
+        return responseHandler;
     }
 
-    /** Get a response for the given processor if there is one, null if none */
-    public ResponseInfo receiveResponse() {
-        return responseQueue.poll();
+    public int getPartitionCount() {
+        return requestPartitions.length;
     }
 
     public int getRequestQueueSize() {
-        return requestQueue.size();
+        int size = 0;
+        for (RequestPartition partition : requestPartitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    public int getRequestQueueSize(int partition) {
+        return requestPartitions[partition].size();
     }
 
-    public int getResponseQueueSize() {
-        return responseQueue.size();
+    public long getResponseQueueSize() {
+        return responseHandler.getPendingResponseCount();
     }
 
     public void shutdown() {
-        requestQueue.clear();
+        for (RequestPartition partition : requestPartitions) {
+            partition.clear();
+        }
     }
 
-}
+    private int partitionOf(Channel channel) {
+        int h = channel.id().hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % requestPartitions.length;
+    }
+
+    /**
+     * A lock free multi producer single consumer queue, the consumer parks when it is empty.
+     */
+    private static class RequestPartition {
+        private final Queue<ChannelCommand> queue = PlatformDependent.newMpscQueue();
+        // channels stopped reading by back pressure
+        private final Set<Channel> paused = ConcurrentHashMap.newKeySet();
+        private volatile Thread consumer;
+        private volatile boolean parked = false;
+
+        boolean offer(ChannelCommand command) {
+            if (!queue.offer(command)) {
+                return false;
+            }
+            if (parked) {
+                LockSupport.unpark(consumer);
+            }
+            return true;
+        }
+
+        ChannelCommand take() throws InterruptedException {
+            consumer = Thread.currentThread();
+            while (true) {
+                ChannelCommand command = queue.poll();
+                if (command != null) {
+                    return command;
+                }
 
+                parked = true;
+                // check again after publishing parked, or the wake up of an offer in between is lost.
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        int size() {
+            return queue.size();
+        }
+
+        void clear() {
+            queue.clear();
+        }
+    }
+}
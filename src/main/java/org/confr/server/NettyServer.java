@@ -1,18 +1,21 @@
 package org.confr.server;
-import org.confr.utils.ThreadUtils;
+import org.confr.config.ConfServerConfig;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import org.confr.metrics.MetricsRegistry;
+import org.confr.utils.NettyTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -23,23 +26,28 @@ public class NettyServer {
     //    private final NettyMetrics nettyMetrics;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final ChannelInitializer<SocketChannel> channelInitializer;
+    private final ConfServerConfig config;
+    private final NettyTransport transport;
     private CountDownLatch shutdownLatch = new CountDownLatch(1);
     private SocketAddress address;
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
 
     private NettyRequestResponseChannel requestResponseChannel;
-    private ResponseHandler responseHandler;
     /**
      * Creates a new instance of NettyServer.
      */
-    public NettyServer(SocketAddress address) throws IOException {
-        this.address = address;
+    public NettyServer(ConfServerConfig config, MetricsRegistry metrics) throws IOException {
+        this.config = config;
+        this.transport = new NettyTransport(config.isNativeTransport());
+        this.address = new InetSocketAddress(config.getBindAddress(), config.getBindPort());
 
-        this.requestResponseChannel = new NettyRequestResponseChannel(500); // TODO: make it configurable
-        this.channelInitializer = new NettyServerChannelInitializer(requestResponseChannel);
-
-        this.responseHandler = new ResponseHandler(requestResponseChannel);
+        ResponseHandler responseHandler = new ResponseHandler(config.getMaxPendingChangesPerClient(),
+                config.getChangeBatchWindowMs(), config.getChangeBatchMaxKeys(), metrics);
+        this.requestResponseChannel = new NettyRequestResponseChannel(config.getRequestHandlerThreads(),
+                config.getRequestQueueCapacity(), responseHandler);
+        metrics.gauge("request.queue.size", requestResponseChannel::getRequestQueueSize);
+        this.channelInitializer = new NettyServerChannelInitializer(requestResponseChannel, metrics);
         logger.trace("Instantiated NettyServer");
     }
 
@@ -51,10 +59,13 @@ public class NettyServer {
         long startupBeginTime = System.currentTimeMillis();
         try {
             logger.trace("Starting NettyServer deployment");
-            bossGroup = new NioEventLoopGroup(1);
-            workerGroup = new NioEventLoopGroup(1);
+            // without SO_REUSEPORT only one socket can bind the port, so one acceptor is enough.
+            int acceptors = reusePort() ? config.getAcceptorThreads() : 1;
+            bossGroup = transport.newEventLoopGroup(acceptors, "netty-boss");
+            workerGroup = transport.newEventLoopGroup(config.getWorkerThreads(), "netty-worker");
+            logger.info("NettyServer uses {} transport with {} acceptors",
+                    transport.isNative() ? "epoll" : "nio", acceptors);
             bindServer(address, channelInitializer, bossGroup, workerGroup);
-            ThreadUtils.newThread("response-handler", responseHandler, false).start();
         } catch (InterruptedException e) {
             logger.error("NettyServer start await was interrupted", e);
             throw new InstantiationException(
@@ -77,10 +88,6 @@ public class NettyServer {
                     logger.error("NettyServer shutdown failed after waiting for 30 seconds");
                 }
             }
-
-            if (responseHandler != null) {
-                responseHandler.shutdown();
-            }
         } catch (InterruptedException e) {
             logger.error("NettyServer termination await was interrupted. Shutdown may have been unsuccessful", e);
         } finally {
@@ -95,6 +102,13 @@ public class NettyServer {
         shutdownLatch.await();
     }
 
+    private boolean reusePort() {
+        if (config.isReusePort() && !transport.isNative()) {
+            logger.warn("SO_REUSEPORT needs the native transport, ignored");
+        }
+        return config.isReusePort() && transport.isNative();
+    }
+
     /**
      * Bootstrap a new server with a {@link ChannelInitializer} and bind it to a port.
      * @param address the address to bind this server to.
@@ -107,10 +121,20 @@ public class NettyServer {
             EventLoopGroup workerGroup) throws InterruptedException {
         ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(transport.serverChannelClass())
                 .option(ChannelOption.SO_BACKLOG, 128)
                 .handler(new LoggingHandler(LogLevel.DEBUG))
+                .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()))
                 .childHandler(channelInitializer);
+        if (reusePort()) {
+            // every bind gets a socket and an acceptor thread of its own, the kernel balances between them
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+            for (int i = 1; i < config.getAcceptorThreads(); i++) {
+                b.bind(address).sync();
+            }
+        }
         b.bind(address).sync();
         logger.info("NettyServer now listening on address {}", address);
     }
@@ -3,11 +3,14 @@ package org.confr.server;
 import org.confr.codec.ConfrMessageDecoder;
 import org.confr.codec.ConfrMessageEncoder;
 import org.confr.messages.ConfrMessage;
+import org.confr.metrics.Counter;
+import org.confr.metrics.Histogram;
+import org.confr.metrics.MetricsRegistry;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.DecoderException;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
@@ -15,15 +18,20 @@ import org.slf4j.LoggerFactory;
 
 public class NettyServerChannelInitializer extends ChannelInitializer<SocketChannel> {
     private NettyRequestResponseChannel requestResponseChannel;
-    NettyServerChannelInitializer(NettyRequestResponseChannel requestResponseChannel) {
+    private final TrafficMetrics trafficMetrics;
+    NettyServerChannelInitializer(NettyRequestResponseChannel requestResponseChannel, MetricsRegistry metrics) {
         this.requestResponseChannel = requestResponseChannel;
+        this.trafficMetrics = new TrafficMetrics(metrics);
     }
 
     @Override protected void initChannel(SocketChannel ch) throws Exception {
+        requestResponseChannel.getResponseHandler().initChannel(ch);
         ChannelPipeline pipeline = ch.pipeline();
+        // next to the socket, so it counts the bytes of the frames
+        pipeline.addLast("trafficCounter", new TrafficCounter(trafficMetrics));
         // outbound handlers
 //        pipeline.addLast("debugger", new ChannelOutboundDebuger());
-        pipeline.addLast("lengthFieldPrepender", new LengthFieldPrepender(4, true));
+        // the encoder writes the length field of the frame itself
         pipeline.addLast("confrMessageEncoder", new ConfrMessageEncoder());
 
         // inbound handler
@@ -35,6 +43,71 @@ public class NettyServerChannelInitializer extends ChannelInitializer<SocketChan
     }
 }
 
+/**
+ * Server wide traffic metrics, the bytes of every client are recorded into the histograms when it disconnects.
+ */
+class TrafficMetrics {
+    final Counter bytesIn;
+    final Counter bytesOut;
+    final Counter connectionsOpened;
+    final Counter connectionsClosed;
+    final Histogram clientBytesIn;
+    final Histogram clientBytesOut;
+
+    TrafficMetrics(MetricsRegistry metrics) {
+        this.bytesIn = metrics.counter("bytes.in");
+        this.bytesOut = metrics.counter("bytes.out");
+        this.connectionsOpened = metrics.counter("connections.opened");
+        this.connectionsClosed = metrics.counter("connections.closed");
+        this.clientBytesIn = metrics.histogram("client.bytes.in");
+        this.clientBytesOut = metrics.histogram("client.bytes.out");
+        metrics.gauge("connections.active", () -> connectionsOpened.get() - connectionsClosed.get());
+    }
+}
+
+/**
+ * Count the bytes read from and written to one channel, only accessed by its event loop.
+ */
+class TrafficCounter extends ChannelDuplexHandler {
+    private final TrafficMetrics metrics;
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+
+    TrafficCounter(TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionsOpened.inc();
+        super.channelActive(ctx);
+    }
+
+    @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            int bytes = ((ByteBuf) msg).readableBytes();
+            bytesIn += bytes;
+            metrics.bytesIn.add(bytes);
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            int bytes = ((ByteBuf) msg).readableBytes();
+            bytesOut += bytes;
+            metrics.bytesOut.add(bytes);
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionsClosed.inc();
+        metrics.clientBytesIn.record(bytesIn);
+        metrics.clientBytesOut.record(bytesOut);
+        super.channelInactive(ctx);
+    }
+}
+
 @ChannelHandler.Sharable
 class ConfrMessageServerProcessor extends SimpleChannelInboundHandler<ConfrMessage> {
     private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -57,6 +130,14 @@ class ConfrMessageServerProcessor extends SimpleChannelInboundHandler<ConfrMessa
         }
     }
 
+    @Override public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        ChannelResponseWriter writer = ChannelResponseWriter.of(ctx.channel());
+        if (writer != null) {
+            writer.writabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         logger.warn("{}: Channel closed, singal cleanup", ctx.channel().id());
         requestResponseChannel.sendCommand(new ClearSessionCmd(ctx.channel()));
@@ -1,24 +1,29 @@
 package org.confr.server;
 
+import org.confr.metrics.Histogram;
+import org.confr.metrics.MetricsRegistry;
 import org.confr.utils.ThreadUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A pool that will poll request from request channel, deliver it to other component to handle.
+ * Handler i consumes request partition i of the request channel.
  */
 public class RequestHandlerPool {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private Thread[] threads;
     private RequestHandler[] handlers;
-    public RequestHandlerPool(int threadsNum, NettyRequestResponseChannel requestResponseChannel, ConfRequests requests) {
+    public RequestHandlerPool(NettyRequestResponseChannel requestResponseChannel, ConfRequests requests,
+            MetricsRegistry metrics) {
+        int threadsNum = requestResponseChannel.getPartitionCount();
         assert threadsNum > 0;
         threads = new Thread[threadsNum];
         handlers = new RequestHandler[threadsNum];
 
         for (int i = 0; i < threadsNum; i++) {
-            handlers[i] = new RequestHandler(i, requestResponseChannel, requests);
+            handlers[i] = new RequestHandler(i, requestResponseChannel, requests, metrics);
             threads[i] = ThreadUtils.newThread("request-handler-" + i, handlers[i], true);
             threads[i].start();
         }
@@ -48,25 +53,34 @@ class RequestHandler implements Runnable {
     private final int id;
     private final NettyRequestResponseChannel requestResponseChannel;
     private final ConfRequests requests;
-    RequestHandler(int id, NettyRequestResponseChannel requestResponseChannel, ConfRequests requests) {
+    // how long a request waited in its partition, and how long handling it took, in nanoseconds
+    private final Histogram queueNanos;
+    private final Histogram handleNanos;
+    RequestHandler(int id, NettyRequestResponseChannel requestResponseChannel, ConfRequests requests,
+            MetricsRegistry metrics) {
         this.id = id;
         this.requestResponseChannel = requestResponseChannel;
         this.requests = requests;
+        this.queueNanos = metrics.histogram("request.queue.nanos");
+        this.handleNanos = metrics.histogram("request.handle.nanos");
     }
 
     @Override public void run() {
         while (true) {
             try {
-                ChannelCommand cmd = requestResponseChannel.receiveCommand();
+                ChannelCommand cmd = requestResponseChannel.receiveCommand(id);
                 if (cmd.equals(ShutdownRequestHandlerCmd.INSTANCE)) {
                     logger.debug("Request handler {} receive shutdown signal", id);
                     break;
                 } else if (cmd instanceof ClearSessionCmd) {
                     requests.clearSession(((ClearSessionCmd) cmd));
                 } else if (cmd instanceof RequestInfo) {
-                    // TODO: impl handle of req
+                    long start = System.nanoTime();
+                    queueNanos.record(start - cmd.getCreatedNanos());
                     requests.handleRequest(((RequestInfo) cmd));
+                    handleNanos.record(System.nanoTime() - start);
                 }
+                requestResponseChannel.commandHandled(id);
 
             } catch (Throwable e) {
                 logger.error("Exception when handling request", e);
@@ -75,7 +89,7 @@ class RequestHandler implements Runnable {
         }
     }
 
-    void shutdown() throws InterruptedException {
-        requestResponseChannel.sendCommand(ShutdownRequestHandlerCmd.INSTANCE);
+    void shutdown() {
+        requestResponseChannel.sendCommand(id, ShutdownRequestHandlerCmd.INSTANCE);
     }
 }
@@ -1,57 +1,126 @@
 package org.confr.server;
 
-import org.confr.utils.AbstractServerThread;
+import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
+import org.confr.metrics.Counter;
+import org.confr.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
 
 
-public class ResponseHandler extends AbstractServerThread {
+/**
+ * Hand responses over to the event loop of their channel, see ChannelResponseWriter.
+ * No thread is involved, so nothing runs when there is no response to write.
+ */
+public class ResponseHandler {
     private final Logger logger = LoggerFactory.getLogger(getClass());
-    private NettyRequestResponseChannel requestResponseChannel;
-
-    public ResponseHandler(NettyRequestResponseChannel requestResponseChannel) throws IOException{
-        this.requestResponseChannel = requestResponseChannel;
-    }
-
-    @Override public void run() {
-        startupComplete();
-        logger.info("Startup complete");
-        try {
-            while (isRunning()) {
-                processNewResponse();
-            }
-        } finally {
-            try {
-                shutdownComplete();
-                logger.info("Shutdown complete");
-                super.shutdown();
-            } catch (InterruptedException err) {
-                logger.error("InterruptedException when shutdwon", err);
-            }
-        }
+    private final int maxPendingChanges;
+    private final long batchWindowMs;
+    private final int batchMaxKeys;
+    private final LongAdder pendingResponses = new LongAdder();
+    private final Counter coalescedChanges;
+    private final Counter mergedChanges;
+    private final Counter slowClientsClosed;
+
+    /**
+     * @param maxPendingChanges a channel is closed when more changes than this wait for it to be writable
+     * @param batchWindowMs changes of a channel within the window are merged into one response,
+     *                      0 merges the changes queued together only
+     * @param batchMaxKeys max number of keys of a merged response
+     */
+    public ResponseHandler(int maxPendingChanges, long batchWindowMs, int batchMaxKeys) {
+        this(maxPendingChanges, batchWindowMs, batchMaxKeys, new MetricsRegistry());
     }
 
+    public ResponseHandler(int maxPendingChanges, long batchWindowMs, int batchMaxKeys, MetricsRegistry metrics) {
+        if (batchMaxKeys <= 0) {
+            throw new IllegalArgumentException("Batch max keys should be positive: " + batchMaxKeys);
+        }
+        this.maxPendingChanges = maxPendingChanges;
+        this.batchWindowMs = batchWindowMs;
+        this.batchMaxKeys = batchMaxKeys;
+        this.coalescedChanges = metrics.counter("response.changes.coalesced");
+        this.mergedChanges = metrics.counter("response.changes.merged");
+        this.slowClientsClosed = metrics.counter("clients.slow.closed");
+        metrics.gauge("response.queue.size", pendingResponses::sum);
+    }
 
+    void initChannel(Channel channel) {
+        ChannelResponseWriter.attach(channel, this);
+    }
 
-    private void processNewResponse() {
-        ResponseInfo curr = requestResponseChannel.receiveResponse();
-        while (curr != null) {
-            try {
-                if (curr.getData() == null) {
-                    logger.trace("Process null response, closing channel {}", curr.getChannel().id());
-                    curr.getChannel().close();
-                } else if (curr.getChannel().isActive()) {
-                    curr.getChannel().writeAndFlush(curr.getData());
-                    logger.trace("Process {}, Write to channel {}", curr.getData().getType(), curr.getChannel().id());
-                }
-            } catch (Exception e) {
-                logger.info("Error while process response, closing channel {}" + curr.getChannel().id(), e);
-                curr.getChannel().close();
-            } finally {
-                curr = requestResponseChannel.receiveResponse();
-            }
+    public void sendResponse(ResponseInfo responseInfo) {
+        ChannelResponseWriter writer = ChannelResponseWriter.of(responseInfo.getChannel());
+        if (writer == null) {
+            logger.error("Channel {} is not initialized by the server, drop the response",
+                    responseInfo.getChannel().id());
+            ReferenceCountUtil.release(responseInfo.getData());
+            return;
+        }
+        pendingResponses.increment();
+        if (responseInfo instanceof ChangeResponseInfo) {
+            ChangeResponseInfo changeInfo = (ChangeResponseInfo) responseInfo;
+            writer.writeChange(changeInfo.getKey(), changeInfo.getData());
+        } else {
+            writer.write(responseInfo.getData());
         }
     }
+
+    int getMaxPendingChanges() {
+        return maxPendingChanges;
+    }
+
+    long getBatchWindowMs() {
+        return batchWindowMs;
+    }
+
+    int getBatchMaxKeys() {
+        return batchMaxKeys;
+    }
+
+    void responseDone() {
+        pendingResponses.decrement();
+    }
+
+    void changeCoalesced() {
+        coalescedChanges.inc();
+    }
+
+    void changesMerged(int changes) {
+        mergedChanges.add(changes);
+    }
+
+    void slowClientClosed() {
+        slowClientsClosed.inc();
+    }
+
+    /**
+     * @return number of responses queued but not written to their channel yet.
+     */
+    public long getPendingResponseCount() {
+        return pendingResponses.sum();
+    }
+
+    /**
+     * @return number of changes replaced by a later change of the same key before they were written.
+     */
+    public long getCoalescedChangeCount() {
+        return coalescedChanges.get();
+    }
+
+    /**
+     * @return number of changes written merged with changes of other keys into one response.
+     */
+    public long getMergedChangeCount() {
+        return mergedChanges.get();
+    }
+
+    /**
+     * @return number of channels closed because too many changes were pending for them.
+     */
+    public long getSlowClientsClosedCount() {
+        return slowClientsClosed.get();
+    }
 }
@@ -0,0 +1,180 @@
+package org.confr.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.util.ReferenceCountUtil;
+import org.confr.codec.ConfrMessageEncoder;
+import org.confr.messages.ConfChangeResponse;
+import org.confr.messages.ConfrMessage;
+import org.confr.messages.KeyIdTable;
+import org.confr.storage.ValueChangedEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encode a change once into a pooled buffer, and share it with every channel watching the key.
+ *
+ * The storage calls the listeners of a change one after another on one fan-out thread with the same event,
+ * so every thread keeps only the change it encoded last, released once the thread encodes another change.
+ * Nothing is held for keys no one watches any more, at most one change per fan-out thread.
+ * A change is encoded once per protocol version used by the channels, and once more in protocol v2
+ * with the key defining its id, for the channels which may not know the key yet.
+ * This class is thread safe, an encoded change is never shared by two encoding threads.
+ */
+class SharedChangeEncoder implements Closeable {
+    // TODO: handle the session id
+    private static final String Change_Client_Id = "fake session id";
+
+    private final ByteBufAllocator allocator;
+    private final KeyIdTable keyIds;
+    private final ThreadLocal<Slot> slots = ThreadLocal.withInitial(this::newSlot);
+    // the slot of every thread, released by close
+    private final Set<Slot> allSlots = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param keyIds key ids of protocol v2
+     */
+    SharedChangeEncoder(ByteBufAllocator allocator, KeyIdTable keyIds) {
+        this.allocator = allocator;
+        this.keyIds = keyIds;
+    }
+
+    /**
+     * @return the encoded ConfChangeResponse of the event, the caller owns the returned buffer.
+     */
+    ByteBuf encode(ValueChangedEvent event, short version) throws IOException {
+        return encode(event, version, false);
+    }
+
+    /**
+     * @param definesKeyId send the key along with its id, protocol v2 only
+     */
+    ByteBuf encode(ValueChangedEvent event, short version, boolean definesKeyId) throws IOException {
+        Slot slot = slots.get();
+        // only contended by close
+        synchronized (slot) {
+            EncodedChange encoded = slot.encoded;
+            if (encoded == null || encoded.event != event) {
+                if (encoded != null) {
+                    // channels written already hold their own reference.
+                    encoded.release();
+                }
+                encoded = new EncodedChange(event);
+                slot.encoded = encoded;
+            }
+
+            int index = version < ConfrMessage.Protocol_V2 ? 0 : definesKeyId ? 2 : 1;
+            ByteBuf buf = encoded.bufs[index];
+            if (buf == null) {
+                buf = encodeChange(event, version, index == 2);
+                encoded.bufs[index] = buf;
+            }
+            // every channel gets its own reader index, while sharing the content.
+            return buf.retainedDuplicate();
+        }
+    }
+
+    private Slot newSlot() {
+        Slot slot = new Slot();
+        allSlots.add(slot);
+        return slot;
+    }
+
+    /**
+     * @return where the entry of a change encoded by this class starts in its frame.
+     */
+    static int entryOffset(short version) {
+        return Integer.BYTES + ConfChangeResponse.entriesPrefixSize(version, Change_Client_Id, 1);
+    }
+
+    /**
+     * Merge changes of different keys encoded by this class into one ConfChangeResponse frame,
+     * the entries are not copied but composed. The frame carries the latest log sequence of the changes.
+     * @param encoded changes encoded in the version, owned by the returned frame
+     */
+    static ByteBuf merge(ByteBufAllocator allocator, short version, List<ByteBuf> encoded) {
+        int entryOffset = entryOffset(version);
+        int entriesSize = 0;
+        long logSequence = 0;
+        for (ByteBuf buf : encoded) {
+            entriesSize += buf.readableBytes() - entryOffset;
+            if (version >= ConfrMessage.Protocol_V2) {
+                logSequence = Math.max(logSequence, buf.getLong(buf.readerIndex() + Integer.BYTES
+                        + ConfChangeResponse.logSequenceOffset(Change_Client_Id)));
+            }
+        }
+
+        int prefixSize = Integer.BYTES
+                + ConfChangeResponse.entriesPrefixSize(version, Change_Client_Id, encoded.size());
+        ByteBuf prefix = allocator.directBuffer(prefixSize);
+        prefix.writeInt(prefixSize + entriesSize);
+        ConfChangeResponse.writeEntriesPrefix(prefix, version, Change_Client_Id, encoded.size(), logSequence);
+
+        CompositeByteBuf frame = allocator.compositeDirectBuffer(encoded.size() + 1);
+        frame.addComponent(true, prefix);
+        for (ByteBuf buf : encoded) {
+            frame.addComponent(true, buf.skipBytes(entryOffset));
+        }
+        return frame;
+    }
+
+    private ByteBuf encodeChange(ValueChangedEvent event, short version, boolean definesKeyId) throws IOException {
+        // When Not Exist, it mean the key node is not exist.
+        // We assume a real delete never happen in zk.
+        // Deleting is just a mark on the node.
+        byte[] value = event.getBytes() == null ? new byte[0] : event.getBytes();
+        ConfChangeResponse response = ConfChangeResponse.builder().setClientId(Change_Client_Id)
+                .setVersionId(version).setKeyIds(keyIds).setDefinesKeyIds(definesKeyId)
+                .addConfigData(event.getKey(), value, event.getVersion()).setLogSequence(event.getSequence()).build();
+        // the whole frame, since the buffer bypasses the message encoder of the channels
+        ByteBuf buf = allocator.directBuffer(ConfrMessageEncoder.frameSize(response));
+        try {
+            ConfrMessageEncoder.writeFrame(response, buf);
+            return buf;
+        } catch (IOException | RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    @Override public void close() {
+        for (Slot slot : allSlots) {
+            synchronized (slot) {
+                if (slot.encoded != null) {
+                    slot.encoded.release();
+                    slot.encoded = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * The change encoded last by a thread, guarded by itself.
+     */
+    private static class Slot {
+        private EncodedChange encoded;
+    }
+
+    private static class EncodedChange {
+        private final ValueChangedEvent event;
+        // encoded in protocol v1, v2, and v2 defining the key id, null until a channel asks for it
+        private final ByteBuf[] bufs = new ByteBuf[3];
+
+        EncodedChange(ValueChangedEvent event) {
+            this.event = event;
+        }
+
+        void release() {
+            for (ByteBuf buf : bufs) {
+                if (buf != null) {
+                    ReferenceCountUtil.safeRelease(buf);
+                }
+            }
+        }
+    }
+}
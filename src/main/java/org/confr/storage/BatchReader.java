@@ -0,0 +1,101 @@
+package org.confr.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/**
+ * Reads of many keys a batch after another, each batch once the previous one is answered,
+ * no faster than a number of keys per second, so a resync does not flood zk.
+ * A read belongs to a generation and stops once a later generation starts, or while paused.
+ * This class is thread safe.
+ */
+class BatchReader {
+    private static final Logger logger = LoggerFactory.getLogger(BatchReader.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final int batchSize;
+    private final int keysPerSecond;
+    private final BooleanSupplier paused;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder readKeys = new LongAdder();
+
+    /**
+     * @param scheduler runs the batches, owned by the caller
+     * @param keysPerSecond 0 for no limit
+     * @param paused true stops the reads, a later generation starts over
+     */
+    BatchReader(ScheduledExecutorService scheduler, int batchSize, int keysPerSecond, BooleanSupplier paused) {
+        this.scheduler = scheduler;
+        this.batchSize = batchSize;
+        this.keysPerSecond = keysPerSecond;
+        this.paused = paused;
+    }
+
+    /**
+     * Stop the reads of the current generation.
+     * @return the new generation
+     */
+    long nextGeneration() {
+        return generation.incrementAndGet();
+    }
+
+    long currentGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Read every item in the background.
+     * @param done called with the duration in ms once every item is read, never if stopped before
+     */
+    <T> void readAll(long generation, List<T> pending, Function<T, CompletableFuture<?>> read, LongConsumer done) {
+        long start = System.nanoTime();
+        scheduler.execute(() -> readInBatches(generation, pending, read, 0, start, done));
+    }
+
+    private <T> void readInBatches(long generation, List<T> pending, Function<T, CompletableFuture<?>> read,
+            int from, long start, LongConsumer done) {
+        if (generation != this.generation.get() || paused.getAsBoolean()) {
+            // disconnected again, the next reconnection starts over
+            return;
+        }
+        int to = Math.min(from + batchSize, pending.size());
+        long batchStart = System.nanoTime();
+        CompletableFuture<?>[] reads = new CompletableFuture<?>[to - from];
+        for (int i = from; i < to; i++) {
+            reads[i - from] = read.apply(pending.get(i));
+        }
+        CompletableFuture.allOf(reads).whenComplete((v, e) -> {
+            readKeys.add(to - from);
+            if (to == pending.size()) {
+                done.accept(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return;
+            }
+            long minBatchNanos = keysPerSecond > 0 ? TimeUnit.SECONDS.toNanos(to - from) / keysPerSecond : 0;
+            long delay = Math.max(0, minBatchNanos - (System.nanoTime() - batchStart));
+            try {
+                scheduler.schedule(() -> readInBatches(generation, pending, read, to, start, done), delay,
+                        TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException re) {
+                logger.debug("Batch read stopped by shutdown");
+            }
+        });
+    }
+
+    /**
+     * @return the number of keys read so far.
+     */
+    long getReadCount() {
+        return readKeys.sum();
+    }
+}
@@ -0,0 +1,70 @@
+package org.confr.storage;
+
+import org.confr.utils.ThreadUtils;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coalesce bursts of changes of the same key. The first change of a key opens a window,
+ * only the latest change within the window is dispatched when the window closes.
+ * A window of 0 dispatches every change immediately.
+ * This class is thread safe.
+ */
+class ChangeCoalescer implements Closeable {
+    private final long windowMs;
+    // null if coalescing is disabled
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<String, ValueChangedEvent> pending = new ConcurrentHashMap<>();
+    private final LongAdder suppressed = new LongAdder();
+
+    ChangeCoalescer(long windowMs) {
+        this.windowMs = windowMs;
+        this.scheduler = windowMs > 0 ?
+                Executors.newSingleThreadScheduledExecutor(r -> ThreadUtils.newThread("change-coalescer", r, true)) :
+                null;
+    }
+
+    /**
+     * Changes of the same key should be submitted one after another, with the same dispatch.
+     * @param event the change
+     * @param dispatch called with the latest change of the key when the window closes
+     */
+    void submit(ValueChangedEvent event, Consumer<ValueChangedEvent> dispatch) {
+        if (scheduler == null) {
+            dispatch.accept(event);
+            return;
+        }
+
+        String key = event.getKey();
+        if (pending.put(key, event) != null) {
+            // replaced a change not dispatched yet, the window is open already.
+            suppressed.increment();
+            return;
+        }
+        scheduler.schedule(() -> {
+            ValueChangedEvent latest = pending.remove(key);
+            if (latest != null) {
+                dispatch.accept(latest);
+            }
+        }, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of changes never dispatched because a later change of the same key replaced them.
+     */
+    long getSuppressedCount() {
+        return suppressed.sum();
+    }
+
+    @Override public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.confr.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bounded in memory log of the recent changes of all the keys, every change gets the next sequence number.
+ * The oldest change is dropped once the log holds capacity changes.
+ *
+ * The epoch identifies the log of one dispatcher instance, a sequence is meaningless with another epoch.
+ * This class is thread safe.
+ */
+public class ChangeLog {
+    private final long epoch;
+    private final ValueChangedEvent[] ring;
+    // guarded by this, sequence of the latest change, 0 before the first one
+    private long sequence = 0;
+
+    /**
+     * @param capacity max number of changes kept, 0 keeps none
+     */
+    public ChangeLog(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Change log capacity should not be negative: " + capacity);
+        }
+        long e;
+        do {
+            e = ThreadLocalRandom.current().nextLong();
+        } while (e == 0);
+        this.epoch = e;
+        this.ring = new ValueChangedEvent[capacity];
+    }
+
+    /**
+     * @return never 0, which stands for no epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * @return sequence of the change, set to the event too
+     */
+    synchronized long append(ValueChangedEvent event) {
+        sequence++;
+        event.setSequence(sequence);
+        if (ring.length > 0) {
+            ring[(int) (sequence % ring.length)] = event;
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the latest change of every key changed after the sequence, in the order of their latest change.
+     * Null if changes after the sequence are dropped already, or the sequence is not reached yet.
+     */
+    public synchronized Map<String, ValueChangedEvent> since(long since) {
+        long oldest = Math.max(1, sequence - ring.length + 1);
+        if (since > sequence || since < oldest - 1) {
+            return null;
+        }
+        Map<String, ValueChangedEvent> changes = new LinkedHashMap<>();
+        for (long s = since + 1; s <= sequence; s++) {
+            ValueChangedEvent event = ring[(int) (s % ring.length)];
+            changes.remove(event.getKey());
+            changes.put(event.getKey(), event);
+        }
+        return changes;
+    }
+}
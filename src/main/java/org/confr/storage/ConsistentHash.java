@@ -0,0 +1,54 @@
+package org.confr.storage;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash of keys over a number of shards. Every shard owns many points of the ring,
+ * so keys spread evenly, and a shard added or removed moves about 1/n of the keys only.
+ * This class is immutable.
+ */
+class ConsistentHash {
+    private static final int Points_Per_Shard = 128;
+
+    private final int shards;
+    // point of the ring to the shard owning the keys hashed up to it
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+
+    ConsistentHash(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Number of shards should be positive: " + shards);
+        }
+        this.shards = shards;
+        for (int shard = 0; shard < shards; shard++) {
+            for (int point = 0; point < Points_Per_Shard; point++) {
+                ring.put(hash("shard-" + shard + "#" + point), shard);
+            }
+        }
+    }
+
+    int shardOf(String key) {
+        if (shards == 1) {
+            return 0;
+        }
+        Map.Entry<Integer, Integer> owner = ring.ceilingEntry(hash(key));
+        return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+    }
+
+    int getShardCount() {
+        return shards;
+    }
+
+    /**
+     * Spread the string hash code over the whole int range, with the finalizer of murmur3.
+     */
+    private static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
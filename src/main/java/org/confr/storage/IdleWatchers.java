@@ -0,0 +1,112 @@
+package org.confr.storage;
+
+import org.confr.utils.ThreadUtils;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keys whose watcher has no listener any more, kept watched for a grace period, so a key watched again soon,
+ * as by a reconnecting client, is answered from the snapshot instead of loading it from zk again.
+ * Beyond the max number of idle keys, the key idle for the longest time is evicted at once.
+ * A grace period of 0 evicts every key as soon as it is idle.
+ * This class is thread safe.
+ */
+class IdleWatchers implements Closeable {
+    private final long graceMs;
+    private final int maxIdle;
+    private final Consumer<String> evict;
+    // null if keys are never kept idle
+    private final ScheduledExecutorService scheduler;
+    // key to the idle episode it is in, in the order they became idle, guarded by this
+    private final LinkedHashMap<String, Object> idle = new LinkedHashMap<>();
+    private final LongAdder reused = new LongAdder();
+
+    /**
+     * @param evict called with a key whose grace period is over, it must stop the watcher if it is still idle
+     */
+    IdleWatchers(long graceMs, int maxIdle, Consumer<String> evict) {
+        this.graceMs = graceMs;
+        this.maxIdle = maxIdle;
+        this.evict = evict;
+        this.scheduler = graceMs > 0 && maxIdle > 0 ?
+                Executors.newSingleThreadScheduledExecutor(r -> ThreadUtils.newThread("idle-watchers", r, true)) :
+                null;
+    }
+
+    /**
+     * The last listener of the key is gone.
+     * @return false if the key should be stopped at once, true if it is kept watched for the grace period.
+     */
+    boolean retain(String key) {
+        if (scheduler == null) {
+            return false;
+        }
+        Object episode = new Object();
+        List<String> overflow = new ArrayList<>();
+        synchronized (this) {
+            idle.remove(key);
+            idle.put(key, episode);
+            Iterator<String> oldest = idle.keySet().iterator();
+            while (idle.size() > maxIdle) {
+                overflow.add(oldest.next());
+                oldest.remove();
+            }
+        }
+        overflow.forEach(evict);
+        scheduler.schedule(() -> expire(key, episode), graceMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * The key is watched again.
+     */
+    void reuse(String key) {
+        boolean wasIdle;
+        synchronized (this) {
+            wasIdle = idle.remove(key) != null;
+        }
+        if (wasIdle) {
+            reused.increment();
+        }
+    }
+
+    private void expire(String key, Object episode) {
+        synchronized (this) {
+            if (idle.get(key) != episode) {
+                // watched again since, or idle again in a later episode
+                return;
+            }
+            idle.remove(key);
+        }
+        evict.accept(key);
+    }
+
+    synchronized int size() {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of keys watched again within their grace period.
+     */
+    long getReusedCount() {
+        return reused.sum();
+    }
+
+    @Override public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        synchronized (this) {
+            idle.clear();
+        }
+    }
+}
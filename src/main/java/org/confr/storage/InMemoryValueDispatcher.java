@@ -0,0 +1,48 @@
+package org.confr.storage;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Values kept in memory only, for tests and load generation without a zk ensemble.
+ * This class is thread safe.
+ */
+public class InMemoryValueDispatcher extends LocalValueDispatcher {
+    private final ConcurrentHashMap<String, ValueChangedEvent> values = new ConcurrentHashMap<>();
+    // last version of the deleted keys
+    private final ConcurrentHashMap<String, Integer> tombstones = new ConcurrentHashMap<>();
+
+    public InMemoryValueDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), 4096);
+    }
+
+    public InMemoryValueDispatcher(int fanoutThreads, int changeLogCapacity) {
+        super(fanoutThreads, changeLogCapacity);
+    }
+
+    @Override protected ValueChangedEvent read(String key) {
+        return values.get(key);
+    }
+
+    @Override protected int deletedVersion(String key) {
+        return tombstones.getOrDefault(key, -1);
+    }
+
+    @Override protected void write(String key, int version, byte[] value) {
+        if (value == null) {
+            values.remove(key);
+            tombstones.put(key, version);
+        } else {
+            values.put(key, ValueChangedEvent.Updated(key, version, value));
+            tombstones.remove(key);
+        }
+    }
+
+    @Override protected Collection<String> keys() {
+        return values.keySet();
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
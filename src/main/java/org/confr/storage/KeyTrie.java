@@ -0,0 +1,107 @@
+package org.confr.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Values indexed by key prefix, keys are split into segments by '/'.
+ * Finding the prefixes of a key visits one node per segment of the key, no matter how many prefixes are indexed.
+ * The empty prefix is the prefix of every key.
+ * This class is thread safe.
+ */
+class KeyTrie<V> {
+    private final Node<V> root = new Node<>();
+
+    synchronized V get(String prefix) {
+        Node<V> node = root;
+        for (String segment : segments(prefix)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * @return the previous value of the prefix, null if none.
+     */
+    synchronized V put(String prefix, V value) {
+        Node<V> node = root;
+        for (String segment : segments(prefix)) {
+            node = node.children.computeIfAbsent(segment, s -> new Node<>());
+        }
+        V previous = node.value;
+        node.value = value;
+        return previous;
+    }
+
+    /**
+     * @return the removed value, null if none. Nodes left with neither value nor children are pruned.
+     */
+    synchronized V remove(String prefix) {
+        String[] segments = segments(prefix);
+        List<Node<V>> path = new ArrayList<>(segments.length);
+        Node<V> node = root;
+        for (String segment : segments) {
+            path.add(node);
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        V previous = node.value;
+        node.value = null;
+
+        for (int i = segments.length - 1; i >= 0 && node.value == null && node.children.isEmpty(); i--) {
+            node = path.get(i);
+            node.children.remove(segments[i]);
+        }
+        return previous;
+    }
+
+    /**
+     * @return values of the proper prefixes of the key, from the shortest one.
+     */
+    synchronized List<V> prefixesOf(String key) {
+        List<V> values = new ArrayList<>(2);
+        Node<V> node = root;
+        String[] segments = segments(key);
+        for (int i = 0; i < segments.length; i++) {
+            if (node.value != null) {
+                values.add(node.value);
+            }
+            node = node.children.get(segments[i]);
+            if (node == null) {
+                break;
+            }
+        }
+        return values;
+    }
+
+    synchronized List<V> values() {
+        List<V> values = new ArrayList<>();
+        collect(root, values);
+        return values;
+    }
+
+    private static <V> void collect(Node<V> node, List<V> values) {
+        if (node.value != null) {
+            values.add(node.value);
+        }
+        for (Node<V> child : node.children.values()) {
+            collect(child, values);
+        }
+    }
+
+    private static String[] segments(String key) {
+        return key.isEmpty() ? new String[0] : key.split("/", -1);
+    }
+
+    private static class Node<V> {
+        private final Map<String, Node<V>> children = new HashMap<>(4);
+        private V value;
+    }
+}
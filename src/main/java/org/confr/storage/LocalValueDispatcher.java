@@ -0,0 +1,217 @@
+package org.confr.storage;
+
+import org.confr.utils.StripedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Dispatcher of a store in this process, the values are written through put and delete,
+ * see InMemoryValueDispatcher and MappedFileValueDispatcher.
+ * Every write is appended to the change log, so every key is observed all along.
+ * Versions start at 0 and are bumped by every write. A deleted key leaves a tombstone of its last version,
+ * so a recreated key goes on from it, and a digest or replay of its version never mistakes it for the old value.
+ * This class is thread safe, writes are serialized.
+ */
+public abstract class LocalValueDispatcher implements ValueDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(LocalValueDispatcher.class);
+
+    private final ConcurrentHashMap<String, Set<ValueChangeListener>> listeners = new ConcurrentHashMap<>();
+    private final KeyTrie<Set<ValueChangeListener>> prefixListeners = new KeyTrie<>();
+    private final ChangeLog changeLog;
+    private final StripedExecutor fanoutExecutor;
+
+    protected LocalValueDispatcher(int fanoutThreads, int changeLogCapacity) {
+        this.changeLog = new ChangeLog(changeLogCapacity);
+        this.fanoutExecutor = new StripedExecutor("local-fanout", fanoutThreads);
+    }
+
+    /**
+     * @return the current value of the key, null if not exists
+     */
+    protected abstract ValueChangedEvent read(String key);
+
+    /**
+     * @return the last version of the key before it was deleted, -1 if the key exists or is never deleted
+     */
+    protected abstract int deletedVersion(String key);
+
+    /**
+     * Store the value of the key with the version, a null value deletes the key and keeps the version
+     * as its tombstone.
+     */
+    protected abstract void write(String key, int version, byte[] value) throws IOException;
+
+    /**
+     * @return every existing key
+     */
+    protected abstract Collection<String> keys();
+
+    @Override public void start() throws Exception {
+    }
+
+    @Override public void shutdown() throws IOException {
+        try {
+            fanoutExecutor.shutdown();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for fan-out to finish", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the version of the value written
+     */
+    public synchronized int put(String key, byte[] value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("Null value of " + key + ", delete the key instead");
+        }
+        ValueChangedEvent current = read(key);
+        int version = (current == null ? deletedVersion(key) : current.getVersion()) + 1;
+        write(key, version, value);
+        dispatch(ValueChangedEvent.Updated(key, version, value));
+        return version;
+    }
+
+    /**
+     * @return false if the key not exists
+     */
+    public synchronized boolean delete(String key) throws IOException {
+        ValueChangedEvent current = read(key);
+        if (current == null) {
+            return false;
+        }
+        write(key, current.getVersion(), null);
+        dispatch(ValueChangedEvent.NotExist(key));
+        return true;
+    }
+
+    // under the write lock, so the changes of a key are queued to its fan-out lane in order
+    private void dispatch(ValueChangedEvent event) {
+        changeLog.append(event);
+        Set<ValueChangeListener> keyListeners = listeners.get(event.getKey());
+        if (keyListeners != null) {
+            fanoutExecutor.execute(event.getKey(), () -> fireChanged(keyListeners, event));
+        }
+        for (Set<ValueChangeListener> watch : prefixListeners.prefixesOf(event.getKey())) {
+            fanoutExecutor.execute(event.getKey(), () -> fireChanged(watch, event));
+        }
+    }
+
+    private void fireChanged(Set<ValueChangeListener> targets, ValueChangedEvent event) {
+        for (ValueChangeListener listener : targets) {
+            try {
+                listener.onChanged(event);
+            } catch (Exception e) {
+                logger.error("Call ValueChangeListener failed.", e);
+            }
+        }
+    }
+
+    @Override public String register(String key, ValueChangeListener listener) {
+        return register0(key, listener).getData();
+    }
+
+    @Override public CompletableFuture<Map<String, String>> registerAsync(Collection<String> keys,
+            ValueChangeListener listener) {
+        Map<String, String> values = new HashMap<>();
+        for (String key : keys) {
+            values.put(key, register0(key, listener).getData());
+        }
+        return CompletableFuture.completedFuture(values);
+    }
+
+    @Override public CompletableFuture<Map<String, ValueChangedEvent>> registerVersionedAsync(Collection<String> keys,
+            ValueChangeListener listener) {
+        Map<String, ValueChangedEvent> events = new HashMap<>();
+        for (String key : keys) {
+            events.put(key, register0(key, listener));
+        }
+        return CompletableFuture.completedFuture(events);
+    }
+
+    // under the write lock, so no change is missed between reading the value and watching it
+    private synchronized ValueChangedEvent register0(String key, ValueChangeListener listener) {
+        listeners.compute(key, (k, keyListeners) -> {
+            Set<ValueChangeListener> added = keyListeners == null ? new CopyOnWriteArraySet<>() : keyListeners;
+            added.add(listener);
+            return added;
+        });
+        return valueOrNotExist(key);
+    }
+
+    @Override public synchronized CompletableFuture<Map<String, ValueChangedEvent>> registerPrefixAsync(String prefix,
+            ValueChangeListener listener) {
+        Set<ValueChangeListener> watch = prefixListeners.get(prefix);
+        if (watch == null) {
+            watch = new CopyOnWriteArraySet<>();
+            prefixListeners.put(prefix, watch);
+        }
+        watch.add(listener);
+
+        String under = prefix.isEmpty() ? "" : prefix + "/";
+        Map<String, ValueChangedEvent> subtree = new HashMap<>();
+        for (String key : keys()) {
+            if (key.startsWith(under)) {
+                subtree.put(key, read(key));
+            }
+        }
+        return CompletableFuture.completedFuture(subtree);
+    }
+
+    @Override public void deregister(String key, ValueChangeListener listener) {
+        listeners.computeIfPresent(key, (k, keyListeners) -> {
+            keyListeners.remove(listener);
+            return keyListeners.isEmpty() ? null : keyListeners;
+        });
+    }
+
+    @Override public synchronized void deregisterPrefix(String prefix, ValueChangeListener listener) {
+        Set<ValueChangeListener> watch = prefixListeners.get(prefix);
+        if (watch != null && watch.remove(listener) && watch.isEmpty()) {
+            prefixListeners.remove(prefix);
+        }
+    }
+
+    @Override public Map<String, ValueChangedEvent> changesSince(long epoch, long sequence, Collection<String> keys) {
+        if (epoch != changeLog.getEpoch()) {
+            return null;
+        }
+        Map<String, ValueChangedEvent> changes = changeLog.since(sequence);
+        if (changes == null) {
+            return null;
+        }
+        Map<String, ValueChangedEvent> replay = new HashMap<>();
+        for (String key : keys) {
+            ValueChangedEvent change = changes.get(key);
+            if (change != null) {
+                replay.put(key, change);
+            }
+        }
+        return replay;
+    }
+
+    @Override public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * Every key is known, a missing key is known not to exist.
+     */
+    @Override public ValueChangedEvent getKnownValue(String key) {
+        return valueOrNotExist(key);
+    }
+
+    private ValueChangedEvent valueOrNotExist(String key) {
+        ValueChangedEvent event = read(key);
+        return event == null ? ValueChangedEvent.NotExist(key) : event;
+    }
+}
@@ -0,0 +1,327 @@
+package org.confr.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Values kept in a memory-mapped append-only file, for single node deployments without a zk ensemble.
+ * The file is indexed once at start, then a read is a lookup of the index and a copy out of the mapped file.
+ *
+ * After a header of magic and format, the file is a sequence of records:
+ * int key length, int version, int value length or -1 for a delete, key in UTF-8, value.
+ * A delete keeps the last version of the key, older files may have a negative one, which restarts the key at 0.
+ * A record is published by writing its key length last, a key length of 0 ends the log.
+ * The record is forced to disk before and after its key length, so a record torn by a crash, of the process or
+ * of the machine, is never read, and a written value is durable once put returns.
+ * When a record does not fit, and at start, the live records are copied to a new file which then replaces
+ * the old one, so the file only needs the capacity for the latest values.
+ * This class is thread safe.
+ */
+public class MappedFileValueDispatcher extends LocalValueDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileValueDispatcher.class);
+    private static final int Magic = 0x434f4e46;
+    private static final int Format = 1;
+    private static final int Header_Size = 8;
+    private static final int Record_Header_Size = 12;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final Path file;
+    private final long capacityBytes;
+    // key to where its latest value is in the file, deleted keys are removed
+    private final ConcurrentHashMap<String, Slot> index = new ConcurrentHashMap<>();
+    // last version of the deleted keys
+    private final ConcurrentHashMap<String, Integer> tombstones = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    // guarded by the write lock, readers copy out of the buffer of a slot, which outlives a compaction
+    private MappedByteBuffer mapped;
+    // end of the log, guarded by the write lock
+    private volatile int end;
+
+    private MappedFileValueDispatcher(Builder builder) {
+        super(builder.fanoutThreads, builder.changeLogCapacity);
+        if (builder.file == null) {
+            throw new IllegalArgumentException("No file to store values");
+        }
+        if (builder.capacityBytes < Header_Size || builder.capacityBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid capacity of the value file: " + builder.capacityBytes);
+        }
+        this.file = builder.file;
+        this.capacityBytes = builder.capacityBytes;
+    }
+
+    @Override public synchronized void start() throws Exception {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacityBytes, channel.size()));
+        if (created) {
+            mapped.putInt(0, Magic);
+            mapped.putInt(4, Format);
+        } else if (mapped.getInt(0) != Magic || mapped.getInt(4) != Format) {
+            throw new IOException("Not a value file of format " + Format + ": " + file);
+        }
+        end = load();
+        logger.info("Loaded {} keys of {} bytes from {}", index.size(), end, file);
+        compact();
+    }
+
+    /**
+     * @return end of the log
+     */
+    private int load() {
+        int position = Header_Size;
+        while (position + Record_Header_Size <= mapped.capacity()) {
+            int keyLength = mapped.getInt(position);
+            if (keyLength == 0) {
+                break;
+            }
+            int version = mapped.getInt(position + 4);
+            int valueLength = mapped.getInt(position + 8);
+            int keyOffset = position + Record_Header_Size;
+            int next = keyOffset + keyLength + Math.max(valueLength, 0);
+            if (keyLength < 0 || next > mapped.capacity() || next < keyOffset) {
+                logger.warn("Corrupted record at {} of {}, the rest of the file is ignored", position, file);
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            ByteBuffer record = mapped.duplicate();
+            record.position(keyOffset);
+            record.get(key);
+            String k = new String(key, StandardCharsets.UTF_8);
+            if (valueLength < 0) {
+                index.remove(k);
+                tombstones.put(k, Math.max(version, -1));
+            } else {
+                index.put(k, new Slot(mapped, version, keyOffset + keyLength, valueLength));
+                tombstones.remove(k);
+            }
+            position = next;
+        }
+        return position;
+    }
+
+    @Override public void shutdown() throws IOException {
+        super.shutdown();
+        synchronized (this) {
+            if (channel != null) {
+                mapped.force();
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    @Override protected ValueChangedEvent read(String key) {
+        Slot slot = index.get(key);
+        if (slot == null) {
+            return null;
+        }
+        byte[] value = new byte[slot.length];
+        ByteBuffer record = slot.buffer.duplicate();
+        record.position(slot.offset);
+        record.get(value);
+        return ValueChangedEvent.Updated(key, slot.version, value);
+    }
+
+    @Override protected int deletedVersion(String key) {
+        return tombstones.getOrDefault(key, -1);
+    }
+
+    @Override protected void write(String key, int version, byte[] value) throws IOException {
+        if (channel == null) {
+            throw new IOException("Value file is not open: " + file);
+        }
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? -1 : value.length;
+        long next = (long) end + Record_Header_Size + k.length + Math.max(valueLength, 0);
+        // leave room for the key length ending the log
+        if (next + 4 > mapped.capacity() && compact()) {
+            next = (long) end + Record_Header_Size + k.length + Math.max(valueLength, 0);
+        }
+        if (next + 4 > mapped.capacity()) {
+            throw new IOException("Value file is full at " + end + " bytes: " + file);
+        }
+        int position = end;
+        int valueOffset = append(mapped, position, k, version, value);
+        mapped.force();
+        mapped.putInt(position, k.length);
+        mapped.force();
+        end = (int) next;
+
+        if (value == null) {
+            index.remove(key);
+            tombstones.put(key, version);
+        } else {
+            index.put(key, new Slot(mapped, version, valueOffset, value.length));
+            tombstones.remove(key);
+        }
+    }
+
+    /**
+     * Write a record but its key length, which publishes it.
+     *
+     * @return offset of the value
+     */
+    private static int append(ByteBuffer buffer, int position, byte[] key, int version, byte[] value) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + 4);
+        record.putInt(version);
+        record.putInt(value == null ? -1 : value.length);
+        record.put(key);
+        int valueOffset = record.position();
+        if (value != null) {
+            record.put(value);
+        }
+        return valueOffset;
+    }
+
+    /**
+     * Copy the latest value or tombstone of every key to a new file, which is moved over the file.
+     *
+     * @return false if there was nothing to reclaim
+     */
+    private boolean compact() throws IOException {
+        Map<String, byte[]> keys = new HashMap<>();
+        long live = Header_Size;
+        for (Map.Entry<String, Slot> entry : index.entrySet()) {
+            byte[] k = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            keys.put(entry.getKey(), k);
+            live += Record_Header_Size + k.length + entry.getValue().length;
+        }
+        for (Map.Entry<String, Integer> entry : tombstones.entrySet()) {
+            // a tombstone of a negative version restarts the key at 0, the same as no tombstone
+            if (entry.getValue() >= 0) {
+                byte[] k = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                keys.put(entry.getKey(), k);
+                live += Record_Header_Size + k.length;
+            }
+        }
+        if (live >= end) {
+            return false;
+        }
+
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer target = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, mapped.capacity());
+            target.putInt(0, Magic);
+            target.putInt(4, Format);
+            Map<String, Slot> slots = new HashMap<>();
+            int position = Header_Size;
+            for (Map.Entry<String, byte[]> entry : keys.entrySet()) {
+                byte[] k = entry.getValue();
+                ValueChangedEvent current = read(entry.getKey());
+                int start = position;
+                if (current != null) {
+                    byte[] value = current.getBytes();
+                    int valueOffset = append(target, start, k, current.getVersion(), value);
+                    slots.put(entry.getKey(), new Slot(target, current.getVersion(), valueOffset, value.length));
+                    position = valueOffset + value.length;
+                } else {
+                    position = append(target, start, k, tombstones.get(entry.getKey()), null);
+                }
+                // the whole file is forced before it replaces the old one, so no need to publish one by one
+                target.putInt(start, k.length);
+            }
+            target.force();
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            logger.info("Compacted {} from {} to {} bytes", file, end, position);
+            channel.close();
+            channel = compactedChannel;
+            mapped = target;
+            index.putAll(slots);
+            tombstones.entrySet().removeIf(entry -> entry.getValue() < 0);
+            end = position;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            compactedChannel.close();
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+    }
+
+    @Override protected Collection<String> keys() {
+        return index.keySet();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return bytes of the file used by the log, including overwritten values.
+     */
+    public int getUsedBytes() {
+        return end;
+    }
+
+    public int getCapacityBytes() {
+        return mapped == null ? (int) capacityBytes : mapped.capacity();
+    }
+
+    private static class Slot {
+        final ByteBuffer buffer;
+        final int version;
+        final int offset;
+        final int length;
+
+        Slot(ByteBuffer buffer, int version, int offset, int length) {
+            this.buffer = buffer;
+            this.version = version;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public static class Builder {
+        private Path file;
+        private long capacityBytes = 64L * 1024 * 1024;
+        private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+        private int changeLogCapacity = 4096;
+
+        public Builder withFile(Path file) {
+            this.file = file;
+            return this;
+        }
+
+        /**
+         * Size the file is mapped with, at most 2GB. A larger existing file is mapped whole.
+         */
+        public Builder withCapacityBytes(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+            return this;
+        }
+
+        public Builder withFanoutThreads(int fanoutThreads) {
+            this.fanoutThreads = fanoutThreads;
+            return this;
+        }
+
+        public Builder withChangeLogCapacity(int changeLogCapacity) {
+            this.changeLogCapacity = changeLogCapacity;
+            return this;
+        }
+
+        public MappedFileValueDispatcher build() {
+            return new MappedFileValueDispatcher(this);
+        }
+    }
+}
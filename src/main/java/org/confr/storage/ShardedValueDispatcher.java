@@ -0,0 +1,267 @@
+package org.confr.storage;
+
+import org.confr.utils.StripedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keys sharded by consistent hash over several ZkValueDispatchers, each with its own zk session and event thread,
+ * optionally connected to different ensembles. So notifications are not bound to the one event thread of a session.
+ * This class is thread safe.
+ *
+ * All the shards append to one change log, so a position in it holds for every key.
+ * A tree cache prefix is given to one shard only, the shard of its hash, and every key under it is routed to that
+ * shard too, so the keys and the cache read the subtree from the same ensemble.
+ * Other prefix watches are served by the shard of the prefix, which reads the same data as the shards of the keys
+ * only if all the shards connect to one ensemble, so they are refused over different ensembles.
+ * The shards share one fan-out executor too, so the changes of a key from a prefix watch and from the shard
+ * of the key are notified on the same lane, one after another.
+ */
+public class ShardedValueDispatcher implements ValueDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedValueDispatcher.class);
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final List<ZkValueDispatcher> shards;
+    private final ConsistentHash hash;
+    private final ChangeLog changeLog;
+    private final StripedExecutor fanoutExecutor;
+    // outermost tree cache prefix -> its shard, a prefix under another one goes to the shard of the outer prefix
+    private final Map<String, Integer> prefixShards = new LinkedHashMap<>();
+    private final boolean oneEnsemble;
+
+    private ShardedValueDispatcher(Builder builder) {
+        if (builder.shardBuilders.isEmpty()) {
+            throw new IllegalArgumentException("No shard to dispatch values");
+        }
+        this.changeLog = new ChangeLog(builder.changeLogCapacity);
+        this.fanoutExecutor = new StripedExecutor("value-fanout", builder.fanoutThreads);
+        this.hash = new ConsistentHash(builder.shardBuilders.size());
+        for (String prefix : builder.treeCachePrefixes) {
+            if (outermostPrefixOf(prefix, builder.treeCachePrefixes).equals(prefix)) {
+                prefixShards.put(prefix, hash.shardOf(prefix));
+            }
+        }
+        for (String prefix : builder.treeCachePrefixes) {
+            int shard = prefixShards.get(outermostPrefixOf(prefix, builder.treeCachePrefixes));
+            builder.shardBuilders.get(shard).withTreeCachePrefix(prefix);
+        }
+
+        String connectString = builder.shardBuilders.get(0).getConnectString();
+        boolean sameConnectString = true;
+        this.shards = new ArrayList<>(builder.shardBuilders.size());
+        for (ZkValueDispatcher.Builder shardBuilder : builder.shardBuilders) {
+            sameConnectString &= connectString.equals(shardBuilder.getConnectString());
+            shards.add(shardBuilder.withChangeLog(changeLog).withFanoutExecutor(fanoutExecutor).build());
+        }
+        this.oneEnsemble = sameConnectString;
+    }
+
+    private static String outermostPrefixOf(String prefix, Set<String> prefixes) {
+        String outermost = prefix;
+        for (String other : prefixes) {
+            if (ZkValueDispatcher.covers(other, outermost)) {
+                outermost = other;
+            }
+        }
+        return outermost;
+    }
+
+    @Override public void start() throws Exception {
+        for (ZkValueDispatcher shard : shards) {
+            shard.start();
+        }
+    }
+
+    @Override public void shutdown() throws IOException {
+        IOException failure = null;
+        for (ZkValueDispatcher shard : shards) {
+            try {
+                shard.shutdown();
+            } catch (IOException e) {
+                logger.error("Failed to shutdown a shard", e);
+                failure = e;
+            }
+        }
+        // after the shards, which stop feeding it
+        try {
+            fanoutExecutor.shutdown();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for fan-out to finish", e);
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override public String register(String key, ValueChangeListener listener) throws Exception {
+        return shardOf(key).register(key, listener);
+    }
+
+    @Override public CompletableFuture<Map<String, String>> registerAsync(Collection<String> keys,
+            ValueChangeListener listener) {
+        return registerVersionedAsync(keys, listener).thenApply(events -> {
+            Map<String, String> values = new HashMap<>();
+            events.forEach((key, event) -> values.put(key, event.getData()));
+            return values;
+        });
+    }
+
+    /**
+     * Keys are registered to their shards in parallel.
+     */
+    @Override public CompletableFuture<Map<String, ValueChangedEvent>> registerVersionedAsync(Collection<String> keys,
+            ValueChangeListener listener) {
+        Map<Integer, List<String>> keysByShard = new HashMap<>();
+        for (String key : keys) {
+            keysByShard.computeIfAbsent(shardIndexOf(key), s -> new ArrayList<>()).add(key);
+        }
+
+        CompletableFuture<Map<String, ValueChangedEvent>> future = CompletableFuture.completedFuture(new HashMap<>());
+        for (Map.Entry<Integer, List<String>> entry : keysByShard.entrySet()) {
+            future = future.thenCombine(shards.get(entry.getKey()).registerVersionedAsync(entry.getValue(), listener),
+                    (events, shardEvents) -> {
+                        events.putAll(shardEvents);
+                        return events;
+                    });
+        }
+        return future;
+    }
+
+    @Override public CompletableFuture<Map<String, ValueChangedEvent>> registerPrefixAsync(String prefix,
+            ValueChangeListener listener) {
+        if (!oneEnsemble && prefixShardOf(prefix) == null) {
+            CompletableFuture<Map<String, ValueChangedEvent>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException("Prefix " + prefix
+                    + " is not under a tree cache prefix, shards on different ensembles cannot watch it"));
+            return failed;
+        }
+        return shardOf(prefix).registerPrefixAsync(prefix, listener);
+    }
+
+    @Override public void deregister(String key, ValueChangeListener listener) throws IOException {
+        shardOf(key).deregister(key, listener);
+    }
+
+    @Override public void deregisterPrefix(String prefix, ValueChangeListener listener) throws IOException {
+        shardOf(prefix).deregisterPrefix(prefix, listener);
+    }
+
+    @Override public Map<String, ValueChangedEvent> changesSince(long epoch, long sequence, Collection<String> keys) {
+        if (epoch != changeLog.getEpoch()) {
+            return null;
+        }
+        Map<String, ValueChangedEvent> changes = changeLog.since(sequence);
+        if (changes == null) {
+            return null;
+        }
+        Map<String, ValueChangedEvent> replay = new HashMap<>();
+        for (String key : keys) {
+            if (!shardOf(key).observedSince(key, sequence)) {
+                return null;
+            }
+            ValueChangedEvent change = changes.get(key);
+            if (change != null) {
+                replay.put(key, change);
+            }
+        }
+        return replay;
+    }
+
+    @Override public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    @Override public ValueChangedEvent getKnownValue(String key) {
+        return shardOf(key).getKnownValue(key);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @return the shard, for its metrics.
+     */
+    public ZkValueDispatcher getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    ZkValueDispatcher shardOf(String key) {
+        return shards.get(shardIndexOf(key));
+    }
+
+    private int shardIndexOf(String key) {
+        Integer shard = prefixShardOf(key);
+        return shard != null ? shard : hash.shardOf(key);
+    }
+
+    private Integer prefixShardOf(String key) {
+        for (Map.Entry<String, Integer> entry : prefixShards.entrySet()) {
+            if (ZkValueDispatcher.covers(entry.getKey(), key)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    public static class Builder {
+        private final List<ZkValueDispatcher.Builder> shardBuilders = new ArrayList<>();
+        private final Set<String> treeCachePrefixes = new LinkedHashSet<>();
+        private int changeLogCapacity = 4096;
+        private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Add a shard, its change log and fan-out threads are replaced by the ones shared by all the shards.
+         * Keys move between shards when shards are added or removed, the order of the shards matters too.
+         */
+        public Builder addShard(ZkValueDispatcher.Builder shard) {
+            shardBuilders.add(shard);
+            return this;
+        }
+
+        /**
+         * Cache the subtree of the prefix in the shard owning it, use this instead of the builders of the shards.
+         */
+        public Builder withTreeCachePrefix(String prefix) {
+            this.treeCachePrefixes.add(ZkValueDispatcher.trimPrefix(prefix));
+            return this;
+        }
+
+        public Builder withTreeCachePrefixes(Collection<String> prefixes) {
+            prefixes.forEach(this::withTreeCachePrefix);
+            return this;
+        }
+
+        public Builder withChangeLogCapacity(int changeLogCapacity) {
+            this.changeLogCapacity = changeLogCapacity;
+            return this;
+        }
+
+        /**
+         * Number of threads calling the listeners of all the shards, every key is pinned to one of them.
+         */
+        public Builder withFanoutThreads(int fanoutThreads) {
+            this.fanoutThreads = fanoutThreads;
+            return this;
+        }
+
+        public ShardedValueDispatcher build() {
+            return new ShardedValueDispatcher(this);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.confr.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * File of the keys, versions and values of a snapshot, so a restarted server answers registers at once.
+ *
+ * The file is an int magic, an int format and an int count of entries, then every entry:
+ * int key length, key in UTF-8, int version, int value length or -1 if the key not exists, value.
+ * It ends with the CRC32 of the entries. The file is written aside and moved over the previous one,
+ * so it is either the previous checkpoint or the new one, never a torn one.
+ */
+class SnapshotCheckpoint {
+    private static final int Magic = 0x434f4e53;
+    private static final int Format = 1;
+
+    private SnapshotCheckpoint() {
+    }
+
+    static void write(Path file, Collection<ValueChangedEvent> events) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(Magic);
+            out.writeInt(Format);
+            out.writeInt(events.size());
+            CRC32 crc = new CRC32();
+            DataOutputStream entries = new DataOutputStream(new CheckedOutputStream(out, crc));
+            for (ValueChangedEvent event : events) {
+                byte[] key = event.getKey().getBytes(StandardCharsets.UTF_8);
+                entries.writeInt(key.length);
+                entries.write(key);
+                entries.writeInt(event.getVersion());
+                byte[] value = event.getBytes();
+                entries.writeInt(value == null ? -1 : value.length);
+                if (value != null) {
+                    entries.write(value);
+                }
+            }
+            entries.flush();
+            out.writeInt((int) crc.getValue());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the events of the file, empty if there is no file
+     * @throws IOException if the file is not a complete checkpoint
+     */
+    static Map<String, ValueChangedEvent> load(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return new HashMap<>();
+        }
+
+        try {
+            if (mapped.getInt() != Magic || mapped.getInt() != Format) {
+                throw new IOException("Not a snapshot checkpoint of format " + Format + ": " + file);
+            }
+            int count = mapped.getInt();
+            int entriesStart = mapped.position();
+            // the count is not verified yet, an entry takes at least its three ints
+            int expected = Math.max(0, Math.min(count, mapped.remaining() / (3 * Integer.BYTES)));
+            Map<String, ValueChangedEvent> events = new HashMap<>(Math.max(16, expected * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                String key = new String(bytes(mapped, mapped.getInt()), StandardCharsets.UTF_8);
+                int version = mapped.getInt();
+                int valueLength = mapped.getInt();
+                events.put(key, valueLength < 0 ? ValueChangedEvent.NotExist(key) :
+                        ValueChangedEvent.Updated(key, version, bytes(mapped, valueLength)));
+            }
+
+            ByteBuffer entries = mapped.duplicate();
+            entries.position(entriesStart).limit(mapped.position());
+            CRC32 crc = new CRC32();
+            crc.update(entries);
+            if (mapped.getInt() != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch of snapshot checkpoint " + file);
+            }
+            return events;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated snapshot checkpoint " + file, e);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
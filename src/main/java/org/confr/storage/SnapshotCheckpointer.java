@@ -0,0 +1,120 @@
+package org.confr.storage;
+
+import org.confr.utils.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Checkpoints of a snapshot to a {@link SnapshotCheckpoint} file, periodically and at close,
+ * and the warm values loaded from it at start.
+ * This class is thread safe.
+ */
+class SnapshotCheckpointer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotCheckpointer.class);
+
+    private final Path file;
+    private final long intervalMs;
+    private final Supplier<Collection<ValueChangedEvent>> events;
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder staleWarmKeys = new LongAdder();
+    private volatile int warmKeyCount = 0;
+    private volatile long warmUpDurationMs = 0;
+    // set once started, a dispatcher never started does not overwrite the checkpoint
+    private volatile boolean started = false;
+
+    /**
+     * @param intervalMs 0 checkpoints only at close
+     * @param events the values to checkpoint
+     */
+    SnapshotCheckpointer(Path file, long intervalMs, Supplier<Collection<ValueChangedEvent>> events) {
+        this.file = file;
+        this.intervalMs = intervalMs;
+        this.events = events;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                r -> ThreadUtils.newThread("snapshot-checkpoint", r, true));
+    }
+
+    /**
+     * Load the last checkpoint and start checkpointing.
+     * @return the warm values, null if the checkpoint cannot be loaded
+     */
+    Map<String, ValueChangedEvent> start() {
+        Map<String, ValueChangedEvent> warm = null;
+        try {
+            warm = SnapshotCheckpoint.load(file);
+            warmKeyCount = warm.size();
+            logger.info("Loaded {} warm keys from {}", warm.size(), file);
+        } catch (IOException e) {
+            logger.warn("Failed to load the snapshot checkpoint, start cold", e);
+        }
+        started = true;
+        if (intervalMs > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkpointQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+        return warm;
+    }
+
+    /**
+     * A warm value is found changed in zk.
+     */
+    void stale() {
+        staleWarmKeys.increment();
+    }
+
+    /**
+     * Every warm value is read from zk again.
+     */
+    void revalidated(long durationMs) {
+        warmUpDurationMs = durationMs;
+        logger.info("Revalidated {} warm keys in {} ms, {} stale", warmKeyCount, durationMs, staleWarmKeys.sum());
+    }
+
+    void checkpoint() throws IOException {
+        Collection<ValueChangedEvent> snapshot = events.get();
+        long start = System.nanoTime();
+        SnapshotCheckpoint.write(file, snapshot);
+        logger.debug("Checkpointed {} keys in {} ms", snapshot.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            logger.error("Failed to checkpoint the snapshot to " + file, e);
+        }
+    }
+
+    int getWarmKeyCount() {
+        return warmKeyCount;
+    }
+
+    long getStaleWarmKeyCount() {
+        return staleWarmKeys.sum();
+    }
+
+    long getWarmUpDurationMs() {
+        return warmUpDurationMs;
+    }
+
+    /**
+     * Stop the periodic checkpoints and write the last one, if started.
+     */
+    @Override public void close() {
+        scheduler.shutdownNow();
+        if (started) {
+            checkpointQuietly();
+        }
+    }
+}
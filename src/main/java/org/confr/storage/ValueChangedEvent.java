@@ -1,19 +1,32 @@
 package org.confr.storage;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The value of a key is kept as the raw bytes of the zk node, so it passes through the server
+ * without any charset work. The bytes are never modified once in an event.
+ */
 public class  ValueChangedEvent {
     public static ValueChangedEvent NotExist(String key) {
         return new ValueChangedEvent(key, Integer.MIN_VALUE, null);
     }
 
-    public static ValueChangedEvent Updated(String key, int version, String data) {
+    public static ValueChangedEvent Updated(String key, int version, byte[] data) {
         assert version > Integer.MIN_VALUE;
         return new ValueChangedEvent(key, version, data);
     }
 
+    public static ValueChangedEvent Updated(String key, int version, String data) {
+        return Updated(key, version, data.getBytes(StandardCharsets.UTF_8));
+    }
+
     private final int version;
     private final String key;
-    private final String data;
-    private ValueChangedEvent(String key, int version, String data) {
+    private final byte[] data;
+    // sequence of the change in the change log, set once it is appended
+    private long sequence = 0;
+    private ValueChangedEvent(String key, int version, byte[] data) {
         this.key = key;
         this.version = version;
         this.data = data;
@@ -23,7 +36,17 @@ public class  ValueChangedEvent {
         return version;
     }
 
+    /**
+     * @return the value decoded as UTF-8, null if the key not exists.
+     */
     public String getData() {
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the raw value, null if the key not exists. Must not be modified.
+     */
+    public byte[] getBytes() {
         return data;
     }
 
@@ -31,12 +54,27 @@ public class  ValueChangedEvent {
         return key;
     }
 
+    /**
+     * @return sequence of the change in the change log of its dispatcher, 0 if it is not a logged change.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     @Override public boolean equals(Object obj) {
         if (obj instanceof ValueChangedEvent) {
-            return version == ((ValueChangedEvent) obj).version && data.equals(((ValueChangedEvent) obj).data);
+            return version == ((ValueChangedEvent) obj).version && Arrays.equals(data, ((ValueChangedEvent) obj).data);
         } else {
             return super.equals(obj);
         }
     }
 
+    @Override public int hashCode() {
+        return 31 * version + Arrays.hashCode(data);
+    }
+
 }
@@ -0,0 +1,56 @@
+package org.confr.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Dispatcher of value changes to the listeners of the keys, see ZkValueDispatcher for one zk session,
+ * ShardedValueDispatcher for keys sharded over several, and LocalValueDispatcher for stores without zk.
+ * Implementations are thread safe.
+ */
+public interface ValueDispatcher {
+    void start() throws Exception;
+
+    void shutdown() throws IOException;
+
+    /**
+     * @return current value of the key, null if not exists
+     */
+    String register(String key, ValueChangeListener listener) throws Exception;
+
+    /**
+     * @return future of the current value of every key, the value is null if the key not exists.
+     */
+    CompletableFuture<Map<String, String>> registerAsync(Collection<String> keys, ValueChangeListener listener);
+
+    /**
+     * @return future of the current value and version of every key.
+     */
+    CompletableFuture<Map<String, ValueChangedEvent>> registerVersionedAsync(Collection<String> keys,
+            ValueChangeListener listener);
+
+    /**
+     * Watch every key under the prefix, at any depth.
+     * @return future of the current value and version of every key under the prefix.
+     */
+    CompletableFuture<Map<String, ValueChangedEvent>> registerPrefixAsync(String prefix, ValueChangeListener listener);
+
+    void deregister(String key, ValueChangeListener listener) throws IOException;
+
+    void deregisterPrefix(String prefix, ValueChangeListener listener) throws IOException;
+
+    /**
+     * @return the latest change of every key changed after the sequence of the change log,
+     * null if the changes cannot be told from the log.
+     */
+    Map<String, ValueChangedEvent> changesSince(long epoch, long sequence, Collection<String> keys);
+
+    ChangeLog getChangeLog();
+
+    /**
+     * @return the latest known value and version of the key, null if the key is not loaded.
+     */
+    ValueChangedEvent getKnownValue(String key);
+}
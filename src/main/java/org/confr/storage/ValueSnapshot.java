@@ -0,0 +1,36 @@
+package org.confr.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory snapshot of the latest known value and version of every watched key, kept up to date by zk events.
+ * Register of a key whose value is already known is answered from here without any zk round trip.
+ * This class is thread safe.
+ */
+class ValueSnapshot {
+    private final ConcurrentHashMap<String, ValueChangedEvent> values = new ConcurrentHashMap<>(32);
+
+    /**
+     * @return the latest known value of the key, null if the value is not known yet.
+     */
+    ValueChangedEvent get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Update of the same key should be applied one after another by the caller.
+     * @return true if the version or data of the key changed.
+     */
+    boolean update(ValueChangedEvent event) {
+        ValueChangedEvent previous = values.put(event.getKey(), event);
+        return !event.equals(previous);
+    }
+
+    void remove(String key) {
+        values.remove(key);
+    }
+
+    int size() {
+        return values.size();
+    }
+}
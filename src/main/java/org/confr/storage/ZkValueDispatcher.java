@@ -3,71 +3,370 @@ package org.confr.storage;
 import io.vavr.control.Try;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.curator.framework.listen.ListenerContainer;
 import org.apache.curator.framework.recipes.cache.ChildData;
-import org.apache.curator.framework.recipes.cache.NodeCache;
-import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.confr.metrics.Counter;
+import org.confr.metrics.Histogram;
+import org.confr.metrics.MetricsRegistry;
+import org.confr.utils.StripedExecutor;
+import org.confr.utils.ThreadUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Dispatcher zk data change to all kind of listeners
  * This class is thread safe.
+ *
+ * Keys are watched one zk watch per key by default. Keys under a configured tree cache prefix
+ * share one TreeCache over the prefix subtree instead, so the number of zk watches does not grow
+ * with the number of distinct keys registered.
+ *
+ * The latest value of every watched key is kept in a {@link ValueSnapshot}, registering a known key
+ * never goes to zk, and a new key is loaded by a background zk read. A key whose last listener is gone
+ * stays watched for a grace period, see {@link IdleWatchers}, so clients reconnecting soon find it warm.
+ *
+ * Every change applied to the snapshot is appended to a {@link ChangeLog}, so the changes of watched keys
+ * since a sequence can be replayed from memory, see changesSince.
+ *
+ * While the zk connection is suspended or lost the dispatcher is degraded, known keys are still served from
+ * the snapshot. Once reconnected, the keys watched by their own zk watch are read again in batches at a limited
+ * rate, see {@link BatchReader}, only the keys whose value really changed are dispatched.
+ * Tree caches resync by themselves.
+ *
+ * A listener may also watch every key under a prefix at any depth, see registerPrefixAsync. Prefix watches are
+ * indexed by a {@link KeyTrie}, a change finds its watches in one step per segment of its key.
+ *
+ * With a snapshot file, the snapshot is checkpointed to it periodically and at shutdown, see
+ * {@link SnapshotCheckpointer}. At start the checkpoint is loaded as warm values, registers are answered from
+ * them at once while the keys are revalidated against zk in the background at the resync rate.
+ * A warm value found stale is dispatched to the listeners as a change.
  */
-public class ZkValueDispatcher {
+public class ZkValueDispatcher implements ValueDispatcher {
     private static final String Default_Namespace = "confr";
     private static final String Data_Path = "/data";
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    public static Builder builder() {
+        return new Builder();
+    }
+
     private final CuratorFramework client;
     private ConcurrentHashMap<String, ZkValueWatcher> watchers;
+    private final List<ZkPrefixCache> prefixCaches;
+    private final ValueSnapshot snapshot = new ValueSnapshot();
+    private final ChangeLog changeLog;
+    private final ChangeCoalescer coalescer;
+    private final StripedExecutor fanoutExecutor;
+    // shared with other dispatchers, shut down by its owner
+    private final boolean sharedFanout;
+    private final IdleWatchers idleWatchers;
+    // also the timeouts of the initial loads of the prefix caches
+    private final ScheduledExecutorService resyncScheduler;
+    // a new generation for every reconnection, a resync stops once another one starts
+    private final BatchReader resyncReader;
+    private final long prefixCacheInitTimeoutMs;
+    private volatile boolean degraded = false;
+    private volatile boolean resyncing = false;
+    private volatile long lastResyncDurationMs = 0;
+    private volatile int lastResyncKeyCount = 0;
+    // null without a snapshot file
+    private final SnapshotCheckpointer checkpointer;
+    // time to call all the listeners of one change, in nanoseconds
+    private final Histogram fanoutNanos;
+    private final Counter changes;
+    // also the lock of the on-demand prefix caches
+    private final KeyTrie<PrefixWatch> prefixWatches = new KeyTrie<>();
 
     public ZkValueDispatcher(String connectStr, String namespace) {
+        this(builder().withConnectString(connectStr).withNamespace(namespace));
+    }
+
+    private ZkValueDispatcher(Builder builder) {
         this.client = CuratorFrameworkFactory.builder()
-                .connectString(connectStr)
-                .namespace(namespace)
+                .connectString(builder.connectString)
+                .namespace(builder.namespace)
                 .retryPolicy(new ExponentialBackoffRetry(1000, 3))
                 .build();
         this.watchers = new ConcurrentHashMap<>(32);
+        this.coalescer = new ChangeCoalescer(builder.coalesceWindowMs);
+        this.changeLog = builder.changeLog != null ? builder.changeLog : new ChangeLog(builder.changeLogCapacity);
+        this.sharedFanout = builder.fanoutExecutor != null;
+        this.fanoutExecutor = sharedFanout ? builder.fanoutExecutor
+                : new StripedExecutor("value-fanout", builder.fanoutThreads);
+        this.idleWatchers = new IdleWatchers(builder.watcherGracePeriodMs, builder.maxIdleWatchers, this::evictIdle);
+        this.prefixCaches = new ArrayList<>(builder.treeCachePrefixes.size());
+        for (String prefix : builder.treeCachePrefixes) {
+            this.prefixCaches.add(new ZkPrefixCache(client, prefix, watchers, this::dispatchToPrefixWatches));
+        }
+        this.prefixCacheInitTimeoutMs = builder.prefixCacheInitTimeoutMs;
+        this.resyncScheduler = Executors.newSingleThreadScheduledExecutor(
+                r -> ThreadUtils.newThread("zk-resync", r, true));
+        this.resyncReader = new BatchReader(resyncScheduler, builder.resyncBatchSize, builder.resyncKeysPerSecond,
+                () -> degraded);
+        this.client.getConnectionStateListenable().addListener(new ResyncOnReconnectListener());
+        this.checkpointer = builder.snapshotFile == null ? null
+                : new SnapshotCheckpointer(builder.snapshotFile, builder.checkpointIntervalMs, this::watchedValues);
+        this.fanoutNanos = builder.metrics.histogram(builder.metricsScope + ".fanout.nanos");
+        this.changes = builder.metrics.counter(builder.metricsScope + ".changes");
+        registerGauges(builder.metrics, builder.metricsScope);
     }
 
-    public void start() {
+    private void registerGauges(MetricsRegistry metrics, String scope) {
+        metrics.gauge(scope + ".watchers", watchers::size);
+        metrics.gauge(scope + ".watchers.idle", idleWatchers::size);
+        metrics.gauge(scope + ".snapshot.keys", snapshot::size);
+        metrics.gauge(scope + ".degraded", () -> degraded ? 1 : 0);
+        metrics.gauge(scope + ".resync.keys", resyncReader::getReadCount);
+        metrics.gauge(scope + ".changes.coalesced", coalescer::getSuppressedCount);
+        metrics.gauge(scope + ".fanout.queue.size", () -> {
+            long size = 0;
+            for (int lane = 0; lane < fanoutExecutor.getLaneCount(); lane++) {
+                size += fanoutExecutor.getLaneQueueSize(lane);
+            }
+            return size;
+        });
+    }
+
+    @Override public void start() throws Exception {
+        List<ZkValueWatcher> warm = checkpointer == null ? null : warmUp(checkpointer.start());
         client.start();
+        // the warm values are served at once, but read from zk only once the client is started
+        if (warm != null) {
+            revalidateWarm(warm);
+        }
+        for (ZkPrefixCache prefixCache : prefixCaches) {
+            prefixCache.start();
+        }
     }
 
-    public void shutdown() throws IOException {
+    @Override public void shutdown() throws IOException {
+        if (checkpointer != null) {
+            // before the watchers are closed, which drops their keys from the snapshot
+            checkpointer.close();
+        }
+        idleWatchers.close();
+        resyncScheduler.shutdownNow();
         for (ZkValueWatcher watcher : this.watchers.values()) {
             watcher.close();
         }
+        for (ZkPrefixCache prefixCache : prefixCaches) {
+            prefixCache.close();
+        }
+        for (PrefixWatch prefixWatch : prefixWatches.values()) {
+            prefixWatch.cache.close();
+        }
+        coalescer.close();
+        if (!sharedFanout) {
+            try {
+                fanoutExecutor.shutdown();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for fan-out to finish", e);
+                Thread.currentThread().interrupt();
+            }
+        }
         client.close();
     }
 
     /**
-     * register a listener to watch key change. When first created, it will block for a while.
+     * register a listener to watch key change.
+     * Return immediately if the key is already watched, or block until the key is loaded from zk.
      * @param key the watched key
      * @param listener the listener callback when key changed
      * @return current key value, null if not exists
-     * @throws Exception when failed to start node changer listener
+     * @throws Exception when failed to load the key from zk
+     */
+    @Override public String register(String key, ValueChangeListener listener) throws Exception {
+        try {
+            return registerWatcher(key, listener).get().getData();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * register a listener to watch the change of all the keys without blocking.
+     * Keys already watched are answered from the snapshot, the others are loaded from zk in parallel.
+     * @param keys the watched keys
+     * @param listener the listener callback when any of the keys changed
+     * @return future of the current value of every key, the value is null if the key not exists.
+     * The future fails if any of the keys failed to load.
+     */
+    @Override public CompletableFuture<Map<String, String>> registerAsync(Collection<String> keys,
+            ValueChangeListener listener) {
+        return registerVersionedAsync(keys, listener).thenApply(events -> {
+            Map<String, String> values = new HashMap<>();
+            events.forEach((key, event) -> values.put(key, event.getData()));
+            return values;
+        });
+    }
+
+    /**
+     * The same as registerAsync, with the version of every value.
+     * @return future of the current value and version of every key.
      */
-    public String register(String key, ValueChangeListener listener) throws Exception {
-        // Use try to cover checked exception on watcher.register
-        ZkValueWatcher watcher = watchers.compute(key, (k, w) -> Try.of(() -> {
-            ZkValueWatcher newWatcher = w == null ? new ZkValueWatcher(client, k) : w;
+    @Override public CompletableFuture<Map<String, ValueChangedEvent>> registerVersionedAsync(Collection<String> keys,
+            ValueChangeListener listener) {
+        Map<String, CompletableFuture<ValueChangedEvent>> futures = new HashMap<>();
+        for (String key : keys) {
+            futures.put(key, registerWatcher(key, listener));
+        }
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()]))
+                .thenApply(v -> {
+                    Map<String, ValueChangedEvent> events = new HashMap<>();
+                    futures.forEach((key, future) -> events.put(key, future.join()));
+                    return events;
+                });
+    }
+
+    /**
+     * Add the listener to the watcher of the key, no zk operation happens while holding the watcher slot.
+     * @return future of the current value of the key, completed already if the key is in the snapshot.
+     */
+    private CompletableFuture<ValueChangedEvent> registerWatcher(String key, ValueChangeListener listener) {
+        ZkPrefixCache prefixCache = prefixCacheOf(key);
+        ZkValueWatcher watcher = watchers.compute(key, (k, w) -> {
+            ZkValueWatcher newWatcher = w == null ? new ZkValueWatcher(k, prefixCache) : w;
             newWatcher.register(listener);
             return newWatcher;
-        }).get());
+        });
+        idleWatchers.reuse(key);
 
-        return new ValueChangedEventZkBuilder().withData(watcher.nodeCache.getCurrentData())
-                .withKey(key)
-                .build()
-                .getData();
+        ValueChangedEvent known = snapshot.get(key);
+        if (known != null) {
+            // a warm value of the checkpoint is revalidated by the first load, a no-op for a running watcher
+            watcher.ensureRunning();
+            return CompletableFuture.completedFuture(known);
+        }
+        return watcher.ensureRunning();
+    }
+
+    /**
+     * register a listener to watch every key under the prefix, at any depth, without blocking.
+     * The subtree is watched by the configured tree cache covering the prefix, or by a tree cache started
+     * on demand, shared with the prefix watches under it, and closed with the last of them.
+     * Changes of keys under the prefix are neither in the snapshot nor in the change log.
+     * @param prefix the watched prefix, empty for every key
+     * @return future of the current value and version of every key under the prefix.
+     */
+    @Override public CompletableFuture<Map<String, ValueChangedEvent>> registerPrefixAsync(String prefix,
+            ValueChangeListener listener) {
+        PrefixWatch watch;
+        synchronized (prefixWatches) {
+            watch = prefixWatches.get(prefix);
+            if (watch == null) {
+                try {
+                    watch = new PrefixWatch(acquirePrefixCache(prefix));
+                } catch (Exception e) {
+                    CompletableFuture<Map<String, ValueChangedEvent>> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                }
+                prefixWatches.put(prefix, watch);
+            }
+            watch.listenerContainer.addListener(listener);
+        }
+        ZkPrefixCache cache = watch.cache;
+        return initialized(cache).thenApply(v -> cache.subtree(prefix));
+    }
+
+    /**
+     * deregister the listener of the prefix, the tree cache started for it is closed when no one uses it.
+     */
+    @Override public void deregisterPrefix(String prefix, ValueChangeListener listener) throws IOException {
+        synchronized (prefixWatches) {
+            PrefixWatch watch = prefixWatches.get(prefix);
+            if (watch == null) {
+                logger.error("Deregister failed: watch of prefix {} is not exists. There must be some bug!", prefix);
+                return;
+            }
+            watch.listenerContainer.removeListener(listener);
+            if (watch.listenerContainer.size() == 0) {
+                prefixWatches.remove(prefix);
+                if (watch.cache.release()) {
+                    watch.cache.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay the changes of the keys after the sequence of the change log from memory.
+     * @return the latest change of every key changed after the sequence, unchanged keys are left out.
+     * Null if the changes cannot be told from the log: another epoch, changes after the sequence dropped
+     * already, or any of the keys not watched all along since the sequence.
+     */
+    @Override public Map<String, ValueChangedEvent> changesSince(long epoch, long sequence, Collection<String> keys) {
+        if (epoch != changeLog.getEpoch()) {
+            return null;
+        }
+        Map<String, ValueChangedEvent> changes = changeLog.since(sequence);
+        if (changes == null) {
+            return null;
+        }
+        Map<String, ValueChangedEvent> replay = new HashMap<>();
+        for (String key : keys) {
+            if (!observedSince(key, sequence)) {
+                return null;
+            }
+            ValueChangedEvent change = changes.get(key);
+            if (change != null) {
+                replay.put(key, change);
+            }
+        }
+        return replay;
+    }
+
+    /**
+     * @return true if every change of the key after the sequence of the change log is in the log.
+     */
+    boolean observedSince(String key, long sequence) {
+        ZkValueWatcher watcher = watchers.get(key);
+        return watcher != null && watcher.observedSince(sequence);
+    }
+
+    @Override public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * @return the latest known value and version of the key, null if the key is not loaded.
+     */
+    @Override public ValueChangedEvent getKnownValue(String key) {
+        return snapshot.get(key);
     }
 
     /**
@@ -76,25 +375,54 @@ public class ZkValueDispatcher {
      * @param listener the listener that passed when `register`
      * @throws IOException when io error
      */
-    public void deregister(String key, ValueChangeListener listener) throws IOException {
-        watchers.compute(key, (k, v) -> {
-            if (v == null) {
-                // error, this means bug exists
-                logger.error("Deregister failed: nodeCache of key {} is not exists. There must be some bug!", k);
-                return null;
-            } else {
-                // NOTICE: raise error if deregister failed.
-                Try.run(() -> v.deregister(listener)).get();
-                // if no listener exists, remove it from watcher list.
-                if (v.listenerContainer.size() == 0) {
-                    return null;
-                } else {
-                    return v;
-                }
+    @Override public void deregister(String key, ValueChangeListener listener) throws IOException {
+        ZkValueWatcher watcher = watchers.computeIfPresent(key, (k, v) -> {
+            // NOTICE: raise error if deregister failed.
+            Try.run(() -> v.deregister(listener)).get();
+            return v;
+        });
+        if (watcher == null) {
+            // error, this means bug exists
+            logger.error("Deregister failed: watcher of key {} is not exists. There must be some bug!", key);
+            return;
+        }
+        // if no listener exists, keep it watched for a while, or remove it from watcher list.
+        if (watcher.listenerContainer.size() == 0 && !idleWatchers.retain(key)) {
+            evictIdle(key);
+        }
+    }
+
+    /**
+     * Stop watching the key, unless it got a listener again.
+     */
+    private void evictIdle(String key) {
+        watchers.computeIfPresent(key, (k, v) -> {
+            if (v.listenerContainer.size() > 0) {
+                return v;
             }
+            try {
+                v.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close watcher of key " + k, e);
+            }
+            return null;
         });
     }
 
+    /**
+     * @return the number of keys without listener kept watched for their grace period.
+     */
+    public int getIdleWatcherCount() {
+        return idleWatchers.size();
+    }
+
+    /**
+     * @return the number of keys watched again within their grace period, answered without loading them from zk.
+     */
+    public long getReusedIdleWatcherCount() {
+        return idleWatchers.getReusedCount();
+    }
+
     CuratorFramework getClient() {
         return client;
     }
@@ -103,38 +431,370 @@ public class ZkValueDispatcher {
         return watchers;
     }
 
+    ValueSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    List<ZkPrefixCache> getPrefixCaches() {
+        return prefixCaches;
+    }
+
+    /**
+     * @return the number of changes not dispatched to the listeners because a later change
+     * of the same key arrived within the coalescing window.
+     */
+    public long getCoalescedChangeCount() {
+        return coalescer.getSuppressedCount();
+    }
+
+    public int getFanoutLaneCount() {
+        return fanoutExecutor.getLaneCount();
+    }
+
+    /**
+     * @return how long the latest change waited in the fan-out lane before its listeners were called, in nanoseconds.
+     */
+    public long getFanoutLaneLagNanos(int lane) {
+        return fanoutExecutor.getLaneLagNanos(lane);
+    }
+
+    public int getFanoutLaneQueueSize(int lane) {
+        return fanoutExecutor.getLaneQueueSize(lane);
+    }
+
+    /**
+     * @return the tree cache to watch the subtree of the prefix, guarded by prefixWatches.
+     */
+    private ZkPrefixCache acquirePrefixCache(String prefix) throws Exception {
+        ZkPrefixCache configured = prefixCacheOf(prefix);
+        if (configured != null) {
+            return configured;
+        }
+        // any configured cache covering an ancestor covers the prefix as well, so these are on-demand caches
+        for (PrefixWatch ancestor : prefixWatches.prefixesOf(prefix)) {
+            ancestor.cache.retain();
+            return ancestor.cache;
+        }
+
+        ZkPrefixCache cache = new ZkPrefixCache(client, prefix, null, this::dispatchToPrefixWatches);
+        try {
+            cache.start();
+        } catch (Exception e) {
+            cache.close();
+            throw e;
+        }
+        cache.retain();
+        return cache;
+    }
+
+    /**
+     * Notify the prefix watches of the key fed by the source cache, a change of a key covered by nested
+     * caches comes from each of them.
+     */
+    private void dispatchToPrefixWatches(ZkPrefixCache source, String key, ChildData data) {
+        // the initial load of a cache is read by the registers
+        if (!source.initialized().isDone()) {
+            return;
+        }
+        List<PrefixWatch> watches = prefixWatches.prefixesOf(key);
+        if (watches.isEmpty()) {
+            return;
+        }
+        ValueChangedEvent event = new ValueChangedEventZkBuilder().withKey(key).withData(data).build();
+        for (PrefixWatch watch : watches) {
+            if (watch.cache == source) {
+                fanoutExecutor.execute(key, () -> fireChanged(watch.listenerContainer, event));
+            }
+        }
+    }
+
+    private void fireChanged(ListenerContainer<ValueChangeListener> listenerContainer, ValueChangedEvent event) {
+        long start = System.nanoTime();
+        changes.inc();
+        listenerContainer.forEach(listener -> {
+            try {
+                if (listener != null) {
+                    listener.onChanged(event);
+                }
+            } catch (Exception e) {
+                logger.error("Call ValueChangeListener failed.", e);
+            }
+            return null;
+        });
+        fanoutNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return future completed when the prefix cache finished its initial load, failed if not within the timeout,
+     * so the registers waiting for it are answered while zk is unreachable. The cache goes on loading,
+     * a later register waits for it again.
+     */
+    private CompletableFuture<Void> initialized(ZkPrefixCache cache) {
+        CompletableFuture<Void> initialized = cache.initialized();
+        if (initialized.isDone() || prefixCacheInitTimeoutMs <= 0) {
+            return initialized;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        initialized.thenRun(() -> future.complete(null));
+        try {
+            ScheduledFuture<?> timeout = resyncScheduler.schedule(() -> future.completeExceptionally(
+                    new TimeoutException("Tree cache of prefix " + cache.getPrefix() + " not loaded in "
+                            + prefixCacheInitTimeoutMs + " ms")), prefixCacheInitTimeoutMs, TimeUnit.MILLISECONDS);
+            future.whenComplete((v, e) -> timeout.cancel(false));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IllegalStateException("Dispatcher is shut down"));
+        }
+        return future;
+    }
+
+    private ZkPrefixCache prefixCacheOf(String key) {
+        for (ZkPrefixCache prefixCache : prefixCaches) {
+            if (prefixCache.covers(key)) {
+                return prefixCache;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the prefix without leading and trailing '/'
+     */
+    static String trimPrefix(String prefix) {
+        int begin = 0;
+        int end = prefix.length();
+        while (begin < end && prefix.charAt(begin) == '/') {
+            begin++;
+        }
+        while (end > begin && prefix.charAt(end - 1) == '/') {
+            end--;
+        }
+        return prefix.substring(begin, end);
+    }
+
+    /**
+     * @return true if the key is the prefix or under it, the empty prefix covers every key
+     */
+    static boolean covers(String prefix, String key) {
+        return prefix.isEmpty() || key.equals(prefix) || key.startsWith(prefix + ZKPaths.PATH_SEPARATOR);
+    }
+
     static String zkPathForKey(String key) {
         return ZKPaths.makePath(Data_Path, key);
     }
 
-    static class ZkValueWatcher implements Closeable {
-        private final NodeCache nodeCache;
+    /**
+     * @return the key of the zk path, null if the path is not a key node under the data path.
+     */
+    static String keyForZkPath(String path) {
+        if (path.length() <= Data_Path.length() + 1 || !path.startsWith(Data_Path + ZKPaths.PATH_SEPARATOR)) {
+            return null;
+        }
+        return path.substring(Data_Path.length() + 1);
+    }
+
+    /**
+     * @return true while the zk connection is suspended or lost, values are served from the snapshot then.
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    public boolean isResyncing() {
+        return resyncing;
+    }
+
+    /**
+     * @return how long the latest completed resync after a reconnection took.
+     */
+    public long getLastResyncDurationMs() {
+        return lastResyncDurationMs;
+    }
+
+    /**
+     * @return the number of keys read again by the latest completed resync.
+     */
+    public int getLastResyncKeyCount() {
+        return lastResyncKeyCount;
+    }
+
+    /**
+     * @return the number of keys read again by all the resyncs so far.
+     */
+    public long getResyncedKeyCount() {
+        return resyncReader.getReadCount();
+    }
+
+    /**
+     * @return id of the current zk session, 0 if not known
+     */
+    private long sessionId() {
+        try {
+            return client.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read again every key watched by its own zk watch, a batch after another, no faster than the rate.
+     */
+    private void resync() {
+        long generation = resyncReader.nextGeneration();
+        List<ZkValueWatcher> pending = new ArrayList<>(watchers.values());
+        pending.removeIf(watcher -> watcher.prefixCache != null);
+        resyncing = true;
+        logger.info("Resync {} keys after zk reconnection", pending.size());
+        resyncReader.readAll(generation, pending, ZkValueWatcher::resync, ms -> {
+            lastResyncDurationMs = ms;
+            lastResyncKeyCount = pending.size();
+            resyncing = false;
+            logger.info("Resynced {} keys in {} ms", pending.size(), ms);
+        });
+    }
+
+    /**
+     * Load the checkpoint into the snapshot. The keys are kept watched for the grace period unless registered
+     * meanwhile, without a grace period they are revalidated when registered.
+     * @return watchers of the warm keys to revalidate, null if the checkpoint cannot be loaded
+     */
+    private List<ZkValueWatcher> warmUp(Map<String, ValueChangedEvent> warm) {
+        if (warm == null) {
+            return null;
+        }
+        List<ZkValueWatcher> pending = new ArrayList<>(warm.size());
+        for (ValueChangedEvent event : warm.values()) {
+            if (!idleWatchers.retain(event.getKey())) {
+                snapshot.update(event);
+                continue;
+            }
+            ZkValueWatcher watcher = watchers.computeIfAbsent(event.getKey(),
+                    k -> new ZkValueWatcher(k, prefixCacheOf(k)));
+            snapshot.update(event);
+            pending.add(watcher);
+        }
+        return pending;
+    }
+
+    /**
+     * Revalidate the warm keys against zk in the background, at the resync rate.
+     */
+    private void revalidateWarm(List<ZkValueWatcher> pending) {
+        resyncReader.readAll(resyncReader.currentGeneration(), pending, ZkValueWatcher::revalidate,
+                checkpointer::revalidated);
+    }
+
+    /**
+     * @return the value of every watched key, to checkpoint.
+     */
+    private Collection<ValueChangedEvent> watchedValues() {
+        List<ValueChangedEvent> events = new ArrayList<>(watchers.size());
+        for (String key : watchers.keySet()) {
+            ValueChangedEvent event = snapshot.get(key);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @return the number of keys loaded from the checkpoint at start.
+     */
+    public int getWarmKeyCount() {
+        return checkpointer == null ? 0 : checkpointer.getWarmKeyCount();
+    }
+
+    /**
+     * @return the number of warm keys whose value changed in zk meanwhile.
+     */
+    public long getStaleWarmKeyCount() {
+        return checkpointer == null ? 0 : checkpointer.getStaleWarmKeyCount();
+    }
+
+    /**
+     * @return how long revalidating the warm keys took, 0 until it is done.
+     */
+    public long getWarmUpDurationMs() {
+        return checkpointer == null ? 0 : checkpointer.getWarmUpDurationMs();
+    }
+
+    /**
+     * Zk watches of a session survive a reconnection, but they are lost with an expired session, so every
+     * key watched by its own watch is resynced when reconnected. Changes missed meanwhile are found by the
+     * version diff of the snapshot.
+     */
+    private class ResyncOnReconnectListener implements ConnectionStateListener {
+        @Override public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            switch (newState) {
+            case SUSPENDED:
+            case LOST:
+                if (!degraded) {
+                    logger.warn("Zk connection {}, serve the last known values until reconnected", newState);
+                }
+                degraded = true;
+                break;
+            case RECONNECTED:
+                degraded = false;
+                resync();
+                break;
+            case CONNECTED:
+                degraded = false;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Watcher of one key. The key is either watched by its own zk watch, re-armed by a background read
+     * on every node event, or by the prefix cache covering it.
+     * Curator wraps the watcher anew for every call, and zk keeps every wrapper as another watch, so the key
+     * is read with a watch only when none is set in the current session. A watch survives the reconnections
+     * of its session.
+     *
+     * Listeners are called on the fan-out lane of the key, never on the zk event thread.
+     * Changes of the same key are delivered in order, changes of different keys in parallel.
+     */
+    class ZkValueWatcher implements Closeable, CuratorWatcher, BackgroundCallback {
+        // watchSession while a read setting the watch is in flight
+        private static final long Arming = -1;
+
+        // null if the key is watched by its own zk watch.
+        private final ZkPrefixCache prefixCache;
+        private final String key;
+        private final String path;
         private final ListenerContainer<ValueChangeListener> listenerContainer;
-        private final AtomicBoolean running = new AtomicBoolean(false);
 
-        ZkValueWatcher(CuratorFramework client, String key) {
-            nodeCache = new NodeCache(client, zkPathForKey(key));
-            listenerContainer = new ListenerContainer<>();
+        // guarded by this
+        private boolean running = false;
+        // a closed watcher is never started again, guarded by this
+        private boolean closed = false;
+        private CompletableFuture<ValueChangedEvent> loaded;
+        // every change after this sequence of the change log is in the log, guarded by this
+        private long observedSince = Long.MAX_VALUE;
+        // zk session the watch of the key is set in, Arming while being set, 0 if none, guarded by this
+        private long watchSession = 0;
 
-            nodeCache.getListenable().addListener(
-                    new ValueDispatcherNodeCacheListener(nodeCache, key, listenerContainer)
-            );
+        ZkValueWatcher(String key, ZkPrefixCache prefixCache) {
+            this.key = key;
+            this.path = zkPathForKey(key);
+            this.prefixCache = prefixCache;
+            this.listenerContainer = new ListenerContainer<>();
         }
 
-        void register(ValueChangeListener listener) throws Exception {
+        void register(ValueChangeListener listener) {
             synchronized (this) {
-                ensureRunning();
                 listenerContainer.addListener(listener);
             }
         }
 
+        /**
+         * The watcher keeps running without listeners, until closed.
+         */
         void deregister(ValueChangeListener listener) throws IOException {
             synchronized (this) {
                 listenerContainer.removeListener(listener);
-                if (listenerContainer.size() == 0) {
-                    ensureStop();
-                    listenerContainer.clear();
-                }
             }
         }
 
@@ -148,52 +808,578 @@ public class ZkValueDispatcher {
             }
         }
 
-        private void ensureRunning() throws Exception {
-            if (running.get()) {
+        /**
+         * Start watching the key if not yet, the key is loaded in background.
+         * @return future completed with the first loaded value of the key.
+         */
+        CompletableFuture<ValueChangedEvent> ensureRunning() {
+            CompletableFuture<ValueChangedEvent> future;
+            synchronized (this) {
+                if (running && !loaded.isCompletedExceptionally()) {
+                    return loaded;
+                }
+                if (closed) {
+                    future = new CompletableFuture<>();
+                    future.completeExceptionally(new IllegalStateException("Watcher of key " + key + " is closed"));
+                    return future;
+                }
+                running = true;
+                loaded = new CompletableFuture<>();
+                observedSince = Long.MAX_VALUE;
+                future = loaded;
+            }
+
+            if (prefixCache == null) {
+                load();
+            } else {
+                initialized(prefixCache).whenComplete((v, e) -> {
+                    if (e == null) {
+                        onData(prefixCache.getCurrentData(key));
+                    } else {
+                        fail(e instanceof Exception ? (Exception) e : new Exception(e));
+                    }
+                });
+            }
+            return future;
+        }
+
+        /**
+         * @return true if every change of the key after the sequence of the change log is in the log.
+         */
+        synchronized boolean observedSince(long sequence) {
+            return running && observedSince <= sequence;
+        }
+
+        /**
+         * Read the key again, and re-arm its zk watch if it is lost with the session.
+         * The key is dispatched only if its value changed.
+         * @return future completed when the read is answered
+         */
+        CompletableFuture<Void> resync() {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            synchronized (this) {
+                if (!running || prefixCache != null) {
+                    done.complete(null);
+                    return done;
+                }
+            }
+            try {
+                read((c, event) -> {
+                    try {
+                        processResult(c, event);
+                    } finally {
+                        done.complete(null);
+                    }
+                });
+            } catch (Exception e) {
+                fail(e);
+                done.complete(null);
+            }
+            return done;
+        }
+
+        /**
+         * Start the watcher of a warm key, unless closed meanwhile.
+         * @return future completed when the key is loaded
+         */
+        CompletableFuture<Void> revalidate() {
+            return ensureRunning().handle((event, e) -> null);
+        }
+
+        /**
+         * Read the key again and re-arm its zk watch if not set.
+         */
+        void reload() {
+            synchronized (this) {
+                if (!running || prefixCache != null) {
+                    return;
+                }
+            }
+            load();
+        }
+
+        private void ensureStop() {
+            closed = true;
+            // also the warm value of a watcher never started
+            snapshot.remove(key);
+            if (!running) {
                 return;
             }
-            running.set(true);
-            nodeCache.start(true);
+            running = false;
+            if (!loaded.isDone()) {
+                loaded.completeExceptionally(new IllegalStateException("Watcher of key " + key + " is closed"));
+            }
+            // NOTICE: zk watch cannot be removed, the watch triggered after stop is ignored.
+        }
+
+        private void load() {
+            try {
+                read(this);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Read the key in background, with a zk watch unless one is set in the current session.
+         * The context of the event tells if the read sets the watch.
+         */
+        private void read(BackgroundCallback callback) throws Exception {
+            long session = sessionId();
+            boolean watch;
+            synchronized (this) {
+                watch = watchSession == 0 || watchSession != Arming && watchSession != session;
+                if (watch) {
+                    watchSession = Arming;
+                }
+            }
+            if (watch) {
+                try {
+                    client.getData().usingWatcher(this).inBackground(callback, Boolean.TRUE).forPath(path);
+                } catch (Exception e) {
+                    watchSet(0);
+                    throw e;
+                }
+            } else {
+                client.getData().inBackground(callback, Boolean.FALSE).forPath(path);
+            }
         }
 
-        private void ensureStop() throws IOException {
-            if (!running.get()) {
+        /**
+         * @param session the session the watch is set in, 0 if it is not set
+         */
+        private synchronized void watchSet(long session) {
+            watchSession = session;
+        }
+
+        @Override public void process(WatchedEvent event) throws Exception {
+            if (event.getType() != Watcher.Event.EventType.None) {
+                // a zk watch triggers once
+                watchSet(0);
+                reload();
+            }
+        }
+
+        @Override public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+            KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+            boolean watched = Boolean.TRUE.equals(event.getContext());
+            switch (event.getType()) {
+            case GET_DATA:
+                if (code == KeeperException.Code.OK) {
+                    if (watched) {
+                        watchSet(sessionId());
+                    }
+                    onData(new ChildData(path, event.getStat(), event.getData()));
+                } else if (code == KeeperException.Code.NONODE && watched) {
+                    // no watch is set on a missing node, watch the creation of the node
+                    client.checkExists().usingWatcher(this).inBackground(this, Boolean.TRUE).forPath(path);
+                } else if (code == KeeperException.Code.NONODE) {
+                    // deleted, which triggers the watch set on the node
+                    onData(null);
+                } else {
+                    if (watched) {
+                        watchSet(0);
+                    }
+                    fail(KeeperException.create(code, path));
+                }
+                break;
+            case EXISTS:
+                if (code == KeeperException.Code.OK || code == KeeperException.Code.NONODE) {
+                    // set either way
+                    watchSet(sessionId());
+                }
+                if (code == KeeperException.Code.OK) {
+                    // created just now, the watch of the exists is set on the node already
+                    client.getData().inBackground(this, Boolean.FALSE).forPath(path);
+                } else if (code == KeeperException.Code.NONODE) {
+                    onData(null);
+                } else {
+                    watchSet(0);
+                    fail(KeeperException.create(code, path));
+                }
+                break;
+            default:
+                logger.warn("Unexpected zk event {} of key {}", event.getType(), key);
+            }
+        }
+
+        /**
+         * Update the snapshot, and notify the listeners if the key changed.
+         * The first loaded value is returned to the registers instead of notified, unless they were answered
+         * with a warm value which is stale.
+         * The snapshot is always up to date, while bursts of notifications are coalesced.
+         */
+        void onData(ChildData data) {
+            final ValueChangedEvent event = new ValueChangedEventZkBuilder().withKey(key).withData(data).build();
+            boolean changed;
+            CompletableFuture<ValueChangedEvent> firstLoad = null;
+            synchronized (this) {
+                if (!running) {
+                    return;
+                }
+                // before the first load, only a warm value is in the snapshot
+                boolean warm = !loaded.isDone() && snapshot.get(key) != null;
+                changed = snapshot.update(event);
+                if (!loaded.isDone()) {
+                    firstLoad = loaded;
+                    // changes before the first load are not observed
+                    observedSince = changeLog.getSequence();
+                    changed = changed && warm;
+                    if (changed && checkpointer != null) {
+                        checkpointer.stale();
+                    }
+                }
+                if (changed) {
+                    changeLog.append(event);
+                }
+            }
+
+            if (firstLoad != null) {
+                firstLoad.complete(event);
+            }
+            if (changed) {
+                coalescer.submit(event, this::fanout);
+            }
+        }
+
+        private void fail(Exception e) {
+            logger.error("Failed to load key " + key + " from zk", e);
+            CompletableFuture<ValueChangedEvent> firstLoad;
+            synchronized (this) {
+                firstLoad = running ? loaded : null;
+            }
+            if (firstLoad != null) {
+                // a later register will retry the load.
+                firstLoad.completeExceptionally(e);
+            }
+        }
+
+        private void fanout(ValueChangedEvent event) {
+            fanoutExecutor.execute(key, () -> fireChanged(listenerContainer, event));
+        }
+    }
+
+    /**
+     * Listeners of every key under a prefix, notified by the tree cache of the watch.
+     */
+    private static class PrefixWatch {
+        private final ZkPrefixCache cache;
+        private final ListenerContainer<ValueChangeListener> listenerContainer = new ListenerContainer<>();
+
+        PrefixWatch(ZkPrefixCache cache) {
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * Notified of every change in the subtree of a prefix cache.
+     */
+    interface SubtreeListener {
+        void onChanged(ZkPrefixCache source, String key, ChildData data);
+    }
+
+    /**
+     * One TreeCache over the zk subtree of a key prefix. Changes of the subtree are routed to the
+     * watcher of the changed key, if any, and to the subtree listener.
+     */
+    static class ZkPrefixCache implements Closeable {
+        private final String prefix;
+        private final TreeCache treeCache;
+        private final CompletableFuture<Void> initialized = new CompletableFuture<>();
+        // prefix watches using a cache started on demand, guarded by the prefix watches of the dispatcher
+        private int users = 0;
+
+        /**
+         * @param watchers null for a cache started on demand, whose keys are not watched by it
+         */
+        ZkPrefixCache(CuratorFramework client, String prefix, ConcurrentHashMap<String, ZkValueWatcher> watchers,
+                SubtreeListener subtreeListener) {
+            this.prefix = prefix;
+            this.treeCache = TreeCache.newBuilder(client, prefix.isEmpty() ? Data_Path : zkPathForKey(prefix))
+                    .setCacheData(true)
+                    .build();
+            this.treeCache.getListenable().addListener(
+                    new ValueDispatcherTreeCacheListener(this, watchers, initialized, subtreeListener));
+        }
+
+        void start() throws Exception {
+            treeCache.start();
+        }
+
+        String getPrefix() {
+            return prefix;
+        }
+
+        boolean covers(String key) {
+            return ZkValueDispatcher.covers(prefix, key);
+        }
+
+        /**
+         * @return future completed when the tree cache finished its initial load, its data cannot be trusted before.
+         */
+        CompletableFuture<Void> initialized() {
+            return initialized;
+        }
+
+        ChildData getCurrentData(String key) {
+            return treeCache.getCurrentData(zkPathForKey(key));
+        }
+
+        /**
+         * @return the current value of every key under the prefix, at any depth.
+         */
+        Map<String, ValueChangedEvent> subtree(String prefix) {
+            Map<String, ValueChangedEvent> events = new HashMap<>();
+            collect(prefix.isEmpty() ? Data_Path : zkPathForKey(prefix), events);
+            return events;
+        }
+
+        private void collect(String path, Map<String, ValueChangedEvent> events) {
+            Map<String, ChildData> children = treeCache.getCurrentChildren(path);
+            if (children == null) {
                 return;
             }
-            running.set(false);
-            nodeCache.close();
+            children.forEach((name, data) -> {
+                String childPath = ZKPaths.makePath(path, name);
+                String key = keyForZkPath(childPath);
+                events.put(key, new ValueChangedEventZkBuilder().withKey(key).withData(data).build());
+                collect(childPath, events);
+            });
+        }
+
+        void retain() {
+            users++;
+        }
+
+        /**
+         * @return true if the cache is started on demand and used by no one any more.
+         */
+        boolean release() {
+            return users > 0 && --users == 0;
+        }
+
+        @Override public void close() throws IOException {
+            treeCache.close();
         }
     }
 
-}
+    public static class Builder {
+        private String connectString;
+        private String namespace = Default_Namespace;
+        private Set<String> treeCachePrefixes = new LinkedHashSet<>();
+        private long coalesceWindowMs = 0;
+        private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+        private StripedExecutor fanoutExecutor;
+        private int changeLogCapacity = 4096;
+        private ChangeLog changeLog;
+        private long watcherGracePeriodMs = 0;
+        private int maxIdleWatchers = 10000;
+        private int resyncBatchSize = 100;
+        private int resyncKeysPerSecond = 2000;
+        private long prefixCacheInitTimeoutMs = 10000;
+        private Path snapshotFile;
+        private long checkpointIntervalMs = 60000;
+        private MetricsRegistry metrics = new MetricsRegistry();
+        private String metricsScope = "zk";
+
+        public Builder withConnectString(String connectString) {
+            this.connectString = connectString;
+            return this;
+        }
+
+        public Builder withNamespace(String namespace) {
+            this.namespace = namespace;
+            return this;
+        }
+
+        /**
+         * Watch the whole subtree of the prefix with one tree cache, an empty prefix means all the keys.
+         */
+        public Builder withTreeCachePrefix(String prefix) {
+            this.treeCachePrefixes.add(trimPrefix(prefix));
+            return this;
+        }
+
+        public Builder withTreeCachePrefixes(Collection<String> prefixes) {
+            prefixes.forEach(this::withTreeCachePrefix);
+            return this;
+        }
+
+        /**
+         * Changes of a key within the window are coalesced, only the latest one is dispatched.
+         * 0 disables coalescing.
+         */
+        public Builder withCoalesceWindowMs(long coalesceWindowMs) {
+            if (coalesceWindowMs < 0) {
+                throw new IllegalArgumentException("Coalesce window should not be negative: " + coalesceWindowMs);
+            }
+            this.coalesceWindowMs = coalesceWindowMs;
+            return this;
+        }
 
+        /**
+         * Number of threads calling the listeners, every key is pinned to one of them.
+         */
+        public Builder withFanoutThreads(int fanoutThreads) {
+            this.fanoutThreads = fanoutThreads;
+            return this;
+        }
+
+        /**
+         * Call the listeners on an executor shared with other dispatchers, instead of fanoutThreads of its own,
+         * see ShardedValueDispatcher. The executor is not shut down by the dispatcher.
+         */
+        public Builder withFanoutExecutor(StripedExecutor fanoutExecutor) {
+            this.fanoutExecutor = fanoutExecutor;
+            return this;
+        }
+
+        /**
+         * Max number of recent changes kept in memory for replay, see changesSince. 0 disables the replay.
+         */
+        public Builder withChangeLogCapacity(int changeLogCapacity) {
+            this.changeLogCapacity = changeLogCapacity;
+            return this;
+        }
+
+        /**
+         * Append the changes to a log shared with other dispatchers, instead of a log of its own,
+         * see ShardedValueDispatcher.
+         */
+        public Builder withChangeLog(ChangeLog changeLog) {
+            this.changeLog = changeLog;
+            return this;
+        }
+
+        /**
+         * How long a key without listener stays watched, 0 stops watching it at once.
+         */
+        public Builder withWatcherGracePeriodMs(long watcherGracePeriodMs) {
+            if (watcherGracePeriodMs < 0) {
+                throw new IllegalArgumentException("Watcher grace period should not be negative: "
+                        + watcherGracePeriodMs);
+            }
+            this.watcherGracePeriodMs = watcherGracePeriodMs;
+            return this;
+        }
+
+        /**
+         * Max number of keys without listener kept watched, the key idle for the longest time is evicted first.
+         */
+        public Builder withMaxIdleWatchers(int maxIdleWatchers) {
+            this.maxIdleWatchers = maxIdleWatchers;
+            return this;
+        }
+
+        /**
+         * Number of keys read at once by the resync after a zk reconnection.
+         */
+        public Builder withResyncBatchSize(int resyncBatchSize) {
+            if (resyncBatchSize <= 0) {
+                throw new IllegalArgumentException("Resync batch size should be positive: " + resyncBatchSize);
+            }
+            this.resyncBatchSize = resyncBatchSize;
+            return this;
+        }
+
+        /**
+         * Max number of keys read per second by the resync after a zk reconnection, 0 for no limit.
+         */
+        public Builder withResyncKeysPerSecond(int resyncKeysPerSecond) {
+            this.resyncKeysPerSecond = resyncKeysPerSecond;
+            return this;
+        }
+
+        /**
+         * How long a register under a prefix waits for the initial load of its tree cache before it fails,
+         * 0 waits for ever.
+         */
+        public Builder withPrefixCacheInitTimeoutMs(long prefixCacheInitTimeoutMs) {
+            this.prefixCacheInitTimeoutMs = prefixCacheInitTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Checkpoint the snapshot to the file, and answer registers from it after a restart.
+         */
+        public Builder withSnapshotFile(Path snapshotFile) {
+            this.snapshotFile = snapshotFile;
+            return this;
+        }
 
-class ValueDispatcherNodeCacheListener implements NodeCacheListener {
+        /**
+         * How often the snapshot is checkpointed, 0 checkpoints only at shutdown.
+         */
+        public Builder withCheckpointIntervalMs(long checkpointIntervalMs) {
+            this.checkpointIntervalMs = checkpointIntervalMs;
+            return this;
+        }
+
+        /**
+         * Register the metrics of the dispatcher to the registry, their names start with the scope.
+         */
+        public Builder withMetrics(MetricsRegistry metrics, String scope) {
+            this.metrics = metrics;
+            this.metricsScope = scope;
+            return this;
+        }
+
+        String getConnectString() {
+            return connectString;
+        }
+
+        public ZkValueDispatcher build() {
+            return new ZkValueDispatcher(this);
+        }
+    }
+}
+
+class ValueDispatcherTreeCacheListener implements TreeCacheListener {
     private final Logger logger = LoggerFactory.getLogger(getClass());
-    private final NodeCache cache;
-    private final String key;
-    private final ListenerContainer<ValueChangeListener> container;
-    ValueDispatcherNodeCacheListener(NodeCache cache, String key, ListenerContainer<ValueChangeListener> container) {
+    private final ZkValueDispatcher.ZkPrefixCache cache;
+    // null if the keys are not watched by the cache
+    private final ConcurrentHashMap<String, ZkValueDispatcher.ZkValueWatcher> watchers;
+    private final CompletableFuture<Void> initialized;
+    private final ZkValueDispatcher.SubtreeListener subtreeListener;
+    ValueDispatcherTreeCacheListener(ZkValueDispatcher.ZkPrefixCache cache,
+            ConcurrentHashMap<String, ZkValueDispatcher.ZkValueWatcher> watchers,
+            CompletableFuture<Void> initialized, ZkValueDispatcher.SubtreeListener subtreeListener) {
         this.cache = cache;
-        this.key = key;
-        this.container = container;
+        this.watchers = watchers;
+        this.initialized = initialized;
+        this.subtreeListener = subtreeListener;
     }
 
-    @Override public void nodeChanged() throws Exception {
-        ChildData data = cache.getCurrentData();
-        // TODO: handle the event version correctly
-        final ValueChangedEvent event = new ValueChangedEventZkBuilder().withKey(key).withData(data).build();
+    @Override public void childEvent(CuratorFramework client, TreeCacheEvent event) throws Exception {
+        switch (event.getType()) {
+        case INITIALIZED:
+            initialized.complete(null);
+            break;
+        case NODE_ADDED:
+        case NODE_UPDATED:
+            dispatch(event.getData().getPath(), event.getData());
+            break;
+        case NODE_REMOVED:
+            // the removed node is reported as not existing.
+            dispatch(event.getData().getPath(), null);
+            break;
+        default:
+            logger.debug("Ignore tree cache event {}", event.getType());
+        }
+    }
 
-        container.forEach(listener -> {
-            try {
-                if (listener != null) {
-                    listener.onChanged(event);
-                }
-            } catch (Exception e) {
-                logger.error("Call ValueChangeListener failed.", e);
-            }
-            return null;
-        });
+    private void dispatch(String path, ChildData data) {
+        String key = ZkValueDispatcher.keyForZkPath(path);
+        if (key == null) {
+            return;
+        }
+        subtreeListener.onChanged(cache, key, data);
+        ZkValueDispatcher.ZkValueWatcher watcher = watchers == null ? null : watchers.get(key);
+        if (watcher == null) {
+            // no one is interested in the key.
+            return;
+        }
+        watcher.onData(data);
     }
 }
 
@@ -214,7 +1400,7 @@ class ValueChangedEventZkBuilder {
         if (data == null) {
             return ValueChangedEvent.NotExist(key);
         } else {
-            return ValueChangedEvent.Updated(key, data.getStat().getVersion(), new String(data.getData()));
+            return ValueChangedEvent.Updated(key, data.getStat().getVersion(), data.getData());
         }
     }
 }
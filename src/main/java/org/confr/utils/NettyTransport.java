@@ -0,0 +1,48 @@
+package org.confr.utils;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Netty transport, the native epoll transport when it is available on the platform, NIO otherwise.
+ */
+public class NettyTransport {
+    private final boolean epoll;
+
+    /**
+     * @param preferNative use the native transport when it is available
+     */
+    public NettyTransport(boolean preferNative) {
+        this.epoll = preferNative && Epoll.isAvailable();
+    }
+
+    public boolean isNative() {
+        return epoll;
+    }
+
+    /**
+     * @param threads number of event loop threads, 0 for the netty default of twice the number of cores
+     * @param name name prefix of the event loop threads
+     */
+    public EventLoopGroup newEventLoopGroup(int threads, String name) {
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+        return epoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    public Class<? extends ServerSocketChannel> serverChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public Class<? extends SocketChannel> channelClass() {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+}
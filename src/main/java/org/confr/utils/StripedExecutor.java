@@ -0,0 +1,89 @@
+package org.confr.utils;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor of several single thread lanes.
+ * Tasks of the same stripe always run on the same lane one after another in submission order,
+ * while tasks of different stripes run in parallel on different lanes.
+ * This class is thread safe.
+ */
+public class StripedExecutor {
+    private final Lane[] lanes;
+
+    /**
+     * @param name name prefix of the lane threads
+     * @param laneCount number of lanes, each lane is one thread
+     */
+    public StripedExecutor(String name, int laneCount) {
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException("Lane count should be positive: " + laneCount);
+        }
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(name + "-" + i);
+        }
+    }
+
+    public void execute(Object stripe, Runnable task) {
+        lanes[laneOf(stripe)].execute(task);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return the time the latest task of the lane waited in queue before it started, in nanoseconds
+     */
+    public long getLaneLagNanos(int lane) {
+        return lanes[lane].lagNanos.get();
+    }
+
+    /**
+     * @return number of the tasks waiting in the lane
+     */
+    public int getLaneQueueSize(int lane) {
+        return lanes[lane].executor.getQueue().size();
+    }
+
+    /**
+     * Tasks submitted already are finished before the lanes stop.
+     */
+    public void shutdown() throws InterruptedException {
+        for (Lane lane : lanes) {
+            lane.executor.shutdown();
+        }
+        for (Lane lane : lanes) {
+            lane.executor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private int laneOf(Object stripe) {
+        int h = stripe.hashCode();
+        // spread the hash, the same as HashMap does
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    private static class Lane {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong lagNanos = new AtomicLong(0);
+
+        Lane(String name) {
+            this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    r -> ThreadUtils.newThread(name, r, true));
+        }
+
+        void execute(Runnable task) {
+            long submitNanos = System.nanoTime();
+            executor.execute(() -> {
+                lagNanos.set(System.nanoTime() - submitNanos);
+                task.run();
+            });
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.confr.client;
+
+import org.confr.messages.ConfigDigest;
+import org.confr.messages.ConfrMessage;
+import org.confr.messages.SyncResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ConfrSessionTest {
+    @Test
+    public void testStaleKeys() {
+        int buckets = 4;
+        int differing = ConfigDigest.bucketOf("k0", buckets);
+        List<String> keys = new ArrayList<>();
+        List<String> inBucket = new ArrayList<>();
+        List<String> otherBucket = new ArrayList<>();
+        for (int i = 0; inBucket.size() < 4 || otherBucket.isEmpty(); i++) {
+            String key = "k" + i;
+            keys.add(key);
+            (ConfigDigest.bucketOf(key, buckets) == differing ? inBucket : otherBucket).add(key);
+        }
+
+        Map<String, Integer> versions = new HashMap<>();
+        Map<String, Integer> serverVersions = new HashMap<>();
+        for (String key : keys) {
+            versions.put(key, 1);
+        }
+        for (String key : inBucket) {
+            serverVersions.put(key, 1);
+        }
+        // changed on the server, unknown to the client, unknown to the server
+        serverVersions.put(inBucket.get(1), 2);
+        versions.remove(inBucket.get(2));
+        serverVersions.remove(inBucket.get(3));
+        // keys of the buckets in sync are never compared
+        versions.put(otherBucket.get(0), 5);
+
+        SyncResponse response = new SyncResponse(ConfrMessage.Protocol_V1, 1, "client", new int[]{differing},
+                serverVersions, null);
+        Set<String> expected = new HashSet<>(inBucket.subList(1, 4));
+        assertEquals(expected, ConfrSession.staleKeys(response, keys, buckets, versions));
+
+        SyncResponse inSync = new SyncResponse(ConfrMessage.Protocol_V1, 2, "client", new int[0],
+                new HashMap<>(), null);
+        assertTrue(ConfrSession.staleKeys(inSync, keys, buckets, versions).isEmpty());
+    }
+}
@@ -1,12 +1,21 @@
 package org.confr.codec;
 
+import org.confr.messages.ConfChangeResponse;
 import org.confr.messages.Ping;
+import org.confr.messages.ProtocolContext;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
 public class ConfrMessageDecoderTest {
     @Test
     public void testDecodeSuccess() {
@@ -32,4 +41,72 @@ public class ConfrMessageDecoderTest {
 
         Assert.assertTrue(!channel.isOpen());
     }
+
+    @Test
+    public void testDecodeLazy() throws Exception {
+        ByteBuf frame = changeFrame(3);
+        EmbeddedChannel channel = new EmbeddedChannel(new ConfrMessageDecoder(true));
+        channel.writeInbound(frame);
+        ConfChangeResponse lazy = channel.readInbound();
+        // the message holds a slice of the frame
+        Assert.assertEquals(1, frame.refCnt());
+        Assert.assertEquals("value1", lazy.getData().get("key1"));
+        Assert.assertEquals(0, frame.refCnt());
+        Assert.assertTrue(lazy.release());
+
+        frame = changeFrame(3);
+        channel.writeInbound(frame);
+        ConfChangeResponse unread = channel.readInbound();
+        // releasing the message releases the slice when the data is never read
+        unread.release();
+        Assert.assertEquals(0, frame.refCnt());
+        channel.finish();
+    }
+
+    @Test
+    public void testDecodeAllocation() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+
+        ByteBuf frame = changeFrame(100);
+        ConfrMessageDecoder decoder = new ConfrMessageDecoder(true);
+        List<Object> out = new ArrayList<>();
+        int rounds = 10000;
+        // warm up, so the allocations of class loading and jit are not counted
+        decodeLazy(decoder, frame, out, rounds);
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        decodeLazy(decoder, frame, out, rounds);
+        long perMessage = (allocationBean.getThreadAllocatedBytes(threadId) - before) / rounds;
+        frame.release();
+        // the message and its slice, the 200 strings of the map are not decoded
+        Assert.assertTrue("Allocated " + perMessage + " bytes per message", perMessage < 512);
+    }
+
+    private static void decodeLazy(ConfrMessageDecoder decoder, ByteBuf frame, List<Object> out,
+            int rounds) throws Exception {
+        for (int i = 0; i < rounds; i++) {
+            frame.readerIndex(Integer.BYTES);
+            decoder.decode(frame, out, ProtocolContext.V1);
+            ((ConfChangeResponse) out.get(0)).release();
+            out.clear();
+        }
+    }
+
+    /**
+     * @return a pooled frame of a ConfChangeResponse without the length field, as the frame decoder passes on.
+     */
+    private static ByteBuf changeFrame(int entries) throws Exception {
+        ConfChangeResponse.Builder builder = ConfChangeResponse.builder().setClientId("client");
+        for (int i = 0; i < entries; i++) {
+            builder.addConfigData("key" + i, "value" + i);
+        }
+        ByteBuf frame = PooledByteBufAllocator.DEFAULT.directBuffer();
+        ConfrMessageEncoder.writeFrame(builder.build(), frame);
+        frame.skipBytes(Integer.BYTES);
+        return frame;
+    }
 }
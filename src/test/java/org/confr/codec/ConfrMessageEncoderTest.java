@@ -0,0 +1,161 @@
+package org.confr.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import org.confr.messages.ConfChangeResponse;
+import org.confr.messages.ConfigDigest;
+import org.confr.messages.ConfrMessage;
+import org.confr.messages.KeyIdTable;
+import org.confr.messages.ProtocolContext;
+import org.confr.messages.SyncRequest;
+import org.confr.messages.SyncResponse;
+import org.confr.messages.WatchKeysRequest;
+import org.confr.messages.WatchKeysResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConfrMessageEncoderTest {
+    @Test
+    public void testEncodeExactFrame() throws Exception {
+        WatchKeysResponse response = WatchKeysResponse.builder().setClientId("client").setCorrelationId(7)
+                .addConfigData("key", "value").addConfigData("键", "值").build();
+        EmbeddedChannel channel = new EmbeddedChannel(new ConfrMessageEncoder());
+        assertTrue(channel.writeOutbound(response));
+
+        ByteBuf frame = channel.readOutbound();
+        assertTrue(frame.isDirect());
+        assertEquals(ConfrMessageEncoder.frameSize(response), frame.capacity());
+        assertEquals(frame.readableBytes(), frame.getInt(0));
+
+        EmbeddedChannel decoder = new EmbeddedChannel(
+                new LengthFieldBasedFrameDecoder(4 * 1024 * 1024, 0, 4, -4, 4), new ConfrMessageDecoder());
+        decoder.writeInbound(frame);
+        WatchKeysResponse decoded = decoder.readInbound();
+        assertEquals(7, decoded.getCorrelationId());
+        assertEquals("client", decoded.getClientId());
+        assertEquals(response.getConfigData(), decoded.getConfigData());
+        assertFalse(channel.finish());
+        assertFalse(decoder.finish());
+    }
+
+    @Test
+    public void testProtocolV2() throws Exception {
+        KeyIdTable serverIds = new KeyIdTable();
+        String clientId = "0123456789abcdef0123456789abcdef";
+        WatchKeysResponse response = WatchKeysResponse.builder().setClientId(clientId).setCorrelationId(7)
+                .setVersionId(ConfrMessage.Protocol_V2).setKeyIds(serverIds)
+                .addConfigData("app.db.url", "jdbc:mysql://db:3306").build();
+        ConfChangeResponse change = ConfChangeResponse.builder().setClientId(clientId)
+                .setVersionId(ConfrMessage.Protocol_V2).setKeyIds(serverIds)
+                .addConfigData("app.db.url", "jdbc:mysql://db2:3306").build();
+        ConfChangeResponse changeV1 = ConfChangeResponse.builder().setClientId(clientId)
+                .addConfigData("app.db.url", "jdbc:mysql://db2:3306").build();
+        // the change push carries the key id only
+        assertTrue(ConfrMessageEncoder.frameSize(change) * 2 < ConfrMessageEncoder.frameSize(changeV1));
+
+        ProtocolContext clientProtocol = new ProtocolContext(ConfrMessage.Protocol_V2, clientId, new KeyIdTable());
+        WatchKeysResponse decodedResponse = (WatchKeysResponse) decode(response, clientProtocol);
+        assertEquals(7, decodedResponse.getCorrelationId());
+        assertEquals(clientId, decodedResponse.getClientId());
+        assertEquals(response.getConfigData(), decodedResponse.getConfigData());
+        // the response defines the key id, which the change refers to
+        ConfChangeResponse decodedChange = (ConfChangeResponse) decode(change, clientProtocol);
+        assertEquals("jdbc:mysql://db2:3306", decodedChange.getData().get("app.db.url"));
+    }
+
+    @Test
+    public void testProtocolV2Versions() throws Exception {
+        String clientId = "client";
+        ProtocolContext serverProtocol = new ProtocolContext(ConfrMessage.Protocol_V2, clientId, new KeyIdTable());
+        WatchKeysRequest request = WatchKeysRequest.builder().setVersionId(ConfrMessage.Protocol_V2)
+                .setClientId(clientId).addWatchKey("known", 3).addWatchKey("missing", Integer.MIN_VALUE)
+                .addWatchKey("new", WatchKeysRequest.Unknown_Version).build();
+        WatchKeysRequest decodedRequest = (WatchKeysRequest) decode(request, serverProtocol);
+        assertEquals(request.getKeys(), decodedRequest.getKeys());
+        assertEquals(3, decodedRequest.getKnownVersion("known"));
+        assertEquals(Integer.MIN_VALUE, decodedRequest.getKnownVersion("missing"));
+        assertEquals(WatchKeysRequest.Unknown_Version, decodedRequest.getKnownVersion("new"));
+
+        // only the new key carries its value, the others define their ids only
+        WatchKeysResponse response = WatchKeysResponse.builder().setVersionId(ConfrMessage.Protocol_V2)
+                .setKeyIds(serverProtocol.getKeyIds()).setClientId(clientId)
+                .addConfigData("new", "value", 0).addUnchangedKey("known").addUnchangedKey("missing").build();
+        ProtocolContext clientProtocol = new ProtocolContext(ConfrMessage.Protocol_V2, clientId, new KeyIdTable());
+        WatchKeysResponse decodedResponse = (WatchKeysResponse) decode(response, clientProtocol);
+        assertEquals(Collections.singletonMap("new", "value"), decodedResponse.getConfigData());
+        assertEquals(Collections.singletonMap("new", 0), decodedResponse.getVersions());
+        assertEquals(response.getUnchangedKeys(), decodedResponse.getUnchangedKeys());
+
+        ConfChangeResponse change = ConfChangeResponse.builder().setVersionId(ConfrMessage.Protocol_V2)
+                .setKeyIds(serverProtocol.getKeyIds()).setClientId(clientId)
+                .addConfigData("known", "changed", 4).setLogSequence(42).build();
+        ConfChangeResponse decodedChange = (ConfChangeResponse) decode(change, clientProtocol);
+        assertEquals("changed", decodedChange.getData().get("known"));
+        assertEquals(4, (int) decodedChange.getVersions().get("known"));
+        assertEquals(42, decodedChange.getLogSequence());
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        // the digest does not depend on the order of the keys
+        ConfigDigest server = new ConfigDigest(4).add("a", 1).add("b", 2).add("c", Integer.MIN_VALUE);
+        ConfigDigest client = new ConfigDigest(4).add("c", Integer.MIN_VALUE).add("b", 2).add("a", 1);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(server.getBucket(i), client.getBucket(i));
+        }
+        client = new ConfigDigest(4).add("a", 1).add("b", 3).add("c", Integer.MIN_VALUE);
+        int stale = ConfigDigest.bucketOf("b", 4);
+        assertNotEquals(server.getBucket(stale), client.getBucket(stale));
+
+        KeyIdTable keyIds = new KeyIdTable();
+        ProtocolContext protocol = new ProtocolContext(ConfrMessage.Protocol_V2, "client", keyIds);
+        SyncRequest request = new SyncRequest(ConfrMessage.Protocol_V2, 1, "client", client);
+        assertTrue(ConfrMessageEncoder.frameSize(request) < 32);
+        SyncRequest decodedRequest = (SyncRequest) decode(request, protocol);
+        assertEquals(client.getBucket(stale), decodedRequest.getDigest().getBucket(stale));
+
+        SyncResponse response = new SyncResponse(ConfrMessage.Protocol_V2, 1, "client", new int[] {stale},
+                Collections.singletonMap("b", 2), keyIds);
+        SyncResponse decodedResponse = (SyncResponse) decode(response, protocol);
+        assertArrayEquals(new int[] {stale}, decodedResponse.getDifferingBuckets());
+        assertEquals(Collections.singletonMap("b", 2), decodedResponse.getVersions());
+    }
+
+    @Test
+    public void testBinaryValues() throws Exception {
+        // not valid UTF-8, must pass through untouched
+        byte[] value = new byte[] {0, (byte) 0xff, (byte) 0xc3, 0x28};
+        String clientId = "client";
+        for (short version : new short[] {ConfrMessage.Protocol_V1, ConfrMessage.Protocol_V2}) {
+            KeyIdTable serverIds = new KeyIdTable();
+            ProtocolContext clientProtocol = new ProtocolContext(version, clientId, new KeyIdTable());
+            WatchKeysResponse response = WatchKeysResponse.builder().setVersionId(version).setKeyIds(serverIds)
+                    .setClientId(clientId).addConfigData("binary", value, 1).build();
+            WatchKeysResponse decodedResponse = (WatchKeysResponse) decode(response, clientProtocol);
+            assertArrayEquals(value, decodedResponse.getRawConfigData().get("binary"));
+
+            // a change of a key the client does not know yet, defining its id
+            ConfChangeResponse change = ConfChangeResponse.builder().setVersionId(version).setKeyIds(serverIds)
+                    .setClientId(clientId).setDefinesKeyIds(true).addConfigData("other", value, 2).build();
+            ConfChangeResponse decodedChange = (ConfChangeResponse) decode(change, clientProtocol);
+            assertArrayEquals(value, decodedChange.getRawData().get("other"));
+        }
+    }
+
+    private static ConfrMessage decode(ConfrMessage msg, ProtocolContext protocol) throws Exception {
+        ByteBuf frame = Unpooled.buffer(ConfrMessageEncoder.frameSize(msg));
+        ConfrMessageEncoder.writeFrame(msg, frame);
+        assertEquals(frame.readableBytes(), frame.readInt());
+        List<Object> out = new ArrayList<>();
+        new ConfrMessageDecoder(true).decode(frame, out, protocol);
+        frame.release();
+        return (ConfrMessage) out.get(0);
+    }
+}
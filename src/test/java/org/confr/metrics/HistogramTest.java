@@ -0,0 +1,38 @@
+package org.confr.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void testBuckets() {
+        assertEquals(0, Histogram.bucketOf(0));
+        assertEquals(15, Histogram.bucketOf(15));
+        assertEquals(16, Histogram.bucketOf(16));
+        assertEquals(Histogram.bucketOf(32), Histogram.bucketOf(33));
+        assertEquals(959, Histogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Histogram.highestOf(959));
+        // every value is within 1/16 of the highest value of its bucket
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long highest = Histogram.highestOf(Histogram.bucketOf(value));
+            assertTrue(value + " in bucket up to " + highest, highest >= value && highest - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-1);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500000, histogram.getSum());
+        assertEquals(500000, histogram.getPercentile(50), 500000 / 16);
+        assertEquals(990000, histogram.getPercentile(99), 990000 / 16);
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,65 @@
+package org.confr.metrics;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+    @Test
+    public void testRegistry() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("requests").add(3);
+        assertSame(metrics.counter("requests"), metrics.counter("requests"));
+        metrics.histogram("request.nanos").record(100);
+        metrics.gauge("queue.size", () -> 7);
+        try {
+            metrics.histogram("requests");
+            fail("a counter is not a histogram");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        StringBuilder text = new StringBuilder();
+        metrics.writeText(text);
+        assertTrue(text.toString(), text.toString().contains("confr_requests 3\n"));
+        assertTrue(text.toString(), text.toString().contains("confr_queue_size 7\n"));
+        assertTrue(text.toString(), text.toString().contains("confr_request_nanos_count 1\n"));
+        assertTrue(text.toString(), text.toString().contains("confr_request_nanos{quantile=\"0.99\"} 100\n"));
+
+        ObjectName name = MetricsMBean.register(metrics, "org.confr.test:type=Metrics");
+        try {
+            assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "requests"));
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "request.nanos.count"));
+            try {
+                ManagementFactory.getPlatformMBeanServer().invoke(name, "reset", new Object[0], new String[0]);
+                fail("metrics have no operation");
+            } catch (ReflectionException expected) {
+                assertTrue(expected.getCause() instanceof NoSuchMethodException);
+            }
+        } finally {
+            MetricsMBean.unregister(name);
+        }
+
+        MetricsHttpServer server = new MetricsHttpServer(metrics, "127.0.0.1", 0);
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getLocalAddress().getPort() + "/metrics");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream();
+                 Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A")) {
+                assertTrue(scanner.next().contains("confr_requests 3\n"));
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+}
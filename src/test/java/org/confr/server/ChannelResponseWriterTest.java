@@ -0,0 +1,195 @@
+package org.confr.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.confr.messages.ConfChangeResponse;
+import org.confr.messages.ConfrMessage;
+import org.confr.messages.KeyIdTable;
+import org.confr.messages.ProtocolContext;
+import org.confr.storage.ValueChangedEvent;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ChannelResponseWriterTest {
+    @Test
+    public void testCoalesceWhenUnwritable() throws Exception {
+        ResponseHandler responseHandler = new ResponseHandler(10, 0, 1);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        responseHandler.initChannel(channel);
+        ChannelResponseWriter writer = ChannelResponseWriter.of(channel);
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        ByteBuf first = buf("k1-v1");
+        responseHandler.sendResponse(new ChangeResponseInfo(channel, "k1", first));
+        responseHandler.sendResponse(new ChangeResponseInfo(channel, "k2", buf("k2-v1")));
+        responseHandler.sendResponse(new ChangeResponseInfo(channel, "k1", buf("k1-v2")));
+        channel.runPendingTasks();
+
+        assertNull(channel.readOutbound());
+        assertEquals(2, writer.getPendingChangeCount());
+        assertEquals(0, first.refCnt());
+        assertEquals(1, responseHandler.getCoalescedChangeCount());
+        assertEquals(0, responseHandler.getPendingResponseCount());
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+        writer.writabilityChanged();
+        // keys are written in the order of their latest pending change, with the latest value
+        assertEquals("k2-v1", read(channel));
+        assertEquals("k1-v2", read(channel));
+        assertNull(channel.readOutbound());
+        assertEquals(0, writer.getPendingChangeCount());
+        channel.finish();
+    }
+
+    @Test
+    public void testCloseSlowClient() throws Exception {
+        ResponseHandler responseHandler = new ResponseHandler(1, 0, 1);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        responseHandler.initChannel(channel);
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        ByteBuf first = buf("k1-v1");
+        ByteBuf second = buf("k2-v1");
+        responseHandler.sendResponse(new ChangeResponseInfo(channel, "k1", first));
+        responseHandler.sendResponse(new ChangeResponseInfo(channel, "k2", second));
+        channel.runPendingTasks();
+
+        assertFalse(channel.isOpen());
+        assertEquals(1, responseHandler.getSlowClientsClosedCount());
+        assertEquals(0, first.refCnt());
+        assertEquals(0, second.refCnt());
+    }
+
+    @Test
+    public void testMergeWithinBatchWindow() throws Exception {
+        ResponseHandler responseHandler = new ResponseHandler(10, 50, 10);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        responseHandler.initChannel(channel);
+        SharedChangeEncoder encoder = new SharedChangeEncoder(ByteBufAllocator.DEFAULT, new KeyIdTable());
+
+        responseHandler.sendResponse(change(channel, encoder, "k1", "v1"));
+        responseHandler.sendResponse(change(channel, encoder, "k2", "v1"));
+        responseHandler.sendResponse(change(channel, encoder, "k1", "v2"));
+        channel.runPendingTasks();
+        // held until the window closes
+        assertNull(channel.readOutbound());
+        assertEquals(2, ChannelResponseWriter.of(channel).getPendingChangeCount());
+
+        Thread.sleep(100);
+        channel.runScheduledPendingTasks();
+        Map<String, String> merged = readChanges(channel);
+        assertEquals(2, merged.size());
+        assertEquals("v2", merged.get("k1"));
+        assertEquals("v1", merged.get("k2"));
+        assertNull(channel.readOutbound());
+        assertEquals(1, responseHandler.getCoalescedChangeCount());
+        assertEquals(2, responseHandler.getMergedChangeCount());
+        channel.finish();
+        encoder.close();
+    }
+
+    @Test
+    public void testSplitAtBatchMaxKeys() throws Exception {
+        ResponseHandler responseHandler = new ResponseHandler(10, 0, 2);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        responseHandler.initChannel(channel);
+        SharedChangeEncoder encoder = new SharedChangeEncoder(ByteBufAllocator.DEFAULT, new KeyIdTable());
+
+        responseHandler.sendResponse(change(channel, encoder, "k1", "v1"));
+        responseHandler.sendResponse(change(channel, encoder, "k2", "v1"));
+        responseHandler.sendResponse(change(channel, encoder, "k3", "v1"));
+        channel.runPendingTasks();
+        assertEquals(new HashSet<>(Arrays.asList("k1", "k2")), readChanges(channel).keySet());
+        assertEquals(Collections.singleton("k3"), readChanges(channel).keySet());
+        assertNull(channel.readOutbound());
+        channel.finish();
+        encoder.close();
+    }
+
+    @Test
+    public void testWritePendingChangesBeforeResponse() throws Exception {
+        ResponseHandler responseHandler = new ResponseHandler(10, 10000, 10);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        responseHandler.initChannel(channel);
+        SharedChangeEncoder encoder = new SharedChangeEncoder(ByteBufAllocator.DEFAULT, new KeyIdTable());
+
+        responseHandler.sendResponse(change(channel, encoder, "k1", "v1"));
+        channel.runPendingTasks();
+        assertNull(channel.readOutbound());
+
+        // the change goes first, though its batch window is still open
+        responseHandler.sendResponse(new ResponseInfo<>(channel, buf("response")));
+        channel.runPendingTasks();
+        assertEquals(Collections.singletonMap("k1", "v1"), readChanges(channel));
+        assertEquals("response", read(channel));
+        assertNull(channel.readOutbound());
+        assertEquals(0, ChannelResponseWriter.of(channel).getPendingChangeCount());
+        channel.finish();
+        encoder.close();
+    }
+
+    @Test
+    public void testWritePendingChangesBeforeResponseWhenUnwritable() throws Exception {
+        ResponseHandler responseHandler = new ResponseHandler(10, 0, 1);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        responseHandler.initChannel(channel);
+
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+        responseHandler.sendResponse(new ChangeResponseInfo(channel, "k1", buf("k1-v1")));
+        responseHandler.sendResponse(new ChangeResponseInfo(channel, "k2", buf("k2-v1")));
+        channel.runPendingTasks();
+        assertNull(channel.readOutbound());
+
+        // every pending change goes before the response, or the client may apply them over its newer values
+        responseHandler.sendResponse(new ResponseInfo<>(channel, buf("response")));
+        channel.runPendingTasks();
+        assertEquals("k1-v1", read(channel));
+        assertEquals("k2-v1", read(channel));
+        assertEquals("response", read(channel));
+        assertNull(channel.readOutbound());
+        assertEquals(0, ChannelResponseWriter.of(channel).getPendingChangeCount());
+        channel.finish();
+    }
+
+    private static ChangeResponseInfo change(EmbeddedChannel channel, SharedChangeEncoder encoder, String key,
+            String value) throws Exception {
+        ValueChangedEvent event = ValueChangedEvent.Updated(key, 1, value);
+        return new ChangeResponseInfo(channel, key, encoder.encode(event, ConfrMessage.Protocol_V1));
+    }
+
+    /**
+     * @return the values of the keys of a ConfChangeResponse written to the channel
+     */
+    private static Map<String, String> readChanges(EmbeddedChannel channel) throws Exception {
+        ByteBuf frame = channel.readOutbound();
+        try {
+            assertEquals(frame.readableBytes(), frame.readInt());
+            frame.skipBytes(Integer.BYTES);
+            return ConfChangeResponse.readFrom(frame, ProtocolContext.V1, false).getData();
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static ByteBuf buf(String s) {
+        return Unpooled.copiedBuffer(s, StandardCharsets.UTF_8);
+    }
+
+    private static String read(EmbeddedChannel channel) {
+        ByteBuf buf = channel.readOutbound();
+        try {
+            return buf.toString(StandardCharsets.UTF_8);
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.confr.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.confr.codec.ConnectionProtocol;
+import org.confr.messages.ConfChangeResponse;
+import org.confr.messages.ConfigDigest;
+import org.confr.messages.ConfrMessage;
+import org.confr.messages.Handshake;
+import org.confr.messages.SyncRequest;
+import org.confr.messages.SyncResponse;
+import org.confr.messages.WatchKeysRequest;
+import org.confr.messages.WatchKeysResponse;
+import org.confr.metrics.MetricsRegistry;
+import org.confr.storage.InMemoryValueDispatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConfRequestsTest {
+    private InMemoryValueDispatcher dispatcher;
+    private ResponseHandler responseHandler;
+    private ConfRequests requests;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void init() throws Exception {
+        dispatcher = new InMemoryValueDispatcher(1, 16);
+        dispatcher.start();
+        responseHandler = new ResponseHandler(10, 0, 1);
+        requests = new ConfRequests(dispatcher, new NettyRequestResponseChannel(1, 10, responseHandler),
+                new MetricsRegistry());
+        channel = new EmbeddedChannel();
+        responseHandler.initChannel(channel);
+    }
+
+    @After
+    public void destroy() throws Exception {
+        channel.finish();
+        requests.shutdown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testSyncDiffersInBuckets() throws Exception {
+        List<String> keys = Arrays.asList("k0", "k1", "k2", "k3", "k4", "k5", "k6", "k7", "k8", "k9");
+        for (String key : keys) {
+            dispatcher.put(key, key.getBytes());
+        }
+        requests.handleRequest(new RequestInfo<>(channel, WatchKeysRequest.builder().addWatchKeys(keys)
+                .setVersionId(ConfrMessage.Protocol_V1).setClientId("client").setCorrelationId(1).build()));
+        assertTrue(readOutbound() instanceof WatchKeysResponse);
+        dispatcher.put("k1", "changed".getBytes());
+        // the change pushed by the fan-out thread
+        ReferenceCountUtil.release(readOutbound());
+
+        // the client missed the change of k1, its digest has more buckets than the server would use
+        int buckets = ConfigDigest.bucketsFor(keys.size()) * 4;
+        ConfigDigest digest = new ConfigDigest(buckets);
+        for (String key : keys) {
+            digest.add(key, 0);
+        }
+        requests.handleRequest(new RequestInfo<>(channel,
+                new SyncRequest(ConfrMessage.Protocol_V1, 2, "client", digest)));
+        SyncResponse response = readOutbound();
+        int differing = ConfigDigest.bucketOf("k1", buckets);
+        assertArrayEquals(new int[]{differing}, response.getDifferingBuckets());
+        assertEquals(Integer.valueOf(1), response.getVersions().get("k1"));
+        for (String key : response.getVersions().keySet()) {
+            assertEquals(differing, ConfigDigest.bucketOf(key, buckets));
+        }
+
+        // in sync
+        digest = new ConfigDigest(buckets);
+        for (String key : keys) {
+            digest.add(key, key.equals("k1") ? 1 : 0);
+        }
+        requests.handleRequest(new RequestInfo<>(channel,
+                new SyncRequest(ConfrMessage.Protocol_V1, 3, "client", digest)));
+        response = readOutbound();
+        assertEquals(0, response.getDifferingBuckets().length);
+        assertTrue(response.getVersions().isEmpty());
+    }
+
+    @Test
+    public void testSyncExactKeysOnly() throws Exception {
+        dispatcher.put("k0", "v0".getBytes());
+        dispatcher.put("app/a", "a".getBytes());
+        requests.handleRequest(new RequestInfo<>(channel, WatchKeysRequest.builder()
+                .addWatchKeys(Arrays.asList("k0", "app/" + WatchKeysRequest.Wildcard))
+                .setVersionId(ConfrMessage.Protocol_V1).setClientId("client").setCorrelationId(1).build()));
+        assertTrue(readOutbound() instanceof WatchKeysResponse);
+
+        // the prefix key is not in the digest of the client
+        ConfigDigest digest = new ConfigDigest(1).add("k0", 0);
+        requests.handleRequest(new RequestInfo<>(channel,
+                new SyncRequest(ConfrMessage.Protocol_V1, 2, "client", digest)));
+        SyncResponse response = readOutbound();
+        assertEquals(0, response.getDifferingBuckets().length);
+    }
+
+    @Test
+    public void testWatchSinceWithVersions() throws Exception {
+        List<String> keys = Arrays.asList("k0", "k1", "k2");
+        for (String key : keys) {
+            dispatcher.put(key, key.getBytes());
+        }
+        requests.handleRequest(new RequestInfo<>(channel, new Handshake(1, "client", ConfrMessage.Protocol_V2)));
+        assertTrue(readOutbound() instanceof Handshake);
+        requests.handleRequest(new RequestInfo<>(channel, WatchKeysRequest.builder().addWatchKeys(keys)
+                .setVersionId(ConfrMessage.Protocol_V2).setClientId("client").setCorrelationId(2).build()));
+        WatchKeysResponse response = readOutbound();
+        long epoch = response.getLogEpoch();
+        assertEquals(3, response.getLogSequence());
+
+        // the push carries the sequence of its change, the client position moves along
+        dispatcher.put("k1", "changed".getBytes());
+        ByteBuf push = readOutbound();
+        try {
+            push.skipBytes(Integer.BYTES + 1);
+            assertEquals(4, ConfChangeResponse.readFrom(push, ConnectionProtocol.get(channel), false)
+                    .getLogSequence());
+        } finally {
+            push.release();
+        }
+
+        // the position is dropped from the log, the versions still spare the unchanged values
+        for (int i = 0; i < 20; i++) {
+            dispatcher.put("other", "other".getBytes());
+        }
+        requests.handleRequest(new RequestInfo<>(channel, WatchKeysRequest.builder()
+                .addWatchKey("k0", 0).addWatchKey("k1", 1).addWatchKey("k2", 0).setSince(epoch, 4)
+                .setVersionId(ConfrMessage.Protocol_V2).setClientId("client").setCorrelationId(3).build()));
+        response = readOutbound();
+        assertTrue(response.getConfigData().isEmpty());
+        assertEquals(new HashSet<>(keys), response.getUnchangedKeys());
+
+        // a key without version is unchanged if the replay has no change of it, a stale version is sent
+        dispatcher.put("k2", "changed".getBytes());
+        ReferenceCountUtil.release(readOutbound());
+        long position = dispatcher.getChangeLog().getSequence();
+        requests.handleRequest(new RequestInfo<>(channel, WatchKeysRequest.builder()
+                .addWatchKeys(Arrays.asList("k0", "k1")).addWatchKey("k2", 0).setSince(epoch, position)
+                .setVersionId(ConfrMessage.Protocol_V2).setClientId("client").setCorrelationId(4).build()));
+        response = readOutbound();
+        assertEquals(Collections.singletonMap("k2", "changed"), response.getConfigData());
+        assertEquals(new HashSet<>(Arrays.asList("k0", "k1")), response.getUnchangedKeys());
+    }
+
+    private <T> T readOutbound() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            channel.runPendingTasks();
+            T message = channel.readOutbound();
+            if (message != null) {
+                return message;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Nothing written to the channel");
+    }
+}
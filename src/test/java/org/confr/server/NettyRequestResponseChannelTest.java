@@ -0,0 +1,44 @@
+package org.confr.server;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.confr.messages.ConfrMessage;
+import org.confr.messages.Ping;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NettyRequestResponseChannelTest {
+    @Test
+    public void testResumeEveryPausedChannelOfPartition() throws Exception {
+        NettyRequestResponseChannel requestResponseChannel =
+                new NettyRequestResponseChannel(1, 2, new ResponseHandler(10, 0, 1));
+        EmbeddedChannel first = new EmbeddedChannel();
+        EmbeddedChannel second = new EmbeddedChannel();
+        for (int i = 0; i < 3; i++) {
+            requestResponseChannel.sendCommand(new RequestInfo<>(first, ping()));
+        }
+        assertFalse(first.config().isAutoRead());
+        requestResponseChannel.sendCommand(new RequestInfo<>(second, ping()));
+        requestResponseChannel.sendCommand(new RequestInfo<>(second, ping()));
+        assertFalse(second.config().isAutoRead());
+
+        // the last command of the first channel is handled while the partition is still busy
+        for (int i = 0; i < 3; i++) {
+            assertSame(first, requestResponseChannel.receiveCommand(0).getChannel());
+            requestResponseChannel.commandHandled(0);
+        }
+        assertFalse(first.config().isAutoRead());
+
+        assertSame(second, requestResponseChannel.receiveCommand(0).getChannel());
+        requestResponseChannel.commandHandled(0);
+        // drained to half of the capacity, both are resumed
+        assertTrue(first.config().isAutoRead());
+        assertTrue(second.config().isAutoRead());
+        first.finish();
+        second.finish();
+    }
+
+    private static Ping ping() {
+        return new Ping(ConfrMessage.Protocol_V1, 1, "client");
+    }
+}
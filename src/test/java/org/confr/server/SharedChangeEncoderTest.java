@@ -0,0 +1,131 @@
+package org.confr.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.confr.messages.ConfChangeResponse;
+import org.confr.messages.ConfrMessage;
+import org.confr.messages.KeyIdTable;
+import org.confr.messages.ProtocolContext;
+import org.confr.storage.ValueChangedEvent;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SharedChangeEncoderTest {
+    @Test
+    public void testEncodeOnce() throws Exception {
+        SharedChangeEncoder encoder = new SharedChangeEncoder(ByteBufAllocator.DEFAULT, new KeyIdTable());
+        ValueChangedEvent event = ValueChangedEvent.Updated("key", 1, "value");
+
+        ByteBuf first = encoder.encode(event, ConfrMessage.Protocol_V1);
+        ByteBuf second = encoder.encode(event, ConfrMessage.Protocol_V1);
+        // duplicates of the same encoded buffer
+        ByteBuf shared = root(first);
+        assertSame(shared, root(second));
+        assertEquals(3, shared.refCnt());
+
+        // frame length, then message type
+        assertEquals(second.readableBytes(), second.readInt());
+        second.skipBytes(Integer.BYTES);
+        ConfChangeResponse response = ConfChangeResponse.readFrom(second);
+        assertEquals("value", response.getData().get("key"));
+        // reading one duplicate does not move the others
+        assertEquals(0, first.readerIndex());
+
+        // a new change replaces and releases the previous encoding
+        ByteBuf changed = encoder.encode(ValueChangedEvent.Updated("key", 2, "changed"), ConfrMessage.Protocol_V1);
+        assertNotSame(shared, root(changed));
+        assertEquals(2, shared.refCnt());
+
+        first.release();
+        second.release();
+        assertEquals(0, shared.refCnt());
+        ByteBuf sharedChanged = root(changed);
+        changed.release();
+        encoder.close();
+        assertEquals(0, sharedChanged.refCnt());
+    }
+
+    @Test
+    public void testKeepOnlyLatestChangeOfThread() throws Exception {
+        SharedChangeEncoder encoder = new SharedChangeEncoder(ByteBufAllocator.DEFAULT, new KeyIdTable());
+        ValueChangedEvent event = ValueChangedEvent.Updated("k1", 1, "v1");
+        ByteBuf first = encoder.encode(event, ConfrMessage.Protocol_V1);
+        ByteBuf shared = root(first);
+        assertEquals(2, shared.refCnt());
+
+        // another thread encodes the same event on its own
+        ByteBuf[] other = new ByteBuf[1];
+        Thread thread = new Thread(() -> {
+            try {
+                other[0] = encoder.encode(event, ConfrMessage.Protocol_V1);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        ByteBuf otherShared = root(other[0]);
+        assertNotSame(shared, otherShared);
+        assertEquals(2, shared.refCnt());
+
+        // a change of another key releases the change of the previous key
+        ByteBuf second = encoder.encode(ValueChangedEvent.Updated("k2", 1, "v2"), ConfrMessage.Protocol_V1);
+        assertEquals(1, shared.refCnt());
+        ByteBuf secondShared = root(second);
+        assertEquals(2, secondShared.refCnt());
+
+        encoder.close();
+        assertEquals(1, otherShared.refCnt());
+        assertEquals(1, secondShared.refCnt());
+        first.release();
+        other[0].release();
+        second.release();
+    }
+
+    /**
+     * @return the pooled buffer under the duplicates, and under the leak detector wrapper of sampled buffers.
+     */
+    private static ByteBuf root(ByteBuf buf) {
+        while (buf.unwrap() != null) {
+            buf = buf.unwrap();
+        }
+        return buf;
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        KeyIdTable keyIds = new KeyIdTable();
+        keyIds.idOf("k1");
+        keyIds.idOf("k2");
+        SharedChangeEncoder encoder = new SharedChangeEncoder(ByteBufAllocator.DEFAULT, keyIds);
+        for (short version : new short[] {ConfrMessage.Protocol_V1, ConfrMessage.Protocol_V2}) {
+            ByteBuf first = encoder.encode(ValueChangedEvent.Updated("k1", 1, "v1"), version);
+            ByteBuf second = encoder.encode(ValueChangedEvent.NotExist("k2"), version);
+            ByteBuf firstShared = root(first);
+            ByteBuf secondShared = root(second);
+            ByteBuf merged = SharedChangeEncoder.merge(ByteBufAllocator.DEFAULT, version, Arrays.asList(first, second));
+
+            assertEquals(merged.readableBytes(), merged.readInt());
+            ProtocolContext protocol = new ProtocolContext(version, "client", keyIds);
+            if (protocol.isV2()) {
+                merged.skipBytes(1);
+            } else {
+                merged.skipBytes(Integer.BYTES);
+            }
+            ConfChangeResponse response = ConfChangeResponse.readFrom(merged, protocol, false);
+            assertEquals(Arrays.asList("k1", "k2"), Arrays.asList(response.getData().keySet().toArray()));
+            assertEquals("v1", response.getData().get("k1"));
+            assertEquals("", response.getData().get("k2"));
+            assertEquals(0, merged.readableBytes());
+
+            // the merged frame owns the encoded changes, the encoder holds only the change encoded last
+            merged.release();
+            assertEquals(0, firstShared.refCnt());
+            assertEquals(1, secondShared.refCnt());
+        }
+        encoder.close();
+    }
+}
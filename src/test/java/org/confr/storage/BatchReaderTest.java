@@ -0,0 +1,62 @@
+package org.confr.storage;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class BatchReaderTest {
+    @Test
+    public void testReadAtRate() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            BatchReader reader = new BatchReader(scheduler, 2, 20, () -> false);
+            List<Integer> items = IntStream.range(0, 6).boxed().collect(Collectors.toList());
+            List<Integer> read = new CopyOnWriteArrayList<>();
+            CompletableFuture<Long> done = new CompletableFuture<>();
+            reader.readAll(reader.currentGeneration(), items, item -> {
+                read.add(item);
+                return CompletableFuture.completedFuture(null);
+            }, done::complete);
+
+            // 3 batches of 2 keys at 20 keys per second, the last one is not waited for
+            assertTrue(done.get(5, TimeUnit.SECONDS) >= 150);
+            assertEquals(items, read);
+            assertEquals(6, reader.getReadCount());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStopByNextGeneration() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            BatchReader reader = new BatchReader(scheduler, 1, 10, () -> false);
+            List<Integer> items = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+            AtomicLong done = new AtomicLong(-1);
+            reader.readAll(reader.currentGeneration(), items, item -> CompletableFuture.completedFuture(null),
+                    done::set);
+            Thread.sleep(250);
+            reader.nextGeneration();
+            // a batch running meanwhile is the last one
+            Thread.sleep(50);
+            long read = reader.getReadCount();
+            Thread.sleep(300);
+            assertEquals(read, reader.getReadCount());
+            assertTrue(read > 0 && read < items.size());
+            assertEquals(-1, done.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.confr.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChangeCoalescerTest {
+    @Test
+    public void testCoalesceBurst() throws Exception {
+        ChangeCoalescer coalescer = new ChangeCoalescer(100);
+        try {
+            List<ValueChangedEvent> dispatched = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch latch = new CountDownLatch(1);
+            for (int version = 0; version < 10; version++) {
+                coalescer.submit(ValueChangedEvent.Updated("key", version, "value" + version), event -> {
+                    dispatched.add(event);
+                    latch.countDown();
+                });
+            }
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(1, dispatched.size());
+            assertEquals("value9", dispatched.get(0).getData());
+            assertEquals(9, coalescer.getSuppressedCount());
+        } finally {
+            coalescer.close();
+        }
+    }
+
+    @Test
+    public void testNoWindow() {
+        ChangeCoalescer coalescer = new ChangeCoalescer(0);
+        List<ValueChangedEvent> dispatched = new ArrayList<>();
+        for (int version = 0; version < 3; version++) {
+            coalescer.submit(ValueChangedEvent.Updated("key", version, "value" + version), dispatched::add);
+        }
+        assertEquals(3, dispatched.size());
+        assertEquals(0, coalescer.getSuppressedCount());
+        coalescer.close();
+    }
+}
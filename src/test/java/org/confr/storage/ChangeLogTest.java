@@ -0,0 +1,45 @@
+package org.confr.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ChangeLogTest {
+    @Test
+    public void testReplaySince() throws Exception {
+        ChangeLog log = new ChangeLog(4);
+        assertNotEquals(0, log.getEpoch());
+        assertTrue(log.since(0).isEmpty());
+        assertNull(log.since(1));
+
+        log.append(ValueChangedEvent.Updated("a", 1, "a1"));
+        long position = log.append(ValueChangedEvent.Updated("b", 1, "b1"));
+        log.append(ValueChangedEvent.Updated("a", 2, "a2"));
+        log.append(ValueChangedEvent.NotExist("c"));
+        log.append(ValueChangedEvent.Updated("b", 2, "b2"));
+        assertEquals(5, log.getSequence());
+
+        // the latest change of every key, in the order of their latest change
+        Map<String, ValueChangedEvent> changes = log.since(position);
+        assertEquals(Arrays.asList("a", "c", "b"), new ArrayList<>(changes.keySet()));
+        assertEquals("a2", changes.get("a").getData());
+        assertEquals("b2", changes.get("b").getData());
+        assertTrue(log.since(5).isEmpty());
+
+        // the first change is dropped already
+        assertNull(log.since(0));
+        assertEquals(3, log.since(1).size());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ChangeLog log = new ChangeLog(0);
+        log.append(ValueChangedEvent.Updated("a", 1, "a1"));
+        assertNull(log.since(0));
+        assertTrue(log.since(1).isEmpty());
+    }
+}
@@ -0,0 +1,59 @@
+package org.confr.storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class IdleWatchersTest {
+    @Test
+    public void testGracePeriod() throws Exception {
+        List<String> evicted = new CopyOnWriteArrayList<>();
+        IdleWatchers idle = new IdleWatchers(200, 10, evicted::add);
+        try {
+            assertTrue(idle.retain("a"));
+            assertTrue(idle.retain("b"));
+            // watched again within the grace period
+            idle.reuse("a");
+            assertEquals(1, idle.size());
+            assertEquals(1, idle.getReusedCount());
+
+            Thread.sleep(500);
+            assertEquals(Collections.singletonList("b"), evicted);
+            assertEquals(0, idle.size());
+        } finally {
+            idle.close();
+        }
+    }
+
+    @Test
+    public void testEvictOldestBeyondMax() throws Exception {
+        List<String> evicted = new CopyOnWriteArrayList<>();
+        IdleWatchers idle = new IdleWatchers(60000, 2, evicted::add);
+        try {
+            idle.retain("a");
+            idle.retain("b");
+            // idle again, the newest one now
+            idle.retain("a");
+            idle.retain("c");
+            assertEquals(Collections.singletonList("b"), evicted);
+            idle.retain("d");
+            assertEquals(Arrays.asList("b", "a"), evicted);
+            assertEquals(2, idle.size());
+        } finally {
+            idle.close();
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        IdleWatchers idle = new IdleWatchers(0, 10, key -> fail("nothing is retained"));
+        assertFalse(idle.retain("a"));
+        assertEquals(0, idle.size());
+        idle.close();
+    }
+}
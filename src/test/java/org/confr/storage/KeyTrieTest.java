@@ -0,0 +1,45 @@
+package org.confr.storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class KeyTrieTest {
+    @Test
+    public void testPrefixesOf() throws Exception {
+        KeyTrie<String> trie = new KeyTrie<>();
+        trie.put("app", "app");
+        trie.put("app/payments", "payments");
+        trie.put("other", "other");
+
+        assertEquals(Arrays.asList("app", "payments"), trie.prefixesOf("app/payments/limit"));
+        assertEquals(Collections.singletonList("app"), trie.prefixesOf("app/payments"));
+        assertEquals(Collections.singletonList("app"), trie.prefixesOf("app/orders/a/b"));
+        assertTrue(trie.prefixesOf("app").isEmpty());
+        assertTrue(trie.prefixesOf("application/a").isEmpty());
+
+        // the empty prefix is the prefix of every key
+        trie.put("", "all");
+        assertEquals(Arrays.asList("all", "app"), trie.prefixesOf("app/a"));
+        assertEquals(4, trie.values().size());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        KeyTrie<String> trie = new KeyTrie<>();
+        trie.put("a/b/c", "c");
+        trie.put("a", "a");
+
+        assertNull(trie.remove("a/b"));
+        assertEquals("c", trie.remove("a/b/c"));
+        assertNull(trie.get("a/b/c"));
+        assertEquals("a", trie.get("a"));
+        assertEquals(Collections.singletonList("a"), trie.prefixesOf("a/b/c/d"));
+
+        assertEquals("a", trie.remove("a"));
+        assertTrue(trie.values().isEmpty());
+    }
+}
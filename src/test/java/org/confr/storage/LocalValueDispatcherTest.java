@@ -0,0 +1,149 @@
+package org.confr.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalValueDispatcherTest {
+    @Test
+    public void testInMemory() throws Exception {
+        InMemoryValueDispatcher dispatcher = new InMemoryValueDispatcher(2, 16);
+        dispatcher.start();
+        try {
+            BlockingQueue<ValueChangedEvent> changes = new LinkedBlockingQueue<>();
+            ValueChangeListener listener = changes::add;
+            assertEquals(0, dispatcher.put("app/a", "a0".getBytes()));
+            Map<String, ValueChangedEvent> values = dispatcher.registerVersionedAsync(
+                    Arrays.asList("app/a", "app/b"), listener).get();
+            assertEquals(ValueChangedEvent.Updated("app/a", 0, "a0"), values.get("app/a"));
+            assertEquals(ValueChangedEvent.NotExist("app/b"), values.get("app/b"));
+            long sequence = dispatcher.getChangeLog().getSequence();
+
+            assertEquals(1, dispatcher.put("app/a", "a1".getBytes()));
+            assertEquals(ValueChangedEvent.Updated("app/a", 1, "a1"), changes.poll(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonMap("app/a", ValueChangedEvent.Updated("app/a", 1, "a1")),
+                    dispatcher.changesSince(dispatcher.getChangeLog().getEpoch(), sequence, Arrays.asList("app/a")));
+
+            BlockingQueue<ValueChangedEvent> prefixChanges = new LinkedBlockingQueue<>();
+            ValueChangeListener prefixListener = prefixChanges::add;
+            assertEquals(Collections.singletonMap("app/a", ValueChangedEvent.Updated("app/a", 1, "a1")),
+                    dispatcher.registerPrefixAsync("app", prefixListener).get());
+            dispatcher.put("app/c", "c0".getBytes());
+            assertEquals(ValueChangedEvent.Updated("app/c", 0, "c0"), prefixChanges.poll(5, TimeUnit.SECONDS));
+
+            assertTrue(dispatcher.delete("app/a"));
+            assertEquals(ValueChangedEvent.NotExist("app/a"), changes.poll(5, TimeUnit.SECONDS));
+            assertEquals(ValueChangedEvent.NotExist("app/a"), prefixChanges.poll(5, TimeUnit.SECONDS));
+
+            dispatcher.deregister("app/a", listener);
+            dispatcher.deregisterPrefix("app", prefixListener);
+            // a recreated key goes on from its last version
+            assertEquals(2, dispatcher.put("app/a", "again".getBytes()));
+            assertNull(changes.poll(100, TimeUnit.MILLISECONDS));
+            assertNull(prefixChanges.poll(0, TimeUnit.MILLISECONDS));
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testMappedFileReload() throws Exception {
+        File file = File.createTempFile("confr", ".values");
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        MappedFileValueDispatcher.Builder builder = MappedFileValueDispatcher.builder()
+                .withFile(file.toPath())
+                .withCapacityBytes(4096);
+
+        MappedFileValueDispatcher dispatcher = builder.build();
+        dispatcher.start();
+        try {
+            dispatcher.put("app/a", "a0".getBytes());
+            dispatcher.put("app/a", "a1".getBytes());
+            dispatcher.put("app/b", new byte[]{0, -1});
+            dispatcher.put("app/c", "c0".getBytes());
+            assertTrue(dispatcher.delete("app/c"));
+            assertEquals(ValueChangedEvent.Updated("app/a", 1, "a1"), dispatcher.getKnownValue("app/a"));
+        } finally {
+            dispatcher.shutdown();
+        }
+
+        MappedFileValueDispatcher reloaded = builder.build();
+        reloaded.start();
+        try {
+            assertEquals(2, reloaded.size());
+            assertEquals(ValueChangedEvent.Updated("app/a", 1, "a1"), reloaded.getKnownValue("app/a"));
+            assertArrayEquals(new byte[]{0, -1}, reloaded.getKnownValue("app/b").getBytes());
+            assertEquals(ValueChangedEvent.NotExist("app/c"), reloaded.getKnownValue("app/c"));
+            assertEquals(2, reloaded.put("app/a", "a2".getBytes()));
+            // the tombstone of the deleted key is reloaded too
+            assertEquals(1, reloaded.put("app/c", "c1".getBytes()));
+            assertTrue(reloaded.delete("app/c"));
+            assertEquals(2, reloaded.put("app/c", "c2".getBytes()));
+
+            // no room left for the value
+            try {
+                reloaded.put("app/big", new byte[4096]);
+                fail("value beyond the capacity of the file");
+            } catch (IOException expected) {
+            }
+            assertNull(reloaded.getKnownValue("app/big").getBytes());
+        } finally {
+            reloaded.shutdown();
+        }
+    }
+
+    @Test
+    public void testMappedFileCompaction() throws Exception {
+        File file = File.createTempFile("confr", ".values");
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        MappedFileValueDispatcher.Builder builder = MappedFileValueDispatcher.builder()
+                .withFile(file.toPath())
+                .withCapacityBytes(4096);
+
+        MappedFileValueDispatcher dispatcher = builder.build();
+        dispatcher.start();
+        try {
+            dispatcher.put("app/deleted", "d0".getBytes());
+            assertTrue(dispatcher.delete("app/deleted"));
+            // many times the capacity of the file, the overwritten values are reclaimed
+            for (int i = 0; i < 200; i++) {
+                dispatcher.put("app/a", new byte[100]);
+                dispatcher.put("app/b", ("b" + i).getBytes());
+            }
+            assertTrue(dispatcher.getUsedBytes() <= dispatcher.getCapacityBytes());
+            assertEquals(ValueChangedEvent.Updated("app/b", 199, "b199"), dispatcher.getKnownValue("app/b"));
+            assertEquals(1, dispatcher.put("app/deleted", "d1".getBytes()));
+            assertTrue(dispatcher.delete("app/deleted"));
+        } finally {
+            dispatcher.shutdown();
+        }
+        assertFalse(new File(file.getPath() + ".compact").exists());
+
+        MappedFileValueDispatcher reloaded = builder.build();
+        reloaded.start();
+        try {
+            assertEquals(2, reloaded.size());
+            assertEquals(199, reloaded.getKnownValue("app/a").getVersion());
+            assertEquals(ValueChangedEvent.Updated("app/b", 199, "b199"), reloaded.getKnownValue("app/b"));
+            assertEquals(2, reloaded.put("app/deleted", "d2".getBytes()));
+            // compacted at start, only the latest records are left
+            int used = reloaded.getUsedBytes();
+            reloaded.put("app/a", new byte[100]);
+            assertTrue(reloaded.getUsedBytes() > used);
+            assertTrue(used < 400);
+        } finally {
+            reloaded.shutdown();
+        }
+    }
+}
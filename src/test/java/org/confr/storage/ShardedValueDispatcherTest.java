@@ -0,0 +1,192 @@
+package org.confr.storage;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class ShardedValueDispatcherTest {
+    @Test
+    public void testConsistentHash() throws Exception {
+        List<String> keys = IntStream.range(0, 10000).mapToObj(i -> "app/key-" + i).collect(Collectors.toList());
+        ConsistentHash four = new ConsistentHash(4);
+        int[] counts = new int[4];
+        keys.forEach(key -> counts[four.shardOf(key)]++);
+        for (int count : counts) {
+            assertTrue("unbalanced shard: " + count, count > 1500 && count < 3500);
+        }
+
+        // about a fifth of the keys move to the new shard, the others stay
+        ConsistentHash five = new ConsistentHash(5);
+        long moved = keys.stream().filter(key -> four.shardOf(key) != five.shardOf(key)).count();
+        assertTrue("moved " + moved, moved < 3500);
+        assertTrue(keys.stream().allMatch(key -> five.shardOf(key) == 4 || four.shardOf(key) == five.shardOf(key)));
+    }
+
+    @Test
+    public void testShardedRegister() throws Exception {
+        try (TestingServer zk = new TestingServer(true);
+             CuratorFramework client = CuratorFrameworkFactory.newClient(zk.getConnectString(), new RetryOneTime(100))) {
+            client.start();
+            String prefix = UUID.randomUUID().toString();
+            List<String> keys = IntStream.range(0, 30).mapToObj(i -> prefix + "-" + i).collect(Collectors.toList());
+            for (String key : keys) {
+                client.create().creatingParentsIfNeeded().forPath("/confr" + ZkValueDispatcher.zkPathForKey(key),
+                        key.getBytes());
+            }
+
+            ShardedValueDispatcher dispatcher = ShardedValueDispatcher.builder()
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .build();
+            dispatcher.start();
+            try {
+                BlockingQueue<ValueChangedEvent> changes = new LinkedBlockingQueue<>();
+                ValueChangeListener listener = changes::add;
+                Map<String, String> values = dispatcher.registerAsync(keys, listener).get(5, TimeUnit.SECONDS);
+                assertEquals(keys.size(), values.size());
+                keys.forEach(key -> assertEquals(key, values.get(key)));
+                for (int shard = 0; shard < dispatcher.getShardCount(); shard++) {
+                    assertFalse(dispatcher.getShard(shard).getWatchers().isEmpty());
+                    assertSame(dispatcher.getChangeLog(), dispatcher.getShard(shard).getChangeLog());
+                }
+
+                // changes of keys of every shard go to the shared change log
+                long since = dispatcher.getChangeLog().getSequence();
+                for (String key : keys) {
+                    client.setData().forPath("/confr" + ZkValueDispatcher.zkPathForKey(key), "changed".getBytes());
+                }
+                for (int i = 0; i < keys.size(); i++) {
+                    ValueChangedEvent change = changes.poll(5, TimeUnit.SECONDS);
+                    assertNotNull(change);
+                    assertEquals("changed", change.getData());
+                }
+                Map<String, ValueChangedEvent> replay = dispatcher.changesSince(dispatcher.getChangeLog().getEpoch(),
+                        since, keys);
+                assertNotNull(replay);
+                assertEquals(keys.size(), replay.size());
+
+                for (String key : keys) {
+                    dispatcher.deregister(key, listener);
+                }
+            } finally {
+                dispatcher.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixAndKeyOnSameLane() throws Exception {
+        try (TestingServer zk = new TestingServer(true);
+             CuratorFramework client = CuratorFrameworkFactory.newClient(zk.getConnectString(), new RetryOneTime(100))) {
+            client.start();
+            ShardedValueDispatcher dispatcher = ShardedValueDispatcher.builder()
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .withFanoutThreads(4)
+                    .build();
+            String prefix = UUID.randomUUID().toString();
+            // a key served by another shard than its prefix
+            String key = IntStream.range(0, 100).mapToObj(i -> prefix + "/key-" + i)
+                    .filter(k -> dispatcher.shardOf(k) != dispatcher.shardOf(prefix))
+                    .findFirst().get();
+            String path = "/confr" + ZkValueDispatcher.zkPathForKey(key);
+            client.create().creatingParentsIfNeeded().forPath(path, "v0".getBytes());
+
+            dispatcher.start();
+            try {
+                BlockingQueue<String> prefixChanges = new LinkedBlockingQueue<>();
+                BlockingQueue<String> keyChanges = new LinkedBlockingQueue<>();
+                ValueChangeListener prefixListener = event ->
+                        prefixChanges.add(event.getData() + "@" + Thread.currentThread().getName());
+                ValueChangeListener keyListener = event ->
+                        keyChanges.add(event.getData() + "@" + Thread.currentThread().getName());
+                dispatcher.registerPrefixAsync(prefix, prefixListener).get(5, TimeUnit.SECONDS);
+                assertEquals("v0", dispatcher.register(key, keyListener));
+
+                List<String> fromPrefix = new ArrayList<>();
+                List<String> fromKey = new ArrayList<>();
+                for (int i = 1; i <= 3; i++) {
+                    client.setData().forPath(path, ("v" + i).getBytes());
+                    fromPrefix.add(prefixChanges.poll(5, TimeUnit.SECONDS));
+                    fromKey.add(keyChanges.poll(5, TimeUnit.SECONDS));
+                }
+                // both watches of the key are notified by the same fan-out thread, never at the same time
+                assertEquals(fromPrefix, fromKey);
+                String thread = fromKey.get(0).substring(fromKey.get(0).indexOf('@'));
+                assertEquals(Arrays.asList("v1" + thread, "v2" + thread, "v3" + thread), fromKey);
+
+                dispatcher.deregisterPrefix(prefix, prefixListener);
+                dispatcher.deregister(key, keyListener);
+            } finally {
+                dispatcher.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testTreeCachePrefixOwnedByOneShard() throws Exception {
+        try (TestingServer zk = new TestingServer(true);
+             CuratorFramework client = CuratorFrameworkFactory.newClient(zk.getConnectString(), new RetryOneTime(100))) {
+            client.start();
+            String prefix = UUID.randomUUID().toString();
+            // the same ensemble under another name, seen as a different one
+            ShardedValueDispatcher dispatcher = ShardedValueDispatcher.builder()
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .addShard(ZkValueDispatcher.builder().withConnectString("localhost:" + zk.getPort()))
+                    .addShard(ZkValueDispatcher.builder().withConnectString(zk.getConnectString()))
+                    .withTreeCachePrefixes(Arrays.asList("/" + prefix + "/", prefix + "/inner"))
+                    .build();
+            List<String> keys = IntStream.range(0, 30).mapToObj(i -> prefix + "/inner/key-" + i)
+                    .collect(Collectors.toList());
+            for (String key : keys) {
+                client.create().creatingParentsIfNeeded().forPath("/confr" + ZkValueDispatcher.zkPathForKey(key),
+                        key.getBytes());
+            }
+
+            dispatcher.start();
+            try {
+                // both prefixes and every key under them belong to one shard
+                ZkValueDispatcher owner = dispatcher.shardOf(prefix);
+                for (int shard = 0; shard < dispatcher.getShardCount(); shard++) {
+                    ZkValueDispatcher other = dispatcher.getShard(shard);
+                    assertEquals(other == owner ? 2 : 0, other.getPrefixCaches().size());
+                }
+                assertTrue(keys.stream().allMatch(key -> dispatcher.shardOf(key) == owner));
+
+                Map<String, String> values = dispatcher.registerAsync(keys, event -> { }).get(5, TimeUnit.SECONDS);
+                keys.forEach(key -> assertEquals(key, values.get(key)));
+                assertEquals(keys.size(), owner.getWatchers().size());
+                assertEquals(keys.size(), dispatcher.registerPrefixAsync(prefix + "/inner", event -> { })
+                        .get(5, TimeUnit.SECONDS).size());
+
+                // a prefix outside of the caches may be read from another ensemble than its keys
+                try {
+                    dispatcher.registerPrefixAsync(UUID.randomUUID().toString(), event -> { }).get(5, TimeUnit.SECONDS);
+                    fail("prefix watch over different ensembles");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalArgumentException);
+                }
+            } finally {
+                dispatcher.shutdown();
+            }
+        }
+    }
+}
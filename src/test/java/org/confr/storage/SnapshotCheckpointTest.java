@@ -0,0 +1,42 @@
+package org.confr.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SnapshotCheckpointTest {
+    @Test
+    public void testWriteAndLoad() throws Exception {
+        File file = File.createTempFile("confr", ".snapshot");
+        file.deleteOnExit();
+        SnapshotCheckpoint.write(file.toPath(), Arrays.asList(ValueChangedEvent.Updated("app/a", 3, "a"),
+                ValueChangedEvent.NotExist("app/b")));
+        Map<String, ValueChangedEvent> events = SnapshotCheckpoint.load(file.toPath());
+        assertEquals(2, events.size());
+        assertEquals(ValueChangedEvent.Updated("app/a", 3, "a"), events.get("app/a"));
+        assertEquals(ValueChangedEvent.NotExist("app/b"), events.get("app/b"));
+    }
+
+    @Test
+    public void testCorruptedCount() throws Exception {
+        File file = File.createTempFile("confr", ".snapshot");
+        file.deleteOnExit();
+        SnapshotCheckpoint.write(file.toPath(), Arrays.asList(ValueChangedEvent.Updated("app/a", 3, "a")));
+        // a count far beyond the entries of the file is not trusted to size the map
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(8);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+        try {
+            SnapshotCheckpoint.load(file.toPath());
+            fail("count beyond the entries of the file");
+        } catch (IOException expected) {
+        }
+    }
+}
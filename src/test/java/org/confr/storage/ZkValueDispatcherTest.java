@@ -1,15 +1,23 @@
 package org.confr.storage;
 
 import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.ZooKeeper;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -104,6 +112,400 @@ public class ZkValueDispatcherTest {
         assertEquals(0, dispatcher.getWatchers().size());
     }
 
+    @Test
+    public void testRegisterKnownKeyFromSnapshot() throws Exception {
+        String path = ZkValueDispatcher.zkPathForKey(key);
+        dispatcher.getClient().create().creatingParentsIfNeeded().forPath(path, "known".getBytes());
+
+        ValueChangeListener first = event -> {};
+        ValueChangeListener second = event -> {};
+        assertEquals("known", dispatcher.register(key, first));
+        assertEquals(0, dispatcher.getSnapshot().get(key).getVersion());
+
+        // stop zk, the known key must be answered from the snapshot
+        zkTestingServer.stop();
+        try {
+            assertEquals("known", dispatcher.register(key, second));
+        } finally {
+            zkTestingServer.restart();
+        }
+
+        dispatcher.deregister(key, first);
+        dispatcher.deregister(key, second);
+        assertNull(dispatcher.getSnapshot().get(key));
+    }
+
+    @Test
+    public void testRegisterAsync() throws Exception {
+        List<String> keys = IntStream.range(0, 20).mapToObj(i -> key + "-" + i).collect(Collectors.toList());
+        // only the even keys exist
+        for (int i = 0; i < keys.size(); i += 2) {
+            dispatcher.getClient().create().creatingParentsIfNeeded()
+                    .forPath(ZkValueDispatcher.zkPathForKey(keys.get(i)), keys.get(i).getBytes());
+        }
+
+        ValueChangeListener listener = event -> {};
+        Map<String, String> values = dispatcher.registerAsync(keys, listener).get(5, TimeUnit.SECONDS);
+        assertEquals(keys.size(), values.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(i % 2 == 0 ? keys.get(i) : null, values.get(keys.get(i)));
+        }
+
+        for (String k : keys) {
+            dispatcher.deregister(k, listener);
+        }
+    }
+
+    @Test
+    public void testTreeCacheRegister() throws Exception {
+        ZkValueDispatcher treeDispatcher = ZkValueDispatcher.builder()
+                .withConnectString(zkTestingServer.getConnectString())
+                .withNamespace("confr")
+                .withTreeCachePrefix("tree")
+                .build();
+        String treeKey = "tree/" + key;
+        String path = ZkValueDispatcher.zkPathForKey(treeKey);
+        dispatcher.getClient().create().creatingParentsIfNeeded().forPath(path, "init".getBytes());
+        treeDispatcher.start();
+        try {
+
+            CountDownLatch changedLatch = new CountDownLatch(1);
+            List<String> listenedValues = new ArrayList<>();
+            String initValue = treeDispatcher.register(treeKey, new ValueChangeListener() {
+                @Override public void onChanged(ValueChangedEvent event) {
+                    listenedValues.add(event.getData());
+                    changedLatch.countDown();
+                }
+            });
+            assertEquals("init", initValue);
+            assertEquals(1, treeDispatcher.getWatchers().size());
+
+            setData(treeKey, "changed");
+            assertTrue(changedLatch.await(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("changed"), listenedValues);
+        } finally {
+            treeDispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testTreeCacheInitTimeout() throws Exception {
+        ZkValueDispatcher treeDispatcher = ZkValueDispatcher.builder()
+                .withConnectString(zkTestingServer.getConnectString())
+                .withNamespace("confr")
+                .withTreeCachePrefix("timeout")
+                .withPrefixCacheInitTimeoutMs(200)
+                .build();
+        String treeKey = "timeout/" + key;
+        dispatcher.getClient().create().creatingParentsIfNeeded()
+                .forPath(ZkValueDispatcher.zkPathForKey(treeKey), "init".getBytes());
+        ValueChangeListener listener = event -> {};
+        zkTestingServer.stop();
+        try {
+            treeDispatcher.start();
+            try {
+                treeDispatcher.register(treeKey, listener);
+                fail("tree cache cannot load without zk");
+            } catch (TimeoutException expected) {
+            }
+            try {
+                treeDispatcher.registerPrefixAsync("timeout", listener).get(5, TimeUnit.SECONDS);
+                fail("tree cache cannot load without zk");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof TimeoutException);
+            }
+        } finally {
+            zkTestingServer.restart();
+        }
+        try {
+            // loaded once zk is back
+            waitFor(() -> treeDispatcher.registerAsync(Collections.singletonList(treeKey), listener)
+                    .handle((values, e) -> e == null && "init".equals(values.get(treeKey))).join());
+        } finally {
+            treeDispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testWatcherGracePeriod() throws Exception {
+        ZkValueDispatcher graceDispatcher = ZkValueDispatcher.builder()
+                .withConnectString(zkTestingServer.getConnectString())
+                .withNamespace("confr")
+                .withWatcherGracePeriodMs(300)
+                .build();
+        dispatcher.getClient().create().creatingParentsIfNeeded()
+                .forPath(ZkValueDispatcher.zkPathForKey(key), "warm".getBytes());
+        graceDispatcher.start();
+        try {
+            ValueChangeListener first = event -> {};
+            assertEquals("warm", graceDispatcher.register(key, first));
+            graceDispatcher.deregister(key, first);
+            // still watched, the next register is answered from the snapshot
+            assertEquals(1, graceDispatcher.getIdleWatcherCount());
+            assertNotNull(graceDispatcher.getSnapshot().get(key));
+            setData(key, "changed");
+            Thread.sleep(100);
+
+            ValueChangeListener second = event -> {};
+            zkTestingServer.stop();
+            try {
+                assertEquals("changed", graceDispatcher.register(key, second));
+            } finally {
+                zkTestingServer.restart();
+            }
+            assertEquals(1, graceDispatcher.getReusedIdleWatcherCount());
+
+            graceDispatcher.deregister(key, second);
+            Thread.sleep(600);
+            assertEquals(0, graceDispatcher.getWatchers().size());
+            assertNull(graceDispatcher.getSnapshot().get(key));
+        } finally {
+            graceDispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testDegradedAndResync() throws Exception {
+        ZkValueDispatcher resyncDispatcher = ZkValueDispatcher.builder()
+                .withConnectString(zkTestingServer.getConnectString())
+                .withNamespace("confr")
+                .withResyncBatchSize(2)
+                .withResyncKeysPerSecond(20)
+                .build();
+        List<String> keys = IntStream.range(0, 5).mapToObj(i -> key + "-" + i).collect(Collectors.toList());
+        for (String k : keys) {
+            dispatcher.getClient().create().creatingParentsIfNeeded()
+                    .forPath(ZkValueDispatcher.zkPathForKey(k), k.getBytes());
+        }
+        resyncDispatcher.start();
+        try {
+            ValueChangeListener listener = event -> {};
+            resyncDispatcher.registerAsync(keys, listener).get(5, TimeUnit.SECONDS);
+
+            zkTestingServer.stop();
+            try {
+                waitFor(resyncDispatcher::isDegraded);
+                // the known values are still served
+                assertEquals(keys.get(0), resyncDispatcher.register(keys.get(0), listener));
+            } finally {
+                zkTestingServer.restart();
+            }
+            waitFor(() -> !resyncDispatcher.isDegraded());
+            waitFor(() -> resyncDispatcher.getResyncedKeyCount() == keys.size() && !resyncDispatcher.isResyncing());
+            assertEquals(keys.size(), resyncDispatcher.getLastResyncKeyCount());
+            // 5 keys at 20 keys per second
+            assertTrue(resyncDispatcher.getLastResyncDurationMs() >= 150);
+        } finally {
+            resyncDispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws Exception {
+        File file = File.createTempFile("confr", ".snapshot");
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        ZkValueDispatcher.Builder builder = ZkValueDispatcher.builder()
+                .withConnectString(zkTestingServer.getConnectString())
+                .withNamespace("confr")
+                .withWatcherGracePeriodMs(10000)
+                .withSnapshotFile(file.toPath());
+        String stale = key + "-stale";
+        String missing = key + "-missing";
+        dispatcher.getClient().create().creatingParentsIfNeeded()
+                .forPath(ZkValueDispatcher.zkPathForKey(key), "v0".getBytes());
+        dispatcher.getClient().create().creatingParentsIfNeeded()
+                .forPath(ZkValueDispatcher.zkPathForKey(stale), "s0".getBytes());
+
+        ZkValueDispatcher before = builder.build();
+        before.start();
+        try {
+            ValueChangeListener listener = event -> {};
+            before.registerAsync(Arrays.asList(key, stale, missing), listener).get(5, TimeUnit.SECONDS);
+        } finally {
+            before.shutdown();
+        }
+        setData(stale, "s1");
+
+        ZkValueDispatcher after = builder.build();
+        after.start();
+        try {
+            assertEquals(3, after.getWarmKeyCount());
+            BlockingQueue<ValueChangedEvent> changes = new LinkedBlockingQueue<>();
+            ValueChangeListener listener = changes::add;
+            Map<String, ValueChangedEvent> values = after.registerVersionedAsync(Arrays.asList(key, stale, missing),
+                    listener).get(5, TimeUnit.SECONDS);
+            assertEquals("v0", values.get(key).getData());
+            assertNull(values.get(missing).getData());
+
+            waitFor(() -> after.getWarmUpDurationMs() > 0 || after.getResyncedKeyCount() == 3);
+            if ("s0".equals(values.get(stale).getData())) {
+                // answered with the warm value, the fresh value follows as a change
+                ValueChangedEvent changed = changes.poll(5, TimeUnit.SECONDS);
+                assertNotNull(changed);
+                assertEquals("s1", changed.getData());
+                assertEquals(1, after.getStaleWarmKeyCount());
+            } else {
+                assertEquals("s1", values.get(stale).getData());
+            }
+            assertNull(changes.poll(200, TimeUnit.MILLISECONDS));
+        } finally {
+            after.shutdown();
+        }
+    }
+
+    @Test
+    public void testChangesSince() throws Exception {
+        ZkValueDispatcher logDispatcher = ZkValueDispatcher.builder()
+                .withConnectString(zkTestingServer.getConnectString())
+                .withNamespace("confr")
+                .withChangeLogCapacity(4)
+                .build();
+        String later = key + "-later";
+        for (String k : Arrays.asList(key, later)) {
+            dispatcher.getClient().create().creatingParentsIfNeeded()
+                    .forPath(ZkValueDispatcher.zkPathForKey(k), "v0".getBytes());
+        }
+        logDispatcher.start();
+        try {
+            ChangeLog changeLog = logDispatcher.getChangeLog();
+            BlockingQueue<ValueChangedEvent> changes = new LinkedBlockingQueue<>();
+            ValueChangeListener listener = changes::add;
+            logDispatcher.register(key, listener);
+            long position = changeLog.getSequence();
+            assertEquals(Collections.emptyMap(), logDispatcher.changesSince(changeLog.getEpoch(), position,
+                    Collections.singletonList(key)));
+
+            setData(key, "v1");
+            ValueChangedEvent changed = changes.poll(5, TimeUnit.SECONDS);
+            assertEquals("v1", changed.getData());
+            assertEquals(Collections.singletonMap(key, changed), logDispatcher.changesSince(changeLog.getEpoch(),
+                    position, Collections.singletonList(key)));
+            // a position of another log
+            assertNull(logDispatcher.changesSince(changeLog.getEpoch() + 1, position,
+                    Collections.singletonList(key)));
+
+            // watched after the position, its changes before are unknown
+            logDispatcher.register(later, listener);
+            assertNull(logDispatcher.changesSince(changeLog.getEpoch(), position, Arrays.asList(key, later)));
+            long laterPosition = changeLog.getSequence();
+            assertEquals(Collections.emptyMap(), logDispatcher.changesSince(changeLog.getEpoch(), laterPosition,
+                    Arrays.asList(key, later)));
+            // never watched
+            assertNull(logDispatcher.changesSince(changeLog.getEpoch(), laterPosition,
+                    Collections.singletonList(key + "-never")));
+
+            // the changes after the position are dropped once more than the capacity changed
+            for (int i = 2; i < 6; i++) {
+                setData(key, "v" + i);
+                assertEquals("v" + i, changes.poll(5, TimeUnit.SECONDS).getData());
+            }
+            assertNull(logDispatcher.changesSince(changeLog.getEpoch(), position, Collections.singletonList(key)));
+            assertEquals("v5", logDispatcher.changesSince(changeLog.getEpoch(), laterPosition,
+                    Collections.singletonList(key)).get(key).getData());
+        } finally {
+            logDispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testOneWatchAcrossReconnects() throws Exception {
+        ZkValueDispatcher watchDispatcher = ZkValueDispatcher.builder()
+                .withConnectString(zkTestingServer.getConnectString())
+                .withNamespace("confr")
+                .build();
+        dispatcher.getClient().create().creatingParentsIfNeeded()
+                .forPath(ZkValueDispatcher.zkPathForKey(key), "v0".getBytes());
+        String missing = key + "-missing";
+        watchDispatcher.start();
+        try {
+            BlockingQueue<ValueChangedEvent> changes = new LinkedBlockingQueue<>();
+            ValueChangeListener listener = changes::add;
+            assertEquals("v0", watchDispatcher.register(key, listener));
+            assertNull(watchDispatcher.register(missing, listener));
+            assertEquals(1, dataWatchCount(watchDispatcher, key));
+
+            for (int i = 1; i <= 2; i++) {
+                // the session survives, so do its watches
+                zkTestingServer.restart();
+                long resynced = 2L * i;
+                waitFor(() -> watchDispatcher.getResyncedKeyCount() >= resynced && !watchDispatcher.isResyncing());
+                setData(key, "v" + i);
+                assertEquals("v" + i, changes.poll(5, TimeUnit.SECONDS).getData());
+                assertEquals(1, dataWatchCount(watchDispatcher, key));
+            }
+
+            // created after watched by an exists
+            dispatcher.getClient().create().forPath(ZkValueDispatcher.zkPathForKey(missing), "created".getBytes());
+            assertEquals("created", changes.poll(5, TimeUnit.SECONDS).getData());
+            assertEquals(1, dataWatchCount(watchDispatcher, missing));
+        } finally {
+            watchDispatcher.shutdown();
+        }
+    }
+
+    /**
+     * @return number of the zk data watches of the key set by the client of the dispatcher
+     */
+    private static int dataWatchCount(ZkValueDispatcher dispatcher, String key) throws Exception {
+        ZooKeeper zk = dispatcher.getClient().getZookeeperClient().getZooKeeper();
+        Field managerField = ZooKeeper.class.getDeclaredField("watchManager");
+        managerField.setAccessible(true);
+        Object manager = managerField.get(zk);
+        Field watchesField = manager.getClass().getDeclaredField("dataWatches");
+        watchesField.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        Map<String, Set<?>> watches = (Map<String, Set<?>>) watchesField.get(manager);
+        synchronized (watches) {
+            Set<?> watchers = watches.get("/confr" + ZkValueDispatcher.zkPathForKey(key));
+            return watchers == null ? 0 : watchers.size();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testRegisterPrefix() throws Exception {
+        String prefix = "prefix/" + key;
+        dispatcher.getClient().create().creatingParentsIfNeeded()
+                .forPath(ZkValueDispatcher.zkPathForKey(prefix + "/a"), "a".getBytes());
+        dispatcher.getClient().create().creatingParentsIfNeeded()
+                .forPath(ZkValueDispatcher.zkPathForKey(prefix + "/b/c"), "c".getBytes());
+
+        BlockingQueue<ValueChangedEvent> changes = new LinkedBlockingQueue<>();
+        ValueChangeListener listener = changes::add;
+        Map<String, ValueChangedEvent> subtree = dispatcher.registerPrefixAsync(prefix, listener)
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(new HashSet<>(Arrays.asList(prefix + "/a", prefix + "/b", prefix + "/b/c")), subtree.keySet());
+        assertEquals("c", subtree.get(prefix + "/b/c").getData());
+        // the nested prefix shares the tree cache of its parent
+        assertEquals(1, dispatcher.registerPrefixAsync(prefix + "/b", listener).get(5, TimeUnit.SECONDS).size());
+        assertTrue(changes.isEmpty());
+
+        // a key created under the prefix
+        dispatcher.getClient().create().forPath(ZkValueDispatcher.zkPathForKey(prefix + "/d"), "d".getBytes());
+        ValueChangedEvent created = changes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(created);
+        assertEquals(prefix + "/d", created.getKey());
+        assertEquals("d", created.getData());
+
+        dispatcher.deregisterPrefix(prefix, listener);
+        setData(prefix + "/b/c", "c2");
+        ValueChangedEvent changed = changes.poll(5, TimeUnit.SECONDS);
+        assertNotNull(changed);
+        assertEquals("c2", changed.getData());
+        dispatcher.deregisterPrefix(prefix + "/b", listener);
+
+        setData(prefix + "/a", "a2");
+        assertNull(changes.poll(200, TimeUnit.MILLISECONDS));
+    }
+
     private void setData(String key, String value) throws Exception {
         String path = ZkValueDispatcher.zkPathForKey(key);
 
@@ -0,0 +1,46 @@
+package org.confr.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StripedExecutorTest {
+    @Test
+    public void testOrderPerStripe() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test-lane", 4);
+        int stripes = 16;
+        int tasksPerStripe = 1000;
+        Map<Integer, List<Integer>> executed = new ConcurrentHashMap<>();
+        Map<Integer, String> threads = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(stripes * tasksPerStripe);
+        for (int i = 0; i < tasksPerStripe; i++) {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                final int seq = i;
+                final int s = stripe;
+                executor.execute("stripe-" + stripe, () -> {
+                    executed.computeIfAbsent(s, k -> new ArrayList<>()).add(seq);
+                    String previous = threads.putIfAbsent(s, Thread.currentThread().getName());
+                    assertTrue(previous == null || previous.equals(Thread.currentThread().getName()));
+                    latch.countDown();
+                });
+            }
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            List<Integer> seqs = executed.get(stripe);
+            assertEquals(tasksPerStripe, seqs.size());
+            for (int i = 0; i < tasksPerStripe; i++) {
+                assertEquals(i, seqs.get(i).intValue());
+            }
+        }
+        executor.shutdown();
+    }
+}